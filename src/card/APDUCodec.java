@@ -0,0 +1,233 @@
+/**
+ * APDUCodec.java
+ *
+ * Encoding and decoding of the length-prefixed APDU fields used by the applet
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package card;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Writes command data directly into a reusable buffer and parses responses
+ * as views on the received bytes.
+ *
+ * Fields are encoded as a two byte big endian length followed by the value.
+ * Numbers are sent as unsigned magnitudes, points in their encoded form.
+ * An instance is not thread safe, use one codec per card channel.
+ */
+public class APDUCodec {
+
+    // Initial size of the command buffer, enough for short APDUs
+    private static final int INITIAL_CAPACITY = 256;
+
+    private ByteBuffer buffer;
+
+    public APDUCodec() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public APDUCodec(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Start encoding a new command, discarding any previous data
+     */
+    public APDUCodec reset() {
+        buffer.clear();
+        return this;
+    }
+
+    /**
+     * Append a single raw byte
+     */
+    public APDUCodec put(byte b) {
+        ensure(1);
+        buffer.put(b);
+        return this;
+    }
+
+    /**
+     * Append a two byte big endian value
+     */
+    public APDUCodec putShort(int s) {
+        ensure(2);
+        buffer.putShort((short) s);
+        return this;
+    }
+
+    /**
+     * Append raw bytes without a length prefix
+     */
+    public APDUCodec putRaw(byte[] value) {
+        ensure(value.length);
+        buffer.put(value);
+        return this;
+    }
+
+    /**
+     * Append a length-prefixed byte string
+     */
+    public APDUCodec putField(byte[] value) {
+        ensure(value.length + 2);
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+        return this;
+    }
+
+    /**
+     * Append a length-prefixed unsigned number (at least one byte long)
+     */
+    public APDUCodec putField(BigInteger i) {
+        byte[] array = i.toByteArray();
+
+        int length = (i.bitLength() + 7) / 8;
+        if (length == 0) length++;
+
+        ensure(length + 2);
+        buffer.putShort((short) length);
+        buffer.put(array, array.length - length, length);
+        return this;
+    }
+
+    /**
+     * Append a length-prefixed encoded point
+     */
+    public APDUCodec putField(ECPoint p) {
+        return putField(p.getEncoded());
+    }
+
+    /**
+     * The backing array of the command data, valid up to length()
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * The number of command data bytes written since the last reset()
+     */
+    public int length() {
+        return buffer.position();
+    }
+
+    private void ensure(int n) {
+        if (buffer.remaining() < n) {
+            int capacity = buffer.capacity();
+            while (capacity - buffer.position() < n) {
+                capacity *= 2;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * Parse a response consisting of a number of length-prefixed fields
+     *
+     * @param data Response data, it is never modified
+     * @param count The number of fields expected
+     * @throws IllegalArgumentException if the response is too short
+     */
+    public static Fields parse(byte[] data, int count) {
+        return new Fields(data, count);
+    }
+
+    /**
+     * View on the length-prefixed fields of a response. Only offsets and
+     * lengths are computed when parsing, values are decoded on request.
+     */
+    public static class Fields {
+        private final byte[] data;
+        private final int[] offset;
+        private final int[] length;
+        private final BigInteger[] decoded;
+
+        Fields(byte[] data, int count) {
+            this.data = data;
+            offset = new int[count];
+            length = new int[count];
+            decoded = new BigInteger[count];
+
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                if (pos + 2 > data.length) {
+                    throw new IllegalArgumentException("Response too short for field " + i);
+                }
+                length[i] = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+                offset[i] = pos + 2;
+                pos = offset[i] + length[i];
+                if (pos > data.length) {
+                    throw new IllegalArgumentException("Response too short for field " + i);
+                }
+            }
+        }
+
+        public int count() {
+            return offset.length;
+        }
+
+        public int offset(int i) {
+            return offset[i];
+        }
+
+        public int length(int i) {
+            return length[i];
+        }
+
+        /**
+         * The underlying response data, must not be modified
+         */
+        public byte[] data() {
+            return data;
+        }
+
+        /**
+         * Decode field i as an unsigned number (decoded once)
+         */
+        public BigInteger getBigInteger(int i) {
+            if (decoded[i] == null) {
+                decoded[i] = new BigInteger(1, getBytes(i));
+            }
+            return decoded[i];
+        }
+
+        /**
+         * Copy of the value of field i
+         */
+        public byte[] getBytes(int i) {
+            byte[] value = new byte[length[i]];
+            System.arraycopy(data, offset[i], value, 0, length[i]);
+            return value;
+        }
+
+        /**
+         * Decode field i as a point on the given curve
+         */
+        public ECPoint getPoint(int i, ECCurve curve) {
+            return curve.decodePoint(getBytes(i));
+        }
+    }
+}
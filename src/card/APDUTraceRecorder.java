@@ -0,0 +1,285 @@
+/**
+ * APDUTraceRecorder.java
+ *
+ * Compact binary trace of APDU exchanges in a memory-mapped ring file
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package card;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records APDU exchanges without blocking the transmitting thread. Records
+ * are handed over through a lock-free queue to a writer thread, which
+ * appends them to a memory-mapped ring file. When the file is full the
+ * oldest records are overwritten.
+ *
+ * File layout (big endian):
+ *
+ *   header:  magic (4) version (4) capacity (4) head (4) tail (4)
+ *            count (4) written (8) dropped (8), padded to 64 bytes
+ *   record:  length (4) time (8) duration (4) ins (1)
+ *            command length (2) command, response length (2) response
+ *
+ * A record length of -1 marks the point where the writer wrapped around.
+ * Time is in ms since the epoch, duration in us.
+ */
+public class APDUTraceRecorder {
+
+    static final int MAGIC = 0x41505452; // "APTR"
+    static final int VERSION = 1;
+    static final int HEADER = 64;
+
+    private static final int RECORD_HEADER = 4 + 8 + 4 + 1 + 2 + 2;
+    private static final int WRAP = -1;
+
+    // Records waiting for the writer before new ones are dropped
+    private static final int MAX_PENDING = 4096;
+
+    private static class Record {
+        final long time;
+        final int duration;
+        final byte ins;
+        final byte[] command;
+        final byte[] response;
+
+        Record(long time, int duration, byte ins, byte[] command, byte[] response) {
+            this.time = time;
+            this.duration = duration;
+            this.ins = ins;
+            this.command = command;
+            this.response = response;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // Writer state, only touched by the writer thread
+    private int head = 0;
+    private int tail = 0;
+    private int count = 0;
+    private long written = 0;
+
+    /**
+     * Create (or overwrite) a trace file of the given size
+     *
+     * @param f The trace file
+     * @param size Size of the file in bytes, including the header
+     */
+    public APDUTraceRecorder(File f, int size) throws IOException {
+        file = new RandomAccessFile(f, "rw");
+        file.setLength(size);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        capacity = size - HEADER;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+        writeHeader();
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "APDUTraceRecorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue an exchange for recording, never blocks. The arrays are
+     * referenced, not copied, and must not be modified afterwards.
+     *
+     * @param ins INS code of the command
+     * @param command The command APDU bytes
+     * @param response The response APDU bytes, null if there was none
+     * @param nanos Duration of the exchange (in ns)
+     */
+    public void record(int ins, byte[] command, byte[] response, long nanos) {
+        if (!running || pending.get() >= MAX_PENDING) {
+            dropped.incrementAndGet();
+            return;
+        }
+        pending.incrementAndGet();
+        queue.offer(new Record(System.currentTimeMillis(), (int) (nanos / 1000),
+                (byte) ins, command, response == null ? new byte[0] : response));
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * The number of records dropped because the writer could not keep up
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write the remaining records and close the trace file
+     */
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        buffer.force();
+        file.close();
+    }
+
+    private void drain() {
+        while (true) {
+            Record r = queue.poll();
+            if (r != null) {
+                write(r);
+                pending.decrementAndGet();
+                if (queue.isEmpty()) {
+                    writeHeader();
+                }
+            } else if (running) {
+                LockSupport.parkNanos(100000000L);
+            } else {
+                writeHeader();
+                return;
+            }
+        }
+    }
+
+    private void write(Record r) {
+        int length = RECORD_HEADER + r.command.length + r.response.length;
+        if (length > capacity / 2) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        // Keep room for the wrap marker at the end of the data area
+        if (head + length + 4 > capacity) {
+            // Records after the new marker can no longer be reached
+            evict(head, capacity);
+            buffer.putInt(HEADER + head, WRAP);
+            head = 0;
+        }
+        evict(head, head + length);
+
+        int p = HEADER + head;
+        buffer.putInt(p, length);
+        buffer.putLong(p + 4, r.time);
+        buffer.putInt(p + 12, r.duration);
+        buffer.put(p + 16, r.ins);
+        buffer.putShort(p + 17, (short) r.command.length);
+        for (int i = 0; i < r.command.length; i++) {
+            buffer.put(p + 19 + i, r.command[i]);
+        }
+        p += 19 + r.command.length;
+        buffer.putShort(p, (short) r.response.length);
+        for (int i = 0; i < r.response.length; i++) {
+            buffer.put(p + 2 + i, r.response[i]);
+        }
+
+        if (count == 0) {
+            tail = head;
+        }
+        head += length;
+        count++;
+        written++;
+    }
+
+    /**
+     * Drop the oldest records as long as they start in [from, to)
+     */
+    private void evict(int from, int to) {
+        while (count > 0 && tail >= from && tail < to) {
+            int l = buffer.getInt(HEADER + tail);
+            if (l == WRAP) {
+                tail = 0;
+            } else {
+                tail += l;
+                count--;
+            }
+        }
+    }
+
+    private void writeHeader() {
+        buffer.putInt(12, head);
+        buffer.putInt(16, tail);
+        buffer.putInt(20, count);
+        buffer.putLong(24, written);
+        buffer.putLong(32, dropped.get());
+    }
+
+    /**
+     * Print the records of a trace file, oldest first
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: APDUTraceRecorder <trace file>");
+            System.exit(1);
+        }
+        RandomAccessFile f = new RandomAccessFile(args[0], "r");
+        MappedByteBuffer b = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+        if (b.getInt(0) != MAGIC) {
+            System.err.println("Not an APDU trace file");
+            System.exit(1);
+        }
+        int pos = b.getInt(16);
+        int count = b.getInt(20);
+        System.out.println("# " + count + " records, " + b.getLong(24)
+                + " written, " + b.getLong(32) + " dropped");
+        for (int n = 0; n < count; n++) {
+            int length = b.getInt(HEADER + pos);
+            if (length == WRAP) {
+                pos = 0;
+                n--;
+                continue;
+            }
+            int p = HEADER + pos;
+            StringBuilder sb = new StringBuilder();
+            sb.append(b.getLong(p + 4)).append(String.format(" INS %02x %8d us  C: ",
+                    b.get(p + 16) & 0xff, b.getInt(p + 12)));
+            int cl = b.getShort(p + 17) & 0xffff;
+            for (int i = 0; i < cl; i++) {
+                sb.append(String.format("%02x", b.get(p + 19 + i)));
+            }
+            int rp = p + 19 + cl;
+            int rl = b.getShort(rp) & 0xffff;
+            sb.append("  R: ");
+            for (int i = 0; i < rl; i++) {
+                sb.append(String.format("%02x", b.get(rp + 2 + i)));
+            }
+            System.out.println(sb);
+            pos += length;
+        }
+        f.close();
+    }
+}
@@ -110,7 +110,7 @@ public class CardClient implements CardInterface {
      * @return Blinded public key, blinded attribute signature and the attribute
      */
     public BigInteger[] getAttribute(byte id, ECPoint nonce) {
-	BigInteger[] result = new BigInteger[3];
+	BigInteger[] result = new BigInteger[4];
 	
 	int i = 0;
 	while (i < attribute.length && attribute_id[i] != id) i++;
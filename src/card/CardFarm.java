@@ -0,0 +1,275 @@
+/**
+ * CardFarm.java
+ *
+ * Simulates a large number of cards in memory
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package card;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.prng.DigestRandomGenerator;
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Many CardClients in one object, for load tests and warm-ups at the
+ * scale of a real card population. Cards are kept in primitive arrays:
+ * the private key k of card j in a few longs, and the attributes it
+ * holds as a bit mask over the attributes of the issuer.
+ *
+ * The certificate of an attribute on a card with key k is sa.(k.G) =
+ * k.(sa.G), so the farm only needs the certificates sa.G of the point G
+ * itself, once per attribute, instead of the certificates of every card.
+ * GET_ATTRIBUTE answers like CardClient: with t = b.k for a fresh blinder
+ * b, the blinded key is t.G, the blinded signature t.(sa.G) and the signed
+ * nonce t.N. The first two are multiples of fixed points and use shared
+ * comb tables; only t.N is a full multiplication.
+ *
+ * Blinders come from a SHA-256 DigestRandomGenerator per thread, seeded
+ * from the seed of the farm, so a single-threaded run repeats exactly.
+ * Every command can be delayed by a configurable latency to model the
+ * air interface.
+ */
+public class CardFarm {
+
+    private final BigInteger r;
+    private final int words;
+    private final long[] keys;
+    private final byte[] attributes;
+    private final byte[] attributeId;
+    private final BigInteger[] attribute;
+    private final PointTable base;
+    private final PointTable[] certificates;
+    private final long seed;
+    private final AtomicLong streams = new AtomicLong();
+    private final ThreadLocal<DigestRandomGenerator> random = new ThreadLocal<DigestRandomGenerator>() {
+        protected DigestRandomGenerator initialValue() {
+            return generator(seed, streams.incrementAndGet());
+        }
+    };
+
+    private volatile long latency = 0;
+    private volatile long jitter = 0;
+
+    /**
+     * Create the cards with fresh keys and no attributes
+     *
+     * @param cards Number of cards
+     * @param g Generator point on the curve
+     * @param r Order of the generator
+     * @param attributeId Ids of the attributes of the issuer, at most 8
+     * @param attribute Their values
+     * @param certificate Their certificates of the point G, sa.G
+     * @param seed Seed for the keys and blinders
+     */
+    public CardFarm(int cards, ECPoint g, BigInteger r, byte[] attributeId,
+            BigInteger[] attribute, ECPoint[] certificate, long seed) {
+        if (attributeId.length > 8) {
+            throw new IllegalArgumentException("At most 8 attributes");
+        }
+        this.r = r;
+        this.attributeId = attributeId.clone();
+        this.attribute = attribute.clone();
+        this.seed = seed;
+        words = (r.bitLength() + 63) / 64;
+        keys = new long[cards * words];
+        attributes = new byte[cards];
+
+        base = new PointTable(g, r.bitLength());
+        certificates = new PointTable[certificate.length];
+        for (int i = 0; i < certificate.length; i++) {
+            certificates[i] = new PointTable(certificate[i], r.bitLength());
+        }
+
+        DigestRandomGenerator keyGen = generator(seed, 0);
+        for (int j = 0; j < cards; j++) {
+            setKey(j, scalar(keyGen));
+        }
+    }
+
+    private static DigestRandomGenerator generator(long seed, long stream) {
+        DigestRandomGenerator g = new DigestRandomGenerator(new SHA256Digest());
+        g.addSeedMaterial(seed);
+        g.addSeedMaterial(stream);
+        return g;
+    }
+
+    /**
+     * A uniform scalar in [1, r), 64 bits longer before the reduction so
+     * the bias is negligible
+     */
+    private BigInteger scalar(DigestRandomGenerator g) {
+        byte[] b = new byte[(r.bitLength() + 7) / 8 + 8];
+        BigInteger k;
+        do {
+            g.nextBytes(b);
+            k = new BigInteger(1, b).mod(r);
+        } while (k.signum() == 0);
+        return k;
+    }
+
+    public int getCardCount() {
+        return attributes.length;
+    }
+
+    /**
+     * Delay every command by latency plus a uniform random part of at
+     * most jitter (both in ns)
+     */
+    public void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    private void delay() {
+        long d = latency;
+        if (jitter > 0) {
+            byte[] b = new byte[8];
+            random.get().nextBytes(b);
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = v << 8 | (b[i] & 0xff);
+            }
+            d += (v & Long.MAX_VALUE) % jitter;
+        }
+        long deadline = System.nanoTime() + d;
+        while (d > 0) {
+            LockSupport.parkNanos(d);
+            d = deadline - System.nanoTime();
+        }
+    }
+
+    BigInteger getKey(int card) {
+        byte[] b = new byte[words * 8];
+        for (int w = 0; w < words; w++) {
+            long v = keys[card * words + w];
+            for (int i = 0; i < 8; i++) {
+                b[w * 8 + i] = (byte) (v >>> (56 - 8 * i));
+            }
+        }
+        return new BigInteger(1, b);
+    }
+
+    private void setKey(int card, BigInteger k) {
+        byte[] b = k.toByteArray();
+        for (int w = words - 1; w >= 0; w--) {
+            long v = 0;
+            int end = b.length - (words - 1 - w) * 8;
+            for (int i = Math.max(0, end - 8); i < end; i++) {
+                v = v << 8 | (b[i] & 0xff);
+            }
+            keys[card * words + w] = v;
+        }
+    }
+
+    /**
+     * The public key k.G of a card
+     */
+    public ECPoint getPublicKey(int card) {
+        return base.multiply(getKey(card));
+    }
+
+    private int indexOf(byte id) {
+        for (int i = 0; i < attributeId.length; i++) {
+            if (attributeId[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Store attributes on a card, replacing the ones it held. Ids the
+     * issuer does not know are not stored.
+     */
+    public void issue(int card, byte[] attribute_id) {
+        int mask = 0;
+        for (byte id : attribute_id) {
+            int i = indexOf(id);
+            if (i >= 0) {
+                mask |= 1 << i;
+            }
+        }
+        attributes[card] = (byte) mask;
+    }
+
+    /**
+     * Store the same attributes on every card
+     */
+    public void issueAll(byte[] attribute_id) {
+        for (int j = 0; j < attributes.length; j++) {
+            issue(j, attribute_id);
+        }
+    }
+
+    /**
+     * Answer GET_ATTRIBUTE for a card, without the latency
+     *
+     * @return Indexed like CardInterface, null if the card does not hold
+     *   the attribute
+     */
+    public BigInteger[] respond(int card, byte id, ECPoint nonce) {
+        int i = indexOf(id);
+        if (i < 0 || (attributes[card] & 1 << i) == 0) {
+            return null;
+        }
+        BigInteger t = scalar(random.get()).multiply(getKey(card)).mod(r);
+
+        BigInteger[] result = new BigInteger[4];
+        result[CardInterface.BLINDED_KEY] = base.multiply(t).getX().toBigInteger();
+        result[CardInterface.SIGNED_NONCE] = nonce.multiply(t).getX().toBigInteger();
+        result[CardInterface.BLINDED_SIGNATURE] = certificates[i].multiply(t).getX().toBigInteger();
+        result[CardInterface.ATTRIBUTE] = attribute[i];
+        return result;
+    }
+
+    /**
+     * One card of the farm, with the latency
+     */
+    public CardInterface card(final int card) {
+        return new CardInterface() {
+            /**
+             * A new key for the card, which loses its attributes. The
+             * curve is the one of the farm.
+             */
+            public ECPoint initialise(BigInteger p, BigInteger order, BigInteger a, BigInteger b, ECPoint g) {
+                delay();
+                setKey(card, scalar(random.get()));
+                attributes[card] = 0;
+                return getPublicKey(card);
+            }
+
+            /**
+             * Only the ids are kept, the values and certificates are
+             * those of the issuer of the farm
+             */
+            public void personalise(byte[] attribute_id, BigInteger[] attribute, ECPoint[] signature) {
+                delay();
+                issue(card, attribute_id);
+            }
+
+            public BigInteger[] getAttribute(byte id, ECPoint nonce) {
+                delay();
+                return respond(card, id, nonce);
+            }
+        };
+    }
+}
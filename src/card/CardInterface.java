@@ -34,6 +34,11 @@ public interface CardInterface {
     static final public int SIGNED_NONCE = 1;
     static final public int BLINDED_SIGNATURE = 2;
     static final public int ATTRIBUTE = 3;
+
+    /**
+     * Status word returned by the applet when INITIALISE is sent twice
+     */
+    static final public int SW_ALREADY_INITIALISED = 0x6985;
     
     /**
      * Initialise the cryptographic parameters on the card
@@ -0,0 +1,144 @@
+/**
+ * PairingParameters.java
+ *
+ * Derives the fixed point and attribute keys for any curve size
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package card;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECFieldElement;
+import org.bouncycastle.math.ec.ECFieldElementFp2;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.ECPointFp2;
+import org.bouncycastle.math.ec.pairing.ECCurveWithPairing;
+
+/**
+ * Parameters for curve sizes without hard-coded ones.
+ *
+ * The fixed point Q is hashed onto the twist: x is taken from SHA-256 of
+ * a public label and a counter until x^3 + b' is a square. The twist has
+ * order r.h with cofactor h = 2p - r, so the point is multiplied by h to
+ * land in the subgroup of order r; the result is checked with r.Q = O.
+ * Every host derives the same Q, and nobody knows its discrete log.
+ *
+ * The attribute keys are the issuer's secret. They are derived from the
+ * seed in the system property sbcred.keyseed, so an issuer and its gates
+ * share them. Without a seed there are no keys: random ones would only
+ * be known to this process, so its cards could never pass another gate.
+ * Benchmarks, which only need some keys, call useBenchmarkSeed().
+ */
+public class PairingParameters {
+
+    private static final String LABEL = "sbcred fixed point";
+
+    private static final String KEY_SEED = "sbcred.keyseed";
+
+    // Public seed of the benchmarks, its keys protect nothing
+    private static final String BENCHMARK_SEED = "sbcred benchmark";
+
+    private static BigInteger hash(String label, int bits, int counter, int part, BigInteger mod) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        // Two blocks, so the reduction bias is negligible for all sizes
+        BigInteger v = BigInteger.ZERO;
+        for (int block = 0; block < 2; block++) {
+            md.update((label + "/" + bits + "/" + counter + "/" + part + "/" + block).getBytes());
+            v = v.shiftLeft(256).add(new BigInteger(1, md.digest()));
+        }
+        return v.mod(mod);
+    }
+
+    /**
+     * The fixed point Q of order r on the twist of the curve
+     */
+    public static ECPointFp2 fixedPoint(ECCurveWithPairing curve) {
+        ECCurve twist = curve.getTwistedCurve();
+        BigInteger p = curve.getP();
+        BigInteger r = curve.getR();
+        BigInteger cofactor = p.shiftLeft(1).subtract(r);
+        int bits = curve.getFieldSize();
+
+        for (int counter = 0; ; counter++) {
+            ECFieldElement x = new ECFieldElementFp2(
+                    curve.fromBigInteger(hash(LABEL, bits, counter, 0, p)),
+                    curve.fromBigInteger(hash(LABEL, bits, counter, 1, p)), true);
+            ECFieldElement rhs = x.multiply(x).multiply(x).add(twist.getA().multiply(x)).add(twist.getB());
+            ECFieldElement y;
+            try {
+                y = rhs.sqrt();
+            } catch (RuntimeException e) {
+                // Not a square
+                continue;
+            }
+            if (y == null || !y.multiply(y).equals(rhs)) {
+                continue;
+            }
+            ECPoint Q = new ECPointFp2(twist, x, y).multiply(cofactor);
+            if (Q.isInfinity()) {
+                continue;
+            }
+            if (!Q.multiply(r).isInfinity()) {
+                throw new IllegalStateException("Cofactor does not clear the twist of "
+                        + bits + " bits");
+            }
+            return (ECPointFp2) Q;
+        }
+    }
+
+    /**
+     * Derive keys from a public seed unless sbcred.keyseed is set, for
+     * benchmarks and load tests that do not issue real cards. Some key
+     * lengths have no hard-coded keys, and any keys will do there.
+     */
+    public static void useBenchmarkSeed() {
+        if (System.getProperty(KEY_SEED) == null) {
+            System.setProperty(KEY_SEED, BENCHMARK_SEED);
+        }
+    }
+
+    /**
+     * The private attribute keys, in [1, r)
+     *
+     * @throws IllegalStateException if sbcred.keyseed is not set
+     */
+    public static BigInteger[] attributeKeys(ECCurveWithPairing curve, int count) {
+        BigInteger r = curve.getR();
+        String seed = System.getProperty(KEY_SEED);
+        if (seed == null) {
+            throw new IllegalStateException("No attribute keys for " + curve.getFieldSize()
+                    + " bits, set " + KEY_SEED);
+        }
+        BigInteger[] key = new BigInteger[count];
+        for (int i = 0; i < count; i++) {
+            key[i] = hash(seed, curve.getFieldSize(), i, 0, r);
+            if (key[i].signum() == 0) {
+                key[i] = BigInteger.ONE;
+            }
+        }
+        return key;
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * PointTable.java
+ *
+ * Multiplies one point by many scalars
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package card;
+
+import java.math.BigInteger;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Comb table of a point, for computing several multiples of the same
+ * point such as the certificates of one card key.
+ *
+ * A scalar of n bits is cut into w rows of d = n/w bits. The table holds
+ * the sums of 2^(i.d).P for every subset of the rows, so a column of w
+ * bits is a single table entry. Building the table costs about n
+ * doublings; after that a multiplication costs d doublings and at most
+ * d additions, where ECPoint.multiply() needs n doublings and about n/3
+ * additions. The table is only read, so it can be shared by several
+ * threads.
+ */
+public class PointTable {
+
+    public static final int DEFAULT_WIDTH = 4;
+
+    private final ECPoint p;
+    private final ECPoint infinity;
+    private final ECPoint[] table;
+    private final int width;
+    private final int columns;
+
+    /**
+     * @param p The point
+     * @param bits Length of the scalars (in bits), longer ones are slower
+     */
+    public PointTable(ECPoint p, int bits) {
+        this(p, bits, DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param p The point
+     * @param bits Length of the scalars (in bits), longer ones are slower
+     * @param width Number of rows w, the table holds 2^w points
+     */
+    public PointTable(ECPoint p, int bits, int width) {
+        this.p = p;
+        this.width = width;
+        columns = (bits + width - 1) / width;
+        infinity = p.getCurve().getInfinity();
+
+        // table[m] = sum of 2^(i.d).P over the bits i set in m
+        table = new ECPoint[1 << width];
+        table[0] = infinity;
+        ECPoint row = p;
+        for (int i = 0; i < width; i++) {
+            if (i > 0) {
+                for (int j = 0; j < columns; j++) {
+                    row = row.twice();
+                }
+            }
+            int bit = 1 << i;
+            table[bit] = row;
+            for (int m = 1; m < bit; m++) {
+                table[bit | m] = table[m].add(row);
+            }
+        }
+    }
+
+    /**
+     * The multiple kP, for a non-negative k
+     */
+    public ECPoint multiply(BigInteger k) {
+        if (k.bitLength() > width * columns) {
+            return p.multiply(k);
+        }
+        ECPoint q = infinity;
+        for (int j = columns - 1; j >= 0; j--) {
+            q = q.twice();
+            int m = 0;
+            for (int i = 0; i < width; i++) {
+                if (k.testBit(i * columns + j)) {
+                    m |= 1 << i;
+                }
+            }
+            if (m != 0) {
+                q = q.add(table[m]);
+            }
+        }
+        return q;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * CardPresenceListener.java
+ *
+ * Interface for receiving card insertion and removal events.
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package proxy;
+
+import javax.smartcardio.CardTerminal;
+
+public interface CardPresenceListener {
+
+    /**
+     * Called when a card has been placed on the given reader
+     *
+     * @param terminal The reader the card was placed on
+     */
+    public void cardInserted(CardTerminal terminal);
+
+    /**
+     * Called when a card has been taken away from the given reader
+     *
+     * @param terminal The reader the card was removed from
+     */
+    public void cardRemoved(CardTerminal terminal);
+}
@@ -0,0 +1,307 @@
+/**
+ * CardPresenceMonitor.java
+ *
+ * Event driven monitor for card insertion and removal on all attached readers
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package proxy;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CardTerminals.State;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * Watches every reader of a CardTerminals instance and publishes card
+ * insertion and removal events to the registered listeners.
+ *
+ * The monitor blocks in CardTerminals.waitForChange() instead of polling
+ * the readers, so no CPU is spent while the gate is idle. The timeout on
+ * waitForChange() only bounds how long stop() takes to be noticed.
+ *
+ * Only one thread should wait for changes of a CardTerminals instance, a
+ * second waiter takes events away from the first. Everything in this
+ * process therefore waits for cards through the shared monitor returned
+ * by getDefault(), with awaitCard(), awaitRemoval() and awaitChange().
+ */
+public class CardPresenceMonitor implements Runnable {
+
+    private static final boolean VERBOSE = false;
+
+    // Upper bound on a single waitForChange() call (in ms)
+    private static final long WAIT_TIMEOUT = 1000;
+
+    private final CardTerminals terminals;
+    private final List<CardPresenceListener> listeners =
+            new CopyOnWriteArrayList<CardPresenceListener>();
+
+    // Names of the readers that currently hold a card
+    private final Set<String> present = new HashSet<String>();
+
+    // Bumped on every insertion and removal, guarded by present
+    private long changes = 0;
+
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    private static CardPresenceMonitor defaultMonitor = null;
+
+    /**
+     * The monitor of the default readers, started on first use
+     */
+    public static synchronized CardPresenceMonitor getDefault() {
+        if (defaultMonitor == null) {
+            defaultMonitor = new CardPresenceMonitor();
+        }
+        defaultMonitor.start();
+        return defaultMonitor;
+    }
+
+    public CardPresenceMonitor() {
+        this(TerminalFactory.getDefault().terminals());
+    }
+
+    public CardPresenceMonitor(CardTerminals terminals) {
+        this.terminals = terminals;
+    }
+
+    public void addListener(CardPresenceListener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(CardPresenceListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Start monitoring on a daemon thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "CardPresenceMonitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop monitoring, returns after the monitor thread has finished
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(2 * WAIT_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Check whether the monitor has seen a card on the given reader
+     */
+    public boolean isCardPresent(CardTerminal terminal) {
+        synchronized (present) {
+            return present.contains(terminal.getName());
+        }
+    }
+
+    /**
+     * Block until a card is present on the given reader
+     *
+     * @param terminal The reader to wait for
+     * @param timeout Maximum time to wait (in ms), 0 waits indefinitely
+     * @return Whether a card is present on the reader
+     */
+    public boolean awaitCard(CardTerminal terminal, long timeout)
+            throws InterruptedException {
+        return await(terminal, true, timeout);
+    }
+
+    /**
+     * Block until the card is taken away from the given reader
+     *
+     * @param terminal The reader to wait for
+     * @param timeout Maximum time to wait (in ms), 0 waits indefinitely
+     * @return Whether the reader is empty
+     */
+    public boolean awaitRemoval(CardTerminal terminal, long timeout)
+            throws InterruptedException {
+        return await(terminal, false, timeout);
+    }
+
+    /**
+     * Number of insertions and removals seen so far, read it before
+     * looking at the readers and pass it to awaitChange()
+     */
+    public long getChanges() {
+        synchronized (present) {
+            return changes;
+        }
+    }
+
+    /**
+     * Block until a card is inserted or removed on any reader
+     *
+     * @param seen Value of getChanges() when the readers were last checked
+     * @param timeout Maximum time to wait (in ms), 0 waits indefinitely
+     * @return Whether anything changed since then
+     */
+    public boolean awaitChange(long seen, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (present) {
+            while (changes == seen && running) {
+                if (!waitUntil(deadline, timeout)) {
+                    return false;
+                }
+            }
+            return changes != seen;
+        }
+    }
+
+    private boolean await(CardTerminal terminal, boolean card, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (present) {
+            while (present.contains(terminal.getName()) != card) {
+                if (!running) {
+                    break;
+                }
+                if (!waitUntil(deadline, timeout)) {
+                    return false;
+                }
+            }
+            if (running) {
+                return true;
+            }
+        }
+        // No events any more, ask the reader itself, without the lock so
+        // other waiters are not held up
+        return direct(terminal, card, deadline, timeout);
+    }
+
+    /**
+     * Wait on present until notified or the deadline passes, the caller
+     * holds the lock
+     *
+     * @return false if the deadline has passed
+     */
+    private boolean waitUntil(long deadline, long timeout) throws InterruptedException {
+        if (timeout == 0) {
+            present.wait();
+            return true;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return false;
+        }
+        present.wait(remaining);
+        return true;
+    }
+
+    private static boolean direct(CardTerminal terminal, boolean card, long deadline, long timeout) {
+        long remaining = timeout == 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis());
+        try {
+            return card ? terminal.waitForCardPresent(remaining)
+                    : terminal.waitForCardAbsent(remaining);
+        } catch (CardException e) {
+            System.err.println(terminal.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void run() {
+        try {
+            // The first call only records the current state of the readers
+            terminals.waitForChange(1);
+            for (CardTerminal t : terminals.list(State.CARD_PRESENT)) {
+                inserted(t);
+            }
+
+            while (running) {
+                if (!terminals.waitForChange(WAIT_TIMEOUT)) {
+                    continue;
+                }
+                for (CardTerminal t : terminals.list(State.CARD_REMOVAL)) {
+                    removed(t);
+                }
+                for (CardTerminal t : terminals.list(State.CARD_INSERTION)) {
+                    inserted(t);
+                }
+            }
+        } catch (CardException e) {
+            System.err.println("Card presence monitor stopped: " + e.getMessage());
+        } finally {
+            running = false;
+            synchronized (present) {
+                // Waiters fall back to the readers themselves
+                present.notifyAll();
+            }
+        }
+    }
+
+    private void inserted(CardTerminal terminal) {
+        if (VERBOSE) System.out.println("Card inserted: " + terminal.getName());
+        synchronized (present) {
+            present.add(terminal.getName());
+            changes++;
+            present.notifyAll();
+        }
+        for (CardPresenceListener l : listeners) {
+            try {
+                l.cardInserted(terminal);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void removed(CardTerminal terminal) {
+        if (VERBOSE) System.out.println("Card removed: " + terminal.getName());
+        synchronized (present) {
+            present.remove(terminal.getName());
+            changes++;
+            present.notifyAll();
+        }
+        for (CardPresenceListener l : listeners) {
+            try {
+                l.cardRemoved(terminal);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
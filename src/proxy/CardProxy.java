@@ -21,9 +21,18 @@
 
 package proxy;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.smartcardio.Card;
 import javax.smartcardio.CardChannel;
@@ -37,6 +46,8 @@ import javax.swing.JOptionPane;
 import org.bouncycastle.math.ec.ECCurve;
 import org.bouncycastle.math.ec.ECPoint;
 
+import card.APDUCodec;
+import card.APDUTraceRecorder;
 import card.CardInterface;
 
 /**
@@ -45,7 +56,7 @@ import card.CardInterface;
 public class CardProxy implements CardInterface {
 
     private static boolean TIMING = true;
-    private static boolean VERBOSE = true;
+    private static boolean VERBOSE = false;
 
     private static final int[] SELECT        = { 0x00, 0xA4, 0x04, 0x00 };
     private static final int[] INITIALISE    = { 0x00, 0x01, 0x00, 0x00 };
@@ -56,7 +67,24 @@ public class CardProxy implements CardInterface {
     private static final byte[] AID = { 0x35, 0x01, 0x02, 0x03, 0x04, 0x07 };
 
     private CardChannel channel = null;
+    private CardTerminal terminal = null;
+    private final APDUCodec codec = new APDUCodec();
     public static CardTerminal defaultTerminal = null;
+
+    // Health of all readers, only used when failing over between readers
+    public static ReaderPool readers = null;
+
+    // Binary trace of all exchanges, null when tracing is off
+    public static APDUTraceRecorder trace = null;
+
+    private TransmitPolicy policy = TransmitPolicy.getDefault();
+    private TransmitResult lastResult = null;
+
+    // Runs the blocking channel.transmit() so that it can be abandoned
+    private ExecutorService exchanger = null;
+
+    // Reader this proxy is bound to, null to pick a reader per connection
+    private final CardTerminal fixedTerminal;
     
     static {
         if(CardProxyConfiguration.GUI_CHOOSE) {
@@ -76,36 +104,176 @@ public class CardProxy implements CardInterface {
                 System.exit(1);
             }
          }
+        if(CardProxyConfiguration.TRACE_FILE != null) {
+            try {
+                trace = new APDUTraceRecorder(new File(CardProxyConfiguration.TRACE_FILE),
+                        CardProxyConfiguration.TRACE_SIZE);
+            } catch(IOException e) {
+                System.err.println("APDU tracing disabled: " + e.getMessage());
+            }
+        }
+        if(CardProxyConfiguration.FAILOVER) {
+            try {
+                readers = new ReaderPool(TerminalFactory.getDefault().terminals());
+            } catch(CardException ce) {
+                System.err.println("Reader failover disabled: " + ce.getMessage());
+            }
+        }
     }
     
+    public CardProxy() {
+	this(null);
+    }
+
+    /**
+     * Create a proxy that only uses the given reader, so that several
+     * proxies can serve several readers side by side
+     */
+    public CardProxy(CardTerminal terminal) {
+	fixedTerminal = terminal;
+    }
+
+    public CardTerminal getTerminal() {
+	return fixedTerminal != null ? fixedTerminal : terminal;
+    }
+
     /**
      * Setup a connection with the smart card 
+     *
+     * @param deadline Value of System.nanoTime() after which to give up
+     * @return Whether a connection was established before the deadline
      */
-    private void connect() {
+    private boolean connect(long deadline) {
 	while (channel == null) {
+	    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+	    if (remaining <= 0) {
+		return false;
+	    }
 	    try {
-		TerminalFactory factory = TerminalFactory.getDefault();
-		CardTerminal terminal = null;
-		if(defaultTerminal != null) {
-		    terminal = defaultTerminal;
+		if(fixedTerminal == null && readers != null) {
+		    // The healthiest reader holding a card
+		    terminal = readers.awaitReader(remaining);
+		    if (terminal == null) return false;
 		}else{
-		   terminal = factory.terminals().list().get(CardProxyConfiguration.TERMINAL_ID);
+		    terminal = reader();
+		    // Woken by the presence monitor, no polling
+		    if (!CardPresenceMonitor.getDefault().awaitCard(terminal, remaining)) return false;
 		}
-		terminal.waitForCardPresent(100);
-		if (!terminal.isCardPresent()) continue;
 		Card card = terminal.connect("*");
 		channel = card.getBasicChannel();
 
-		byte[][] data = {AID};
-		CommandAPDU cmd = APDUprepare(SELECT, data, 0);
-		if (channel.transmit(cmd).getSW() != 0x9000) {
+		CommandAPDU cmd = APDUprepare(SELECT, codec.reset().putRaw(AID), 0);
+		long timeout = Math.min(deadline - System.nanoTime(),
+			TimeUnit.MILLISECONDS.toNanos(policy.getDeadline(cmd.getINS())));
+		if (exchange(cmd, timeout).getSW() != 0x9000) {
 		    throw new CardException("SELECT Failed");
 		}
 	    } catch (CardException e) {
 		System.err.println(e.getMessage());
-		channel = null;
+		disconnect();
+		continue;
+	    } catch (TimeoutException e) {
+		System.err.println("SELECT timed out");
 		continue;
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * The reader this proxy connects to when it does not fail over
+     */
+    private CardTerminal reader() throws CardException {
+	if(fixedTerminal != null) {
+	    return fixedTerminal;
+	}else if(defaultTerminal != null) {
+	    return defaultTerminal;
+	}else{
+	    return TerminalFactory.getDefault().terminals().list().get(CardProxyConfiguration.TERMINAL_ID);
+	}
+    }
+
+    /**
+     * Wait until a card is placed on the reader, so a gate starts reading
+     * as soon as a passenger taps instead of polling
+     *
+     * @param timeout Maximum time to wait (in ms), 0 waits indefinitely
+     * @return Whether a card is present
+     */
+    public boolean awaitCard(long timeout) {
+	try {
+	    if(fixedTerminal == null && readers != null) {
+		return readers.awaitReader(timeout) != null;
 	    }
+	    return CardPresenceMonitor.getDefault().awaitCard(reader(), timeout);
+	} catch (CardException e) {
+	    System.err.println(e.getMessage());
+	    return false;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+    }
+
+    /**
+     * Drop the connection with the card, the next transmit reconnects
+     */
+    public void disconnect() {
+	if (channel != null) {
+	    try {
+		channel.getCard().disconnect(true);
+	    } catch (CardException e) {
+		// The card is gone already
+	    } catch (IllegalStateException e) {
+		// Already disconnected
+	    }
+	}
+	channel = null;
+    }
+
+    /**
+     * Exchange a single APDU, waiting at most timeout ns for the response.
+     * After a timeout the connection is reset and the blocked exchange is
+     * abandoned.
+     */
+    private ResponseAPDU exchange(final CommandAPDU cmd, long timeout)
+	    throws CardException, TimeoutException {
+	if (exchanger == null) {
+	    exchanger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "CardProxy-exchange");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	}
+
+	final CardChannel ch = channel;
+	Future<ResponseAPDU> f = exchanger.submit(new Callable<ResponseAPDU>() {
+	    public ResponseAPDU call() throws CardException {
+		return ch.transmit(cmd);
+	    }
+	});
+	try {
+	    return f.get(Math.max(timeout, 0), TimeUnit.NANOSECONDS);
+	} catch (TimeoutException e) {
+	    f.cancel(true);
+	    disconnect();
+	    exchanger.shutdownNow();
+	    exchanger = null;
+	    throw e;
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof CardException) {
+		throw (CardException) e.getCause();
+	    }
+	    throw new CardException(e.getCause());
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    f.cancel(true);
+	    throw new CardException("Interrupted while waiting for the card");
 	}
     }
 
@@ -113,45 +281,120 @@ public class CardProxy implements CardInterface {
      * Connect to the card and transmit the command
      * 
      * @param cmd Command to be transmitted to the card
-     * @return Response received from the card
-     * @throws CardException
+     * @return Response received from the card, null if the command failed
+     *         or did not finish within its deadline
      */
     private ResponseAPDU transmit(CommandAPDU cmd) {
-	connect();
+	lastResult = transmitWithDeadline(cmd);
+	if (!lastResult.isOK()) {
+	    System.err.println("transmit failed: " + lastResult);
+	} else if (lastResult.getAttempts() > 1) {
+	    System.err.println("transmit recovered: " + lastResult);
+	}
+	return lastResult.getResponse();
+    }
 
+    /**
+     * Transmit the command within the deadlines of the transmit policy,
+     * reconnecting and retrying idempotent commands after failures. The
+     * deadlines start once a card is on the reader, waiting for a
+     * passenger does not count.
+     * 
+     * @param cmd Command to be transmitted to the card
+     * @return The outcome of the exchange
+     */
+    public TransmitResult transmitWithDeadline(CommandAPDU cmd) {
+	if (channel == null && !awaitCard(0)) {
+	    return new TransmitResult(TransmitResult.Status.TIMEOUT, null, 0, 0, 0,
+		    "interrupted while waiting for a card");
+	}
 	long start = System.nanoTime();
-	if (VERBOSE) {
-		System.out.println("Sending @" + start + ": " + cmd);
+	long deadline = start + TimeUnit.MILLISECONDS.toNanos(policy.getServiceDeadline());
+	long attemptStart = start;
+	int attempts = 0;
+	TransmitResult.Status status = TransmitResult.Status.TIMEOUT;
+	String reason = null;
+
+	while (attempts <= policy.getMaxRetries()) {
+	    attemptStart = System.nanoTime();
+	    if (!connect(deadline)) {
+		status = TransmitResult.Status.TIMEOUT;
+		reason = "no card available before the deadline";
+		break;
+	    }
+	    attempts++;
+
+	    long timeout = Math.min(deadline - System.nanoTime(),
+		    TimeUnit.MILLISECONDS.toNanos(policy.getDeadline(cmd.getINS())));
+
+	    if (VERBOSE) {
+		System.out.println("Sending @" + System.nanoTime() + ": " + cmd);
 		byte[] buf = cmd.getBytes() ;
 		System.out.print(" - command bytes: ") ;
 		for (int i = 0 ; i < buf.length ; i++ )
 			System.out.format("%02x", buf[i]) ;
 		System.out.println("\n") ;
-	}
+	    }
 
-	ResponseAPDU resp = null;
-	try {
-	    resp = channel.transmit(cmd);
-	} catch (CardException e) {
-	    channel = null;
-	    System.err.println("transmit failed: ");
-	    e.printStackTrace();
-	}
-	long end = System.nanoTime();
-	if (VERBOSE) {
-		System.out.println("Received @" + end + ": " + resp);
-		byte[] buf = resp.getBytes() ;
-		System.out.print(" - command bytes: ") ;
-		for (int i = 0 ; i < buf.length ; i++ )
-			System.out.format("%02x", buf[i]) ;
-		System.out.println("\n") ;
+	    long sent = System.nanoTime();
+	    try {
+		ResponseAPDU resp = exchange(cmd, timeout);
+		long end = System.nanoTime();
+		if (VERBOSE) {
+			System.out.println("Received @" + end + ": " + resp);
+			byte[] buf = resp.getBytes() ;
+			System.out.print(" - command bytes: ") ;
+			for (int i = 0 ; i < buf.length ; i++ )
+				System.out.format("%02x", buf[i]) ;
+			System.out.println("\n") ;
+		}
+		if (VERBOSE || TIMING) 
+			System.out.format(" d = %.2f ms\n", (end - sent) / 1000000.0);
+		if (readers != null) readers.record(terminal, end - sent, timeout, true);
+		if (trace != null) trace.record(cmd.getINS(), cmd.getBytes(), resp.getBytes(), end - sent);
+
+		return new TransmitResult(TransmitResult.Status.OK, resp, attempts,
+			end - start, attemptStart - start, reason);
+	    } catch (TimeoutException e) {
+		status = TransmitResult.Status.TIMEOUT;
+		reason = "no response within " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms";
+	    } catch (CardException e) {
+		status = TransmitResult.Status.FAILED;
+		reason = e.getMessage();
+		disconnect();
+	    }
+	    if (trace != null) trace.record(cmd.getINS(), cmd.getBytes(), null, System.nanoTime() - sent);
+	    if (readers != null) {
+		readers.record(terminal, System.nanoTime() - sent, timeout, false);
+		readers.recordReconnect(terminal);
+	    }
+	    if (!policy.isRetryable(cmd.getINS())) {
+		// The card may have executed it, do not send it twice
+		break;
+	    }
 	}
-	if (VERBOSE || TIMING) 
-		System.out.format(" d = %.2f ms\n", (end - start) / 1000000.0);
 
-	return resp;
+	return new TransmitResult(status, null, attempts,
+		System.nanoTime() - start, attemptStart - start, reason);
     }
 
+    /**
+     * Set the deadlines and retry limits used for transmitting commands
+     */
+    public void setTransmitPolicy(TransmitPolicy policy) {
+	this.policy = policy;
+    }
+
+    public TransmitPolicy getTransmitPolicy() {
+	return policy;
+    }
+
+    /**
+     * The outcome of the most recent transmit, null if nothing was sent yet
+     */
+    public TransmitResult getLastResult() {
+	return lastResult;
+    }
 
     /**
      * Initialise the cryptographic parameters on the card
@@ -167,21 +410,22 @@ public class CardProxy implements CardInterface {
 
 	ECPoint key = null;
 
-	byte[][] data = { toAPDU(p), toAPDU(r), toAPDU(a), toAPDU(b),
-		toAPDU(g)};
-	CommandAPDU cmd = APDUprepare(INITIALISE, data, g.getEncoded().length);
+	codec.reset().putField(p).putField(r).putField(a).putField(b).putField(g);
+	CommandAPDU cmd = APDUprepare(INITIALISE, codec, g.getEncoded().length);
 
 	try {
 	    ResponseAPDU response = transmit(cmd);
-	    if (response.getSW() != 0x9000) {
+	    if (response == null) {
+		return null;
+	    }
+	    if (response.getSW() == SW_ALREADY_INITIALISED) {
+		// The parameters cannot be changed, the existing key stays valid
+		key = getCardKey(p, a, b, g);
+	    } else if (response.getSW() != 0x9000) {
 		System.err.println("Received SW: " + response.getSW());
 	    } else {
-		byte[] resp = response.getData();
 		ECCurve curve = new ECCurve.Fp(p, a, b);
-		int length = ((resp[0] << 8) | (resp[1] & 0xff));
-		byte[] pt = new byte[length];
-		System.arraycopy(resp, 2, pt, 0, length);
-		key = curve.decodePoint(pt);
+		key = APDUCodec.parse(response.getData(), 1).getPoint(0, curve);
 	    }
 	} catch (Exception e) {
 	    e.printStackTrace();
@@ -190,24 +434,51 @@ public class CardProxy implements CardInterface {
 	return key;
     }
 
+    /**
+     * Get the answer to reset of the card, used to identify the card
+     */
+    public byte[] getATR() {
+	if (!connect(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getServiceDeadline()))) {
+	    return null;
+	}
+	return channel.getCard().getATR().getBytes();
+    }
+
+    /**
+     * Wait until the card is taken away from the reader last used
+     *
+     * @param timeout Maximum time to wait (in ms)
+     * @return Whether the reader is empty
+     */
+    public boolean waitForCardAbsent(long timeout) {
+	if (terminal == null) {
+	    return true;
+	}
+	try {
+	    return CardPresenceMonitor.getDefault().awaitRemoval(terminal, timeout);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+    }
+
     public ECPoint getCardKey(BigInteger p, BigInteger a, BigInteger b, ECPoint g) {
         if (VERBOSE || TIMING) System.out.println("*** GET CARD PUBLIC KEY ***");
 
         ECPoint key = null;
 
-        CommandAPDU cmd = APDUprepare(GET_KEY, new byte[][]{}, g.getEncoded().length);
+        CommandAPDU cmd = APDUprepare(GET_KEY, codec.reset(), g.getEncoded().length);
 
         try {
             ResponseAPDU response = transmit(cmd);
+            if (response == null) {
+                return null;
+            }
             if (response.getSW() != 0x9000) {
                 System.err.println("Received SW: " + response.getSW());
             } else {
-                byte[] resp = response.getData();
                 ECCurve curve = new ECCurve.Fp(p, a, b);
-                int length = ((resp[0] << 8) | (resp[1] & 0xff));
-                byte[] pt = new byte[length];
-                System.arraycopy(resp, 2, pt, 0, length);
-                key = curve.decodePoint(pt);
+                key = APDUCodec.parse(response.getData(), 1).getPoint(0, curve);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -226,19 +497,14 @@ public class CardProxy implements CardInterface {
 	if (VERBOSE || TIMING) System.out.println("*** PERSONALISE ***");
 
 	int length = attribute.length;
-	byte[][] data = new byte[length * 3 + 1][];
-	data[0] = new byte[2];	
-	data[0][0] = (byte)((length & 0xFF00) >> 8);
-	data[0][1] = (byte)(length & 0xFF);
-	
+	codec.reset().putShort(length);
 	for (int i = 0; i < length; i++) {
-	    data[3*i + 1] = new byte[1];
-	    data[3*i + 1][0] = attribute_id[i];
-	    data[3*i + 2] = signature[i].getEncoded();
-	    data[3*i + 3] = toAPDU(attribute[i]);
+	    codec.put(attribute_id[i]);
+	    codec.putRaw(signature[i].getEncoded());
+	    codec.putField(attribute[i]);
 	}
 
-	CommandAPDU cmd = APDUprepare(PERSONALISE, data, 0);
+	CommandAPDU cmd = APDUprepare(PERSONALISE, codec, 0);
 
 	transmit(cmd);
     }
@@ -254,91 +520,41 @@ public class CardProxy implements CardInterface {
 
 	channel = null;
 	
-	byte[][] data = new byte[2][];
-	data[0] = new byte[1];
-	data[0][0] = a;
-	data[1] = toAPDU(N);
-	CommandAPDU cmd = APDUprepare(GET_ATTRIBUTE, data, 9);
+	CommandAPDU cmd = APDUprepare(GET_ATTRIBUTE, codec.reset().put(a).putField(N), 9);
 
 	BigInteger[] result = new BigInteger[4];
 	ResponseAPDU response = transmit(cmd);
+	if (response == null) {
+	    // Deadline passed or the card failed, the gate denies entry
+	    return null;
+	}
 	if (response.getSW() != 0x9000) {
 	    System.err.println("Request failed: " + response.getSW());
 	    result = null;
 	    channel = null;
 	} else {
-	    byte[] resp = response.getData();	
-	    int offset = 0;
-	    result[SIGNED_NONCE] = fromAPDU(resp, offset);
-	    offset += (result[SIGNED_NONCE].bitLength() + 7) / 8 + 2;
-	    result[BLINDED_KEY] = fromAPDU(resp, offset);
-	    offset += (result[BLINDED_KEY].bitLength() + 7) / 8 + 2;
-	    result[BLINDED_SIGNATURE] = fromAPDU(resp, offset);
-	    offset += (result[BLINDED_SIGNATURE].bitLength() + 7) / 8 + 2;
-	    result[ATTRIBUTE] = fromAPDU(resp, offset);
+	    // Fields are sent as: signed nonce, blinded key, blinded signature, attribute
+	    try {
+		APDUCodec.Fields resp = APDUCodec.parse(response.getData(), 4);
+		result[SIGNED_NONCE] = resp.getBigInteger(0);
+		result[BLINDED_KEY] = resp.getBigInteger(1);
+		result[BLINDED_SIGNATURE] = resp.getBigInteger(2);
+		result[ATTRIBUTE] = resp.getBigInteger(3);
+	    } catch (IllegalArgumentException e) {
+		// Short or garbled data, denied like a bad status word
+		System.err.println("Malformed response: " + e.getMessage());
+		result = null;
+		channel = null;
+	    }
 	}
 
 	return result;
     }
 
-    private byte[] toAPDU(BigInteger i) {
-	byte[] array = i.toByteArray();
-
-	int length = (i.bitLength() + 7) / 8;
-	if (length == 0) length++;
-	int offset = array.length - length;
-
-	byte[] result = new byte[length +2];
-	result[0] = (byte)((length & 0xff00) >> 8);
-	result[1] = (byte)(length & 0xff);	
-	System.arraycopy(array, offset, result, 2, length);	
-
-	return result;
-    }
-
-    @SuppressWarnings("unused")
-    private byte[] toAPDU(byte[] a) {
-	byte[] result = new byte[a.length + 2];
-	result[0] = (byte)((a.length & 0xFF00) >> 8);
-	result[1] = (byte)(a.length & 0xFF);	
-	System.arraycopy(a, 0, result, 2, a.length);
-	return result;
-    }
-
-    private BigInteger fromAPDU(byte[] array, int offset) {
-	int length = ((array[offset] << 8) | (array[offset + 1] & 0xff));
-	array[offset + 1] = 0x00;
-	return new BigInteger(Arrays.copyOfRange(array, offset + 1, offset + 2 + length));
-    }
-
-    private byte[] toAPDU(ECPoint p) {
-	byte[] array = p.getEncoded();
-
-	byte[] result = new byte[2 + array.length];
-	result[0] = (byte)(array.length >> 8);
-	result[1] = (byte)array.length ;	
-	System.arraycopy(array, 0, result, 2, array.length);	
-
-	return result;
-    }
-
-    private CommandAPDU APDUprepare(int[] c, byte[][] d, int e) {
-	int length = 0;
-	for (int i = 0; i < d.length; i++) {
-	    length += d[i].length;
-	}
-
-	byte[] data = new byte[length];
-	int offset = 0;
-	if (VERBOSE) System.out.print("data = { ");
-	for (int i = 0; i < d.length; i++) {
-	    if (VERBOSE) System.out.print(d[i].length + "@" + Integer.toHexString(offset & 0xff) + "; ");
-	    System.arraycopy(d[i], 0, data, offset, d[i].length);
-	    offset += d[i].length;
-	}
-	if (VERBOSE) System.out.println("}");
+    private CommandAPDU APDUprepare(int[] c, APDUCodec d, int e) {
+	if (VERBOSE) System.out.println("data = " + d.length() + " bytes");
 
-	return new CommandAPDU(c[0], c[1], c[2], c[3], data, e);
+	return new CommandAPDU(c[0], c[1], c[2], c[3], d.array(), 0, d.length(), e);
     }
 
     public static void printArray(byte[] array) {
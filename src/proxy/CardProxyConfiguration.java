@@ -23,4 +23,7 @@ package proxy;
 public class CardProxyConfiguration {
   public static int TERMINAL_ID = 1;
   public static boolean GUI_CHOOSE = true;
+  public static boolean FAILOVER = false;
+  public static String TRACE_FILE = null;
+  public static int TRACE_SIZE = 4 * 1024 * 1024;
 }
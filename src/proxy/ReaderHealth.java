@@ -0,0 +1,177 @@
+/**
+ * ReaderHealth.java
+ *
+ * Latency and error statistics of a single card reader
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package proxy;
+
+import java.util.Arrays;
+
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Keeps the outcome of the most recent APDU exchanges on a reader in a
+ * fixed size window, so that percentiles and the error rate reflect the
+ * current state of the reader rather than its whole history.
+ *
+ * Besides the latency, every exchange records its load: the latency as a
+ * fraction of the deadline of its INS code. Slow instructions such as
+ * INITIALISE then do not make a reader look worse than fast ones.
+ */
+public class ReaderHealth {
+
+    // Number of exchanges kept in the window
+    static final int WINDOW = 128;
+
+    private final CardTerminal terminal;
+
+    private final long[] latency = new long[WINDOW];
+    private final double[] load = new double[WINDOW];
+    private final boolean[] failed = new boolean[WINDOW];
+    private int next = 0;
+    private int samples = 0;
+    private int errors = 0;
+
+    private long exchanges = 0;
+    private long reconnects = 0;
+    private long quarantinedUntil = 0;
+    private int quarantines = 0;
+
+    public ReaderHealth(CardTerminal terminal) {
+        this.terminal = terminal;
+    }
+
+    public CardTerminal getTerminal() {
+        return terminal;
+    }
+
+    /**
+     * Record the outcome of an exchange
+     *
+     * @param nanos Time the exchange took (in ns)
+     * @param deadline Deadline of the INS code of the exchange (in ns)
+     * @param ok Whether a response was received in time
+     */
+    public synchronized void record(long nanos, long deadline, boolean ok) {
+        if (samples == WINDOW) {
+            if (failed[next]) errors--;
+        } else {
+            samples++;
+        }
+        latency[next] = nanos;
+        load[next] = deadline > 0 ? (double) nanos / deadline : 0;
+        failed[next] = !ok;
+        if (!ok) errors++;
+        next = (next + 1) % WINDOW;
+        exchanges++;
+    }
+
+    /**
+     * Record that the connection with the card had to be re-established
+     */
+    public synchronized void recordReconnect() {
+        reconnects++;
+    }
+
+    /**
+     * Latency percentile over the window (in ns), 0 without samples
+     *
+     * @param p Percentile between 0 and 100
+     */
+    public synchronized long percentile(double p) {
+        if (samples == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latency, samples);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100.0 * samples) - 1;
+        return sorted[Math.max(0, Math.min(index, samples - 1))];
+    }
+
+    /**
+     * Load percentile over the window: the latency as a fraction of the
+     * deadline of each exchange, 0 without samples
+     *
+     * @param p Percentile between 0 and 100
+     */
+    public synchronized double loadPercentile(double p) {
+        if (samples == 0) {
+            return 0;
+        }
+        double[] sorted = Arrays.copyOf(load, samples);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100.0 * samples) - 1;
+        return sorted[Math.max(0, Math.min(index, samples - 1))];
+    }
+
+    /**
+     * Fraction of failed exchanges in the window
+     */
+    public synchronized double errorRate() {
+        return samples == 0 ? 0.0 : (double) errors / samples;
+    }
+
+    public synchronized int getSamples() {
+        return samples;
+    }
+
+    public synchronized long getExchanges() {
+        return exchanges;
+    }
+
+    public synchronized long getReconnects() {
+        return reconnects;
+    }
+
+    public synchronized int getQuarantines() {
+        return quarantines;
+    }
+
+    /**
+     * When the quarantine ends (in ms since the epoch), in the past if the
+     * reader is not quarantined
+     */
+    public synchronized long getQuarantinedUntil() {
+        return quarantinedUntil;
+    }
+
+    public synchronized boolean isQuarantined(long now) {
+        return now < quarantinedUntil;
+    }
+
+    /**
+     * Take the reader out of service until the given time (in ms). The
+     * window is cleared, so the reader is judged afresh when it returns.
+     */
+    synchronized void quarantine(long until) {
+        quarantinedUntil = until;
+        quarantines++;
+        next = 0;
+        samples = 0;
+        errors = 0;
+    }
+
+    public String toString() {
+        return String.format("%s: p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, p95 load %.0f%%, errors %.1f%%, reconnects %d%s",
+                terminal.getName(), percentile(50) / 1000000.0,
+                percentile(95) / 1000000.0, percentile(99) / 1000000.0,
+                loadPercentile(95) * 100, errorRate() * 100, getReconnects(),
+                isQuarantined(System.currentTimeMillis()) ? " (quarantined)" : "");
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * ReaderPool.java
+ *
+ * Selection of a healthy reader among all attached readers
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CardTerminals.State;
+
+/**
+ * Tracks the health of every reader and hands out the best reader that
+ * holds a card. Readers whose 95th percentile load (latency relative to
+ * the deadline of each INS code) or error rate exceeds its threshold are
+ * quarantined for a while, so traffic moves to the remaining readers.
+ */
+public class ReaderPool {
+
+    // Minimum number of exchanges before a reader can be judged
+    private static final int MIN_SAMPLES = 16;
+
+    private final CardTerminals terminals;
+    private final List<ReaderHealth> readers = new ArrayList<ReaderHealth>();
+
+    private double loadThreshold = 0.5;         // half the INS deadline
+    private double errorThreshold = 0.2;
+    private long quarantineTime = 30000;        // 30 s
+
+    public ReaderPool(CardTerminals terminals) throws CardException {
+        this.terminals = terminals;
+        for (CardTerminal t : terminals.list()) {
+            readers.add(new ReaderHealth(t));
+        }
+    }
+
+    /**
+     * Set the p95 load (the fraction of the INS deadline used, 0..1)
+     * above which a reader is quarantined
+     */
+    public void setLoadThreshold(double fraction) {
+        loadThreshold = fraction;
+    }
+
+    /**
+     * Set the error rate (0..1) above which a reader is quarantined
+     */
+    public void setErrorThreshold(double rate) {
+        errorThreshold = rate;
+    }
+
+    /**
+     * Set how long a quarantined reader stays out of service (in ms)
+     */
+    public void setQuarantineTime(long millis) {
+        quarantineTime = millis;
+    }
+
+    public synchronized List<ReaderHealth> getReaders() {
+        return new ArrayList<ReaderHealth>(readers);
+    }
+
+    /**
+     * The health record of the given reader, created on first use
+     */
+    public synchronized ReaderHealth getHealth(CardTerminal terminal) {
+        for (ReaderHealth h : readers) {
+            if (h.getTerminal().getName().equals(terminal.getName())) {
+                return h;
+            }
+        }
+        ReaderHealth h = new ReaderHealth(terminal);
+        readers.add(h);
+        return h;
+    }
+
+    /**
+     * Record an exchange on a reader and quarantine it if it degraded
+     *
+     * @param nanos Time the exchange took (in ns)
+     * @param deadline Deadline of the INS code of the exchange (in ns)
+     * @param ok Whether a response was received in time
+     */
+    public void record(CardTerminal terminal, long nanos, long deadline, boolean ok) {
+        ReaderHealth h = getHealth(terminal);
+        h.record(nanos, deadline, ok);
+        if (h.getSamples() >= MIN_SAMPLES
+                && (h.loadPercentile(95) > loadThreshold || h.errorRate() > errorThreshold)) {
+            System.err.println("Quarantining reader " + h);
+            h.quarantine(System.currentTimeMillis() + quarantineTime);
+        }
+    }
+
+    public void recordReconnect(CardTerminal terminal) {
+        getHealth(terminal).recordReconnect();
+    }
+
+    /**
+     * Wait for a card on any reader that is not quarantined. Changes are
+     * taken from the shared presence monitor, a second waitForChange()
+     * would take events away from it. When the only cards are on
+     * quarantined readers, the wait also ends when the first quarantine
+     * does, as no event marks that.
+     *
+     * @param timeout Maximum time to wait (in ms), 0 waits indefinitely
+     * @return The healthiest reader holding a card, null on timeout
+     */
+    public CardTerminal awaitReader(long timeout) throws CardException {
+        long deadline = System.currentTimeMillis() + timeout;
+        CardPresenceMonitor monitor = CardPresenceMonitor.getDefault();
+        while (true) {
+            long seen = monitor.getChanges();
+            CardTerminal best = select();
+            if (best != null) {
+                return best;
+            }
+            long now = System.currentTimeMillis();
+            long remaining = timeout == 0 ? 0 : deadline - now;
+            if (timeout != 0 && remaining <= 0) {
+                return null;
+            }
+            long wait = remaining;
+            long release = nextRelease(now);
+            boolean released = release > 0 && (timeout == 0 || release - now < remaining);
+            if (released) {
+                wait = Math.max(1, release - now);
+            }
+            try {
+                boolean changed = monitor.awaitChange(seen, wait);
+                if (!changed && !monitor.isRunning()) {
+                    // Monitor stopped, wait on the readers themselves
+                    changed = terminals.waitForChange(wait);
+                }
+                if (!changed && !released) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * When the first quarantine of a reader holding a card ends, 0 if no
+     * such reader is quarantined
+     */
+    private long nextRelease(long now) throws CardException {
+        long first = 0;
+        for (CardTerminal t : terminals.list(State.CARD_PRESENT)) {
+            long until = getHealth(t).getQuarantinedUntil();
+            if (until > now && (first == 0 || until < first)) {
+                first = until;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * The healthiest reader that currently holds a card, if any. Readers
+     * that have not been used yet are preferred, so they get measured.
+     */
+    public CardTerminal select() throws CardException {
+        long now = System.currentTimeMillis();
+        ReaderHealth best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (CardTerminal t : terminals.list(State.CARD_PRESENT)) {
+            ReaderHealth h = getHealth(t);
+            if (h.isQuarantined(now)) {
+                continue;
+            }
+            double load = h.loadPercentile(95);
+            if (best == null || load < bestLoad) {
+                best = h;
+                bestLoad = load;
+            }
+        }
+        return best == null ? null : best.getTerminal();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * TransmitPolicy.java
+ *
+ * Deadlines and retry limits for the APDUs sent by the CardProxy
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package proxy;
+
+/**
+ * Every APDU gets a deadline depending on its INS code. Failed or timed
+ * out exchanges are retried at most maxRetries times, and never beyond the
+ * service deadline, so a single transmit always finishes within the
+ * service deadline regardless of the state of the card or reader.
+ *
+ * Only idempotent instructions are retried: a timed out command may have
+ * been executed by the card, and repeating e.g. PERSONALISE would change
+ * its state twice. By default no instruction is retryable.
+ */
+public class TransmitPolicy {
+
+    // Default deadline for INS codes without an explicit deadline (in ms)
+    private static final long DEFAULT_DEADLINE = 1000;
+
+    private final long[] deadline = new long[256];
+    private final boolean[] retryable = new boolean[256];
+    private int maxRetries = 2;
+    private long serviceDeadline = 3000;
+
+    public TransmitPolicy() {
+        for (int i = 0; i < deadline.length; i++) {
+            deadline[i] = DEFAULT_DEADLINE;
+        }
+    }
+
+    /**
+     * The policy used by the gate: on-card key generation is slow, the
+     * proof exchange has to be fast.
+     */
+    public static TransmitPolicy getDefault() {
+        TransmitPolicy policy = new TransmitPolicy();
+        policy.setDeadline(0xA4, 500);  // SELECT
+        policy.setDeadline(0x01, 3000); // INITIALISE
+        policy.setDeadline(0x02, 2000); // PERSONALISE
+        policy.setDeadline(0x03, 1000); // GET_ATTRIBUTE
+        policy.setDeadline(0x04, 500);  // GET_KEY
+        policy.setDeadline(0x05, 1000); // COMPUTE_DH
+        policy.setRetryable(0xA4, true);
+        policy.setRetryable(0x03, true);
+        policy.setRetryable(0x04, true);
+        policy.setRetryable(0x05, true);
+        return policy;
+    }
+
+    /**
+     * Set the deadline for a single exchange of the given INS code (in ms)
+     */
+    public void setDeadline(int ins, long millis) {
+        deadline[ins & 0xff] = millis;
+    }
+
+    public long getDeadline(int ins) {
+        return deadline[ins & 0xff];
+    }
+
+    /**
+     * Set whether the given INS code may be sent again after a failure,
+     * only for commands that can be repeated without side effects
+     */
+    public void setRetryable(int ins, boolean retry) {
+        retryable[ins & 0xff] = retry;
+    }
+
+    public boolean isRetryable(int ins) {
+        return retryable[ins & 0xff];
+    }
+
+    /**
+     * Set the number of retries after a failed or timed out exchange
+     */
+    public void setMaxRetries(int retries) {
+        maxRetries = retries;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Set the maximum time a transmit may take including reconnects and
+     * retries (in ms)
+     */
+    public void setServiceDeadline(long millis) {
+        serviceDeadline = millis;
+    }
+
+    public long getServiceDeadline() {
+        return serviceDeadline;
+    }
+}
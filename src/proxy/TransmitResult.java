@@ -0,0 +1,103 @@
+/**
+ * TransmitResult.java
+ *
+ * Outcome of a CardProxy transmit with deadlines and retries
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package proxy;
+
+import javax.smartcardio.ResponseAPDU;
+
+public class TransmitResult {
+
+    public enum Status {
+        /** A response was received */
+        OK,
+        /** The deadline passed before a response was received */
+        TIMEOUT,
+        /** The card or reader failed and the retries were exhausted */
+        FAILED
+    }
+
+    private final Status status;
+    private final ResponseAPDU response;
+    private final int attempts;
+    private final long elapsed;
+    private final long recovery;
+    private final String reason;
+
+    TransmitResult(Status status, ResponseAPDU response, int attempts,
+            long elapsed, long recovery, String reason) {
+        this.status = status;
+        this.response = response;
+        this.attempts = attempts;
+        this.elapsed = elapsed;
+        this.recovery = recovery;
+        this.reason = reason;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isOK() {
+        return status == Status.OK;
+    }
+
+    /**
+     * The response of the card, null unless the status is OK
+     */
+    public ResponseAPDU getResponse() {
+        return response;
+    }
+
+    /**
+     * The number of exchanges attempted, including the successful one
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Total time spent in transmit (in ns)
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Time spent on failed attempts and reconnects before the final
+     * attempt (in ns), zero if the first attempt succeeded
+     */
+    public long getRecoveryTime() {
+        return recovery;
+    }
+
+    /**
+     * Description of the last failure, null if there was none
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public String toString() {
+        return String.format("%s after %d attempt(s), %.2f ms (recovery %.2f ms)%s",
+                status, attempts, elapsed / 1000000.0, recovery / 1000000.0,
+                reason == null ? "" : ": " + reason);
+    }
+}
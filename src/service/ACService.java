@@ -23,7 +23,6 @@ package service;
 
 import java.math.BigInteger;
 import java.security.SecureRandom;
-import java.util.Arrays;
 
 import org.bouncycastle.jce.spec.ECParameterSpec;
 import org.bouncycastle.math.ec.ECCurve;
@@ -40,6 +39,11 @@ import net.sourceforge.scuba.smartcards.CardServiceException;
 import net.sourceforge.scuba.smartcards.CommandAPDU;
 import net.sourceforge.scuba.smartcards.ResponseAPDU;
 import net.sourceforge.scuba.util.Hex;
+import card.APDUCodec;
+import card.APDUTraceRecorder;
+import card.CardInterface;
+import card.PairingParameters;
+import card.PointTable;
 
 public class ACService extends CardService {
 
@@ -49,7 +53,7 @@ public class ACService extends CardService {
 
     private static final int[] INITIALISE = { 0x00, 0x01, 0x00, 0x00 };
     private static final int[] PERSONALISE = { 0x00, 0x02, 0x00, 0x00 };
-    private static final int[] GET_ATTRIBUTE = { 0x00, 0x03, 0x00, 0x00 };
+    static final int[] GET_ATTRIBUTE = { 0x00, 0x03, 0x00, 0x00 };
     private static final int[] GET_KEY = { 0x00, 0x04, 0x00, 0x00 };
     private static final int[] COMPUTE_DH = { 0x00, 0x05, 0x00, 0x00 };
     
@@ -61,11 +65,18 @@ public class ACService extends CardService {
 
     protected CardService service;
 
+    private final APDUCodec codec = new APDUCodec();
+
+    private SecureRandom random = new SecureRandom();
+
     static final int ATTRIBUTE_COUNT = 4;
     /**
      * Control the amount of output generated by this class.
      */
-    private static final boolean VERBOSE = true;
+    private static final boolean VERBOSE = false;
+
+    // Binary trace of all exchanges, null when tracing is off
+    private APDUTraceRecorder trace = null;
 
     // The length of the keys which is used
     public static final int KEY_LENGTH = 160;
@@ -90,7 +101,14 @@ public class ACService extends CardService {
     }
 
     public ACService(byte[][] attrValues) {
-        c = constructCurve(KEY_LENGTH);
+        this(attrValues, KEY_LENGTH);
+    }
+
+    /**
+     * @param keyLength Length of the curve (in bits): 128, 160, 192 or 224
+     */
+    public ACService(byte[][] attrValues, int keyLength) {
+        c = constructCurve(keyLength);
         System.out.println("P:" + Hex.toHexString(c.getP().toByteArray()));
         System.out.println("R:" + Hex.toHexString(c.getR().toByteArray()));
         System.out.println("A:" + Hex.toHexString(c.getA().toBigInteger().toByteArray()));
@@ -119,7 +137,11 @@ public class ACService extends CardService {
     }
 
     public ACService(CardService service, byte[][] attrValues) {
-        this(attrValues);
+        this(service, attrValues, KEY_LENGTH);
+    }
+
+    public ACService(CardService service, byte[][] attrValues, int keyLength) {
+        this(attrValues, keyLength);
         this.service = service;
     }
 
@@ -211,11 +233,8 @@ public class ACService extends CardService {
                             "3154781622325109970942793240041155216575064371213525353572"));
             break;
         default:
-            Qx1 = null;
-            Qx2 = null;
-            Qy1 = null;
-            Qy2 = null;
-            break;
+            // No hard-coded point, derive one
+            return PairingParameters.fixedPoint(curve);
         }
 
         ECFieldElementFp2 Qx = new ECFieldElementFp2(Qx1, Qx2, true);
@@ -228,7 +247,7 @@ public class ACService extends CardService {
     /**
      * Construct a number of private attribute keys for the given curve
      */
-    static private BigInteger[] constructPrivateAttributeKeys(ECCurve.Fp curve) {
+    static private BigInteger[] constructPrivateAttributeKeys(ECCurveWithPairing curve) {
         BigInteger[] private_key;
 
         private_key = new BigInteger[4];
@@ -264,6 +283,8 @@ public class ACService extends CardService {
                     "2662731123551621877786553098979283273055334939330269203348");
             break;
         default:
+            // No hard-coded keys, derive them
+            private_key = PairingParameters.attributeKeys(curve, 4);
             break;
         }
 
@@ -284,29 +305,31 @@ public class ACService extends CardService {
     public ECPoint initialiseCard() {
 
         ECPoint key = null;
-        
-        byte[][] data = { toAPDU(c.getP()), toAPDU(c.getR()),
-                toAPDU(c.getA().toBigInteger()),
-                toAPDU(c.getB().toBigInteger()), toAPDU(c.getG()) };
-        CommandAPDU cmd = APDUprepare(INITIALISE, data, null);
+
+        codec.reset().putField(c.getP()).putField(c.getR())
+                .putField(c.getA().toBigInteger())
+                .putField(c.getB().toBigInteger()).putField(c.getG());
+        CommandAPDU cmd = APDUprepare(INITIALISE, codec, null);
 
         try {
             ResponseAPDU response = transmit(cmd);
             if (response.getSW() != 0x9000) {
-                if (response.getSW() == 0x6985) {
+                if (response.getSW() == CardInterface.SW_ALREADY_INITIALISED) {
+                    // The existing key stays valid
                     System.err.println("Card already initialised, ignoring.");
+                    key = requestCardKey();
                 } else {
                     System.err.println("Received SW: " + response.getSW());
                 }
-            } else {/*
-                byte[] resp = response.getData();
+            } else if (response.getData().length == 0) {
+                key = requestCardKey();
+            } else {
+                // A new card returns its key, no GET_KEY needed
                 ECCurve curve = new ECCurve.Fp(c.getP(), c.getA()
                         .toBigInteger(), c.getB().toBigInteger());
-                int length = ((resp[0] << 8) | (resp[1] & 0xff));
-                byte[] pt = new byte[length];
-                System.arraycopy(resp, 2, pt, 0, length);
-                key = curve.decodePoint(pt);*/
+                key = APDUCodec.parse(response.getData(), 1).getPoint(0, curve);
             }
+            Pc = key;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -316,23 +339,31 @@ public class ACService extends CardService {
     }
 
     public ECPoint getCardKey() {
+        return getCardKey(true);
+    }
+
+    /**
+     * Get the card key without reporting a failure, the card may not be
+     * initialised yet
+     */
+    private ECPoint requestCardKey() {
+        return getCardKey(false);
+    }
+
+    private ECPoint getCardKey(boolean report) {
 
         ECPoint key = null;
 
-        CommandAPDU cmd = APDUprepare(GET_KEY, new byte[][] {}, 256);
+        CommandAPDU cmd = APDUprepare(GET_KEY, codec.reset(), 256);
 
         try {
             ResponseAPDU response = transmit(cmd);
             if (response.getSW() != 0x9000) {
-                System.err.println("Received SW: " + response.getSW());
+                if (report) System.err.println("Received SW: " + response.getSW());
             } else {
-                byte[] resp = response.getData();
                 ECCurve curve = new ECCurve.Fp(c.getP(), c.getA()
                         .toBigInteger(), c.getB().toBigInteger());
-                int length = ((resp[0] << 8) | (resp[1] & 0xff));
-                byte[] pt = new byte[length];
-                System.arraycopy(resp, 2, pt, 0, length);
-                key = curve.decodePoint(pt);
+                key = APDUCodec.parse(response.getData(), 1).getPoint(0, curve);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -342,38 +373,45 @@ public class ACService extends CardService {
 
     }
 
-    public void personalise(byte[] attribute_id) throws CardServiceException {
-        ECPoint card_key = getCardKey();
-
-        ECPoint[] cert = constructCertificates(sa, card_key);
+    /**
+     * The index of the attribute with the given id, -1 if there is none
+     */
+    public int getAttributeIndex(byte id) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].id == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        // Select the requested attributes and certificates for personalisation
+    public void personalise(byte[] attribute_id) throws CardServiceException {
+        // Select the requested attributes, only their certificates are needed
         byte[][] attribute = new byte[attribute_id.length][];
-        ECPoint[] certificate = new ECPoint[attribute_id.length];
+        int[] selected = new int[attribute_id.length];
 
         for (int i = 0; i < attribute_id.length; i++) {
-
-            int j = 0;
-            while (j < a.length && attribute_id[i] != a[j].id)
-                j++;
+            int j = getAttributeIndex(attribute_id[i]);
+            if (j < 0) {
+                throw new CardServiceException("Unknown attribute ID: " + attribute_id[i]);
+            }
             attribute[i] = a[j].value;
-            certificate[i] = cert[j];
+            selected[i] = j;
         }
 
-        int length = attribute.length;
-        byte[][] data = new byte[length * 3 + 1][];
-        data[0] = new byte[2];
-        data[0][0] = (byte) ((length & 0xFF00) >> 8);
-        data[0][1] = (byte) (length & 0xFF);
+        // The key is already known if the card was initialised in this session
+        ECPoint card_key = (Pc != null) ? Pc : getCardKey();
+        ECPoint[] certificate = constructCertificates(sa, selected, card_key);
 
+        int length = attribute.length;
+        codec.reset().putShort(length);
         for (int i = 0; i < length; i++) {
-            data[3 * i + 1] = new byte[1];
-            data[3 * i + 1][0] = attribute_id[i];
-            data[3 * i + 2] = certificate[i].getEncoded();
-            data[3 * i + 3] = toAPDU(attribute[i]);
+            codec.put(attribute_id[i]);
+            codec.putRaw(certificate[i].getEncoded());
+            codec.putField(attribute[i]);
         }
 
-        CommandAPDU cmd = APDUprepare(PERSONALISE, data, null);
+        CommandAPDU cmd = APDUprepare(PERSONALISE, codec, null);
         transmit(cmd);
 
     }
@@ -385,15 +423,19 @@ public class ACService extends CardService {
         public byte[] attributeValue;
     }
 
+    // Field indices of the GET_ATTRIBUTE response
+    static final int RESPONSE_SIGNED_NONCE = 0;
+    static final int RESPONSE_BLINDED_KEY = 1;
+    static final int RESPONSE_BLINDED_SIGNATURE = 2;
+    static final int RESPONSE_ATTRIBUTE = 3;
+
     public void testDH() throws CardServiceException {
     	initialiseCard();
     	
     	BigInteger x = new BigInteger(
                 "186811774159849458934010617336619260142261775654");
-    	byte[][] data = new byte[2][];
-        data[0] = toAPDU(x);
-        data[1] = toAPDU(c.getG());
-        CommandAPDU cmd = APDUprepare(COMPUTE_DH, data, 256);
+        codec.reset().putField(x).putField(c.getG());
+        CommandAPDU cmd = APDUprepare(COMPUTE_DH, codec, 256);
         ResponseAPDU response = transmit(cmd);
         if (response.getSW() != 0x9000) {
             System.err.println("Request failed: " + response.getSW());
@@ -406,54 +448,39 @@ public class ACService extends CardService {
         }
     }
     
+    /**
+     * Use the given source for the nonces, e.g. one with a fixed seed
+     */
+    public void setRandom(SecureRandom random) {
+        this.random = random;
+    }
+
     public AnonymousCertificate proveAttribute(int attrIndex)
             throws CardServiceException {
-        BigInteger N = BigInteger.probablePrime(127, new SecureRandom());
+        BigInteger N = BigInteger.probablePrime(127, random);
         ECPoint nonce = c.getG().multiply(N);
 
-        byte[][] data = new byte[2][];
-        data[0] = new byte[1];
-        data[0][0] = a[attrIndex].id;
-        data[1] = toAPDU(nonce);
-        CommandAPDU cmd = APDUprepare(GET_ATTRIBUTE, data, null);
+        codec.reset().put(a[attrIndex].id).putField(nonce);
+        CommandAPDU cmd = APDUprepare(GET_ATTRIBUTE, codec, null);
 
         AnonymousCertificate result = new AnonymousCertificate();
         ResponseAPDU response = transmit(cmd);
         if (response.getSW() != 0x9000) {
             System.err.println("Request failed: " + response.getSW());
             return null;
-        } else {
-            byte[] resp = response.getData();
-            int length, offset = 0;
-            length = ((resp[offset] << 8) | (resp[offset + 1] & 0xff));
-            result.signedNonce = fromAPDU(resp, offset);
-            offset += length + 2;
-            System.out.println("signedNonce: " + Hex.toHexString(result.signedNonce.toByteArray()));
-
-            length = ((resp[offset] << 8) | (resp[offset + 1] & 0xff));
-            result.blindedKey = fromAPDU(resp, offset);
-            offset += length + 2;
-            System.out.println("blindedKey:  " + Hex.toHexString(result.blindedKey.toByteArray()));
-            
-            length = ((resp[offset] << 8) | (resp[offset + 1] & 0xff));
-            result.blindedSignature = fromAPDU(resp, offset);
-            offset += length + 2;
-            System.out.println("blindedSig:  " + Hex.toHexString(result.blindedSignature.toByteArray()));
-            
-            length = ((resp[offset] << 8) | (resp[offset + 1] & 0xff));
-            offset += 2;
-            result.attributeValue = new byte[length];
-            System.arraycopy(resp, offset, result.attributeValue, 0, length);
-            System.out.println("attribVal:   " + Hex.toHexString(result.attributeValue));
         }
 
-        System.out.println("signedNonce: " + result.signedNonce);
-        System.out.println("blindedKey:  " + result.blindedKey);
-        System.out.println("blindedSig:  " + result.blindedSignature);
-        System.out.println("attribVal:   " + new String(result.attributeValue));
+        // Only offsets are computed here, values are decoded when checked
+        APDUCodec.Fields resp = APDUCodec.parse(response.getData(), 4);
 
         // *** NONCE SIGNATURE VERIFICATION ***
         long start = System.nanoTime();
+        result.signedNonce = resp.getBigInteger(RESPONSE_SIGNED_NONCE);
+        result.blindedKey = resp.getBigInteger(RESPONSE_BLINDED_KEY);
+        if (VERBOSE) {
+            System.out.println("signedNonce: " + result.signedNonce);
+            System.out.println("blindedKey:  " + result.blindedKey);
+        }
         ECPoint sn = reconstructPoint(c, result.signedNonce, false);
         ECPoint bk = reconstructPoint(c, result.blindedKey, false);
 
@@ -471,6 +498,8 @@ public class ACService extends CardService {
         // *** PAIRING SIGNATURE VERIFICATION ***
         ECFieldElement e1 = c.R_atePairing(bk, saQ[attrIndex]);
 
+        result.blindedSignature = resp.getBigInteger(RESPONSE_BLINDED_SIGNATURE);
+        if (VERBOSE) System.out.println("blindedSig:  " + result.blindedSignature);
         ECPoint bs = reconstructPoint(c, result.blindedSignature, false);
         ECFieldElement e2 = c.R_atePairing(bs, Q);
 
@@ -488,10 +517,13 @@ public class ACService extends CardService {
         
         long end = System.nanoTime();
         System.out.format(" d = %.2f ms\n", (end - start) / 1000000.0);
+
+        result.attributeValue = resp.getBytes(RESPONSE_ATTRIBUTE);
+        if (VERBOSE) System.out.println("attribVal:   " + Hex.toHexString(result.attributeValue));
         return result;
     }
 
-    private static ECPoint reconstructPoint(ECCurve c, BigInteger i,
+    static ECPoint reconstructPoint(ECCurve c, BigInteger i,
             boolean negate) {
         ECFieldElement x = c.fromBigInteger(i);
         ECFieldElement y = x.multiply(x).multiply(x).add(c.getA().multiply(x))
@@ -504,26 +536,42 @@ public class ACService extends CardService {
         }
     }
 
-    static private ECPoint[] constructCertificates(BigInteger[] private_key,
-            ECPoint public_key) {
-        ECPoint[] certificate = new ECPoint[private_key.length];
+    /**
+     * The certificates of the selected attributes, sharing one window
+     * table of the card key
+     */
+    static ECPoint[] constructCertificates(BigInteger[] private_key,
+            int[] selected, ECPoint public_key) {
+        ECPoint[] certificate = new ECPoint[selected.length];
+        PointTable table = new PointTable(public_key, public_key.getCurve().getFieldSize());
 
-        for (int i = 0; i < private_key.length; i++) {
-            certificate[i] = public_key.multiply(private_key[i]);
+        for (int i = 0; i < selected.length; i++) {
+            certificate[i] = table.multiply(private_key[selected[i]]);
         }
 
         return certificate;
     }
 
+    /**
+     * Add a listener, it is notified outside of the transmitting thread
+     */
     public void addAPDUListener(APDUListener l) {
-        service.addAPDUListener(l);
+        service.addAPDUListener(new AsyncAPDUListener(l));
     }
 
     public void removeAPDUListener(APDUListener l) {
-        service.removeAPDUListener(l);
+        service.removeAPDUListener(new AsyncAPDUListener(l));
+    }
+
+    /**
+     * Record all exchanges in the given trace, null disables tracing
+     */
+    public void setTraceRecorder(APDUTraceRecorder trace) {
+        this.trace = trace;
     }
 
     public void close() {
+        Pc = null;
         if (service != null) {
             service.close();
         }
@@ -534,6 +582,7 @@ public class ACService extends CardService {
     }
 
     public void open() throws CardServiceException {
+        Pc = null;
         if (!service.isOpen()) {
             service.open();
         }
@@ -566,7 +615,12 @@ public class ACService extends CardService {
 
         long start = System.nanoTime();
         ResponseAPDU rapdu = service.transmit(capdu);
-        long duration = (System.nanoTime() - start)/1000000;
+        long elapsed = System.nanoTime() - start;
+        long duration = elapsed/1000000;
+
+        if (trace != null) {
+            trace.record(capdu.getINS(), capdu.getBytes(), rapdu.getBytes(), elapsed);
+        }
 
         if (VERBOSE) {
             System.out.println(" duration: " + duration + " ms");
@@ -576,70 +630,11 @@ public class ACService extends CardService {
         return rapdu;
     }
 
-    private byte[] toAPDU(ECPoint p) {
-        byte[] array = p.getEncoded();
-
-        byte[] result = new byte[2 + array.length];
-        result[0] = (byte) (array.length >> 8);
-        result[1] = (byte) array.length;
-        System.arraycopy(array, 0, result, 2, array.length);
-
-        return result;
-    }
-
-    private byte[] toAPDU(BigInteger i) {
-        byte[] array = i.toByteArray();
-
-        int length = (i.bitLength() + 7) / 8;
-        if (length == 0)
-            length++;
-        int offset = array.length - length;
-
-        byte[] result = new byte[length + 2];
-        result[0] = (byte) ((length & 0xff00) >> 8);
-        result[1] = (byte) (length & 0xff);
-        System.arraycopy(array, offset, result, 2, length);
-        System.out.println("[toAPDU] length: " + length + " value: " + Hex.toHexString(array) + " result: " + Hex.toHexString(result));
-
-        return result;
-    }
-
-    private byte[] toAPDU(byte[] value) {
-        int length = value.length;
-        byte[] result = new byte[length + 2];
-        result[0] = (byte) ((length & 0xff00) >> 8);
-        result[1] = (byte) (length & 0xff);
-        System.arraycopy(value, 0, result, 2, length);
-        System.out.println("[toAPDU] length: " + length + " value: " + Hex.toHexString(value) + " result: " + Hex.toHexString(result));
-
-        return result;
-    }
-
-    private BigInteger fromAPDU(byte[] array, int offset) {
-        int length = ((array[offset] << 8) | (array[offset + 1] & 0xff));
-        System.out.println("[fromAPDU] length: " + length + " offset: " + offset + " value: " + Hex.toHexString(array));
-        array[offset + 1] = 0x00;
-        return new BigInteger(Arrays.copyOfRange(array, offset + 1, offset + 2
-                + length));
-    }
-
-    private CommandAPDU APDUprepare(int[] c, byte[][] d, Integer le) {
-        int length = 0;
-        for (int i = 0; i < d.length; i++) {
-            length += d[i].length;
-        }
-
-        byte[] data = new byte[length];
-        int offset = 0;
-        for (int i = 0; i < d.length; i++) {
-            System.arraycopy(d[i], 0, data, offset, d[i].length);
-            offset += d[i].length;
-        }
-
+    static CommandAPDU APDUprepare(int[] c, APDUCodec d, Integer le) {
         if (le == null) {
-        	return new CommandAPDU(c[0], c[1], c[2], c[3], data);
+        	return new CommandAPDU(c[0], c[1], c[2], c[3], d.array(), 0, d.length());
         } else {
-        	return new CommandAPDU(c[0], c[1], c[2], c[3], data, le);
+        	return new CommandAPDU(c[0], c[1], c[2], c[3], d.array(), 0, d.length(), le);
         }
     }
 
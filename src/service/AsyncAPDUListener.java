@@ -0,0 +1,77 @@
+/**
+ * AsyncAPDUListener.java
+ *
+ * Delivers APDU events to a listener outside of the transmitting thread
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.sourceforge.scuba.smartcards.APDUEvent;
+import net.sourceforge.scuba.smartcards.APDUListener;
+
+/**
+ * Wraps an APDUListener so that its callback runs on a shared dispatch
+ * thread. The card service only pays for queueing the event; events are
+ * still delivered in the order in which they were exchanged.
+ */
+public class AsyncAPDUListener implements APDUListener {
+
+    private static final ExecutorService dispatcher =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "APDUListener-dispatch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final APDUListener listener;
+
+    public AsyncAPDUListener(APDUListener listener) {
+        this.listener = listener;
+    }
+
+    public APDUListener getListener() {
+        return listener;
+    }
+
+    public void exchangedAPDU(final APDUEvent e) {
+        dispatcher.execute(new Runnable() {
+            public void run() {
+                try {
+                    listener.exchangedAPDU(e);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof AsyncAPDUListener
+                && ((AsyncAPDUListener) o).listener.equals(listener);
+    }
+
+    public int hashCode() {
+        return listener.hashCode();
+    }
+}
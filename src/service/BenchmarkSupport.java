@@ -0,0 +1,76 @@
+/**
+ * BenchmarkSupport.java
+ *
+ * Helpers shared by the benchmarks and load tools
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package service;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Helpers shared by the benchmarks and load tools
+ */
+public class BenchmarkSupport {
+
+    /**
+     * Discards everything written to it
+     */
+    public static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Discard System.out: the pairing library prints its progress there,
+     * which would dominate the timings and bury the report
+     *
+     * @return The original System.out, for the report
+     */
+    public static PrintStream discardStdout() {
+        PrintStream out = System.out;
+        System.setOut(DISCARD);
+        return out;
+    }
+
+    /**
+     * Source of benchmark inputs: a SHA1PRNG with the given seed, so runs
+     * can be repeated, or a fresh SecureRandom for a null seed
+     */
+    public static SecureRandom random(Long seed) {
+        if (seed == null) {
+            return new SecureRandom();
+        }
+        try {
+            SecureRandom r = SecureRandom.getInstance("SHA1PRNG");
+            r.setSeed(seed);
+            return r;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/**
+ * CryptoBenchmark.java
+ *
+ * Measures the crypto and codec hot paths for every key length
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package service;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import card.APDUCodec;
+import card.PairingParameters;
+
+/**
+ * Benchmarks in the manner of JMH, without needing it on the class path:
+ * every benchmark is warmed up first, then run for a number of timed
+ * iterations, and the mean time per operation is reported with the
+ * spread over the iterations and the bytes allocated per operation
+ * (from the HotSpot ThreadMXBean). Results go into a volatile field so
+ * the JIT cannot drop the work.
+ *
+ * Inputs are drawn before the measurement from a SHA1PRNG, so with
+ * --seed a run uses exactly the same points and scalars every time;
+ * the emulated card for proveAttribute then uses the same seed too.
+ *
+ * The pairing library prints progress to System.out; output is
+ * discarded while the benchmarks run. The report goes to System.err, or
+ * as CSV to System.out with --csv.
+ */
+public class CryptoBenchmark {
+
+    // Key lengths supported by ACService
+    static final int[] KEY_LENGTHS = { 128, 160, 192, 224 };
+
+    // Different inputs per benchmark, used in turn
+    private static final int INPUTS = 16;
+
+    private static volatile Object blackhole;
+
+    /**
+     * One operation to measure
+     */
+    static abstract class Benchmark {
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        abstract Object run(int i) throws Exception;
+    }
+
+    /**
+     * Outcome of a benchmark: mean and spread per operation (in ns) and
+     * allocation per operation (in bytes)
+     */
+    static class Result {
+        String name;
+        int keyLength;
+        long operations;
+        double mean;
+        double error;
+        double allocated;
+    }
+
+    private final int warmup;
+    private final int iterations;
+    private final long time;
+    private final Long seed;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * @param warmup Number of warm-up iterations
+     * @param iterations Number of measured iterations
+     * @param time Length of an iteration (in ms)
+     * @param seed Seed for all inputs, null for fresh ones
+     */
+    public CryptoBenchmark(int warmup, int iterations, long time, Long seed) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.time = time;
+        this.seed = seed;
+    }
+
+    /**
+     * The benchmarks for one key length
+     */
+    List<Benchmark> benchmarks(int keyLength) throws Exception {
+        final SecureRandom random = BenchmarkSupport.random(seed);
+        final ACService ac = new ACService(new EmulatedCardService(
+                seed == null ? random.nextLong() : seed), null, keyLength);
+        ac.setRandom(random);
+        final ECPoint G = ac.c.getG();
+        final BigInteger r = ac.c.getR();
+
+        // Inputs as the verifier sees them: nonces, blinded keys and their x
+        final BigInteger[] N = new BigInteger[INPUTS];
+        final ECPoint[] bk = new ECPoint[INPUTS];
+        final BigInteger[] x = new BigInteger[INPUTS];
+        final byte[][] response = new byte[INPUTS][];
+        for (int i = 0; i < INPUTS; i++) {
+            N[i] = BigInteger.probablePrime(127, random);
+            bk[i] = G.multiply(new BigInteger(r.bitLength() - 1, random));
+            x[i] = bk[i].getX().toBigInteger();
+        }
+        for (int i = 0; i < INPUTS; i++) {
+            APDUCodec codec = new APDUCodec();
+            codec.putField(bk[i].multiply(N[i]).getX().toBigInteger()).putField(x[i])
+                    .putField(x[(i + 1) % INPUTS]).putField(new byte[] { 1, 0, 1 });
+            response[i] = new byte[codec.length()];
+            System.arraycopy(codec.array(), 0, response[i], 0, response[i].length);
+        }
+        final int[] all = new int[ac.sa.length];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        final APDUCodec codec = new APDUCodec();
+
+        ac.open();
+        ac.initialiseCard();
+        ac.personalise(new byte[] { 1, 2, 3, 4 });
+
+        List<Benchmark> b = new ArrayList<Benchmark>();
+        b.add(new Benchmark("R_atePairing") {
+            Object run(int i) {
+                return ac.c.R_atePairing(bk[i], ac.saQ[0]);
+            }
+        });
+        b.add(new Benchmark("reconstructPoint") {
+            Object run(int i) {
+                return ACService.reconstructPoint(ac.c, x[i], false);
+            }
+        });
+        b.add(new Benchmark("multiply G.N") {
+            Object run(int i) {
+                return G.multiply(N[i]);
+            }
+        });
+        b.add(new Benchmark("multiply bk.N") {
+            Object run(int i) {
+                return bk[i].multiply(N[i]);
+            }
+        });
+        b.add(new Benchmark("constructCertificates") {
+            Object run(int i) {
+                return ACService.constructCertificates(ac.sa, all, bk[i]);
+            }
+        });
+        b.add(new Benchmark("encode GET_ATTRIBUTE") {
+            Object run(int i) {
+                codec.reset().put((byte) 1).putField(bk[i]);
+                return ACService.APDUprepare(ACService.GET_ATTRIBUTE, codec, null);
+            }
+        });
+        b.add(new Benchmark("parse GET_ATTRIBUTE") {
+            Object run(int i) {
+                APDUCodec.Fields f = APDUCodec.parse(response[i], 4);
+                return f.getBigInteger(0).add(f.getBigInteger(1)).add(f.getBigInteger(2));
+            }
+        });
+        b.add(new Benchmark("proveAttribute") {
+            Object run(int i) throws Exception {
+                Object proof = ac.proveAttribute(i & 3);
+                if (proof == null) {
+                    throw new IllegalStateException("Proof rejected");
+                }
+                return proof;
+            }
+        });
+        return b;
+    }
+
+    /**
+     * Run a benchmark: warm-up iterations first, then the measured ones
+     */
+    Result measure(Benchmark b, int keyLength) throws Exception {
+        for (int w = 0; w < warmup; w++) {
+            iteration(b);
+        }
+        double[] perOp = new double[iterations];
+        long operations = 0;
+        long tid = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(tid);
+        for (int it = 0; it < iterations; it++) {
+            long[] t = iteration(b);
+            perOp[it] = (double) t[1] / t[0];
+            operations += t[0];
+        }
+        allocated = threads.getThreadAllocatedBytes(tid) - allocated;
+
+        Result r = new Result();
+        r.name = b.name;
+        r.keyLength = keyLength;
+        r.operations = operations;
+        for (double d : perOp) {
+            r.mean += d / iterations;
+        }
+        double var = 0;
+        for (double d : perOp) {
+            var += (d - r.mean) * (d - r.mean);
+        }
+        r.error = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+        r.allocated = (double) allocated / operations;
+        return r;
+    }
+
+    /**
+     * Run operations until the iteration time is up
+     *
+     * @return Number of operations and the time they took (in ns)
+     */
+    private long[] iteration(Benchmark b) throws Exception {
+        long start = System.nanoTime();
+        long end = start + time * 1000000L;
+        long n = 0;
+        long now;
+        do {
+            blackhole = b.run((int) (n++ % INPUTS));
+            now = System.nanoTime();
+        } while (now < end);
+        return new long[] { n, now - start };
+    }
+
+    /**
+     * Benchmark the hot paths for every key length
+     *
+     * Usage: CryptoBenchmark [--seed n] [--warmup n] [--iterations n]
+     *          [--time ms] [--length bits] [--only name] [--csv]
+     */
+    public static void main(String[] args) throws Exception {
+        PairingParameters.useBenchmarkSeed();
+        Long seed = null;
+        int warmup = 2;
+        int iterations = 5;
+        long time = 1000;
+        int[] lengths = KEY_LENGTHS;
+        String only = null;
+        boolean csv = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--seed")) {
+                seed = Long.valueOf(args[++i]);
+            } else if (args[i].equals("--warmup")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--iterations")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--time")) {
+                time = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--length")) {
+                lengths = new int[] { Integer.parseInt(args[++i]) };
+            } else if (args[i].equals("--only")) {
+                only = args[++i];
+            } else if (args[i].equals("--csv")) {
+                csv = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        PrintStream report = System.err;
+        PrintStream out = BenchmarkSupport.discardStdout();
+
+        CryptoBenchmark bench = new CryptoBenchmark(warmup, iterations, time, seed);
+        if (csv) {
+            report = out;
+            report.println("benchmark,key_length,operations,ns_per_op,error_ns,bytes_per_op");
+        } else {
+            report.format("%d warm-up and %d measured iterations of %d ms%s%n", warmup,
+                    iterations, time, seed == null ? "" : ", seed " + seed);
+            report.format("%-22s %4s %14s %12s %12s%n", "Benchmark", "Bits", "ns/op", "error", "B/op");
+        }
+        for (int length : lengths) {
+            for (Benchmark b : bench.benchmarks(length)) {
+                if (only != null && !b.name.startsWith(only)) {
+                    continue;
+                }
+                Result r = bench.measure(b, length);
+                if (csv) {
+                    report.format("\"%s\",%d,%d,%.1f,%.1f,%.1f%n", r.name, r.keyLength,
+                            r.operations, r.mean, r.error, r.allocated);
+                } else {
+                    report.format("%-22s %4d %14.1f %12.1f %12.1f%n", r.name, r.keyLength,
+                            r.mean, r.error, r.allocated);
+                }
+            }
+        }
+        System.setOut(out);
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * EmulatedCardService.java
+ *
+ * Card service that emulates the applet in memory
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package service;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.prng.DigestRandomGenerator;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+import net.sourceforge.scuba.smartcards.APDUEvent;
+import net.sourceforge.scuba.smartcards.APDUListener;
+import net.sourceforge.scuba.smartcards.CardService;
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ISO7816;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+import card.APDUCodec;
+import card.CardInterface;
+import card.PointTable;
+
+/**
+ * A card with the applet, emulated at the APDU level, so ACService (and
+ * its codec) can be run, benchmarked and load tested without a reader.
+ * The applet's commands are decoded from their real encodings:
+ *
+ *   SELECT        by AID 73 62 63 72 65 64 ("sbcred")
+ *   INITIALISE    p, r, a, b, G                 -> K = k.G
+ *   PERSONALISE   count, (id, certificate, value) each
+ *   GET_ATTRIBUTE id, N                         -> k.b.N, b.K, b.S, value
+ *   GET_KEY                                     -> K
+ *   COMPUTE_DH    x, P                          -> x of x.P
+ *
+ * where every field is length-prefixed as in APDUCodec, except the ids
+ * and the certificates of PERSONALISE which are sent raw. Sending
+ * INITIALISE twice answers SW_ALREADY_INITIALISED, like the applet.
+ *
+ * Two delay models make the timing realistic: the transport delay for
+ * the bytes on the air interface and the compute delay of the card. The
+ * emulated card handles one command at a time, like a real one; threads
+ * that share a service wait for each other, threads with a service each
+ * run in parallel.
+ */
+public class EmulatedCardService extends CardService {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final byte[] AID = { 0x73, 0x62, 0x63, 0x72, 0x65, 0x64 };
+
+    private static final byte[] ATR = { 0x3B, (byte) 0x80, (byte) 0x80, 0x01, 0x01 };
+
+    private static final int INS_SELECT = 0xA4;
+    private static final int INS_INITIALISE = 0x01;
+    private static final int INS_PERSONALISE = 0x02;
+    private static final int INS_GET_ATTRIBUTE = 0x03;
+    private static final int INS_GET_KEY = 0x04;
+    private static final int INS_COMPUTE_DH = 0x05;
+
+    /**
+     * Time a command takes, given the command and the response
+     */
+    public interface DelayModel {
+        public long nanos(CommandAPDU command, ResponseAPDU response);
+    }
+
+    /** No delay at all */
+    public static final DelayModel NONE = fixed(0);
+
+    /**
+     * The same delay for every command (in ns)
+     */
+    public static DelayModel fixed(final long nanos) {
+        return new DelayModel() {
+            public long nanos(CommandAPDU command, ResponseAPDU response) {
+                return nanos;
+            }
+        };
+    }
+
+    /**
+     * A link with a fixed cost per exchange plus the time for the bytes of
+     * the command and the response, e.g. (1 ms, 106000) for ISO 14443 at
+     * 106 kbit/s
+     *
+     * @param overhead Cost per exchange (in ns)
+     * @param bitsPerSecond Speed of the link
+     */
+    public static DelayModel link(final long overhead, final int bitsPerSecond) {
+        return new DelayModel() {
+            public long nanos(CommandAPDU command, ResponseAPDU response) {
+                long bytes = command.getBytes().length + response.getBytes().length;
+                return overhead + bytes * 8 * 1000000000L / bitsPerSecond;
+            }
+        };
+    }
+
+    /**
+     * A delay per instruction, e.g. the times measured on a card
+     *
+     * @param nanos Delay indexed by INS, instructions past its end take none
+     */
+    public static DelayModel perInstruction(long[] nanos) {
+        final long[] delay = nanos.clone();
+        return new DelayModel() {
+            public long nanos(CommandAPDU command, ResponseAPDU response) {
+                int ins = command.getINS();
+                return ins < delay.length ? delay[ins] : 0;
+            }
+        };
+    }
+
+    private final List<APDUListener> apduListeners = new CopyOnWriteArrayList<APDUListener>();
+    private final DigestRandomGenerator random;
+
+    private volatile DelayModel transport = NONE;
+    private volatile DelayModel compute = NONE;
+
+    // Guarded by this
+    private boolean open = false;
+    private boolean selected = false;
+    private ECCurve curve;
+    private BigInteger r;
+    private BigInteger k;
+    private ECPoint K;
+    private PointTable keyTable;
+    private byte[] attributeId = new byte[0];
+    private PointTable[] certificate;
+    private byte[][] value;
+    private final APDUCodec codec = new APDUCodec();
+
+    /**
+     * An uninitialised card with a random seed
+     */
+    public EmulatedCardService() {
+        this(new SecureRandom().nextLong());
+    }
+
+    /**
+     * An uninitialised card whose keys and blinders follow from the seed
+     */
+    public EmulatedCardService(long seed) {
+        random = new DigestRandomGenerator(new SHA256Digest());
+        random.addSeedMaterial(seed);
+    }
+
+    public void setTransportDelay(DelayModel transport) {
+        this.transport = transport;
+    }
+
+    public void setComputeDelay(DelayModel compute) {
+        this.compute = compute;
+    }
+
+    public void addAPDUListener(APDUListener l) {
+        apduListeners.add(l);
+    }
+
+    public void removeAPDUListener(APDUListener l) {
+        apduListeners.remove(l);
+    }
+
+    public synchronized void open() {
+        open = true;
+        selected = false;
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Take the card away, it keeps its keys and attributes
+     */
+    public synchronized void close() {
+        open = false;
+        selected = false;
+    }
+
+    public ResponseAPDU transmit(CommandAPDU capdu) throws CardServiceException {
+        ResponseAPDU rapdu;
+        synchronized (this) {
+            if (!open) {
+                throw new CardServiceException("Card service not open");
+            }
+            rapdu = process(capdu);
+            delay(transport.nanos(capdu, rapdu) + compute.nanos(capdu, rapdu));
+        }
+        for (APDUListener l : apduListeners) {
+            l.exchangedAPDU(new APDUEvent(this, capdu, rapdu));
+        }
+        return rapdu;
+    }
+
+    private static void delay(long d) {
+        long deadline = System.nanoTime() + d;
+        while (d > 0) {
+            LockSupport.parkNanos(d);
+            d = deadline - System.nanoTime();
+        }
+    }
+
+    public byte[] transmitControlCommand(int controlCode, byte[] command)
+            throws CardServiceException {
+        throw new CardServiceException("Control commands are not emulated");
+    }
+
+    public byte[] getATR() {
+        return ATR.clone();
+    }
+
+    public String getName() {
+        return "Emulated card";
+    }
+
+    private ResponseAPDU process(CommandAPDU c) {
+        int ins = c.getINS();
+        if (c.getCLA() != 0x00) {
+            return status(ISO7816.SW_CLA_NOT_SUPPORTED);
+        }
+        if (ins == INS_SELECT) {
+            return select(c);
+        }
+        if (!selected) {
+            return status(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+        try {
+            switch (ins) {
+            case INS_INITIALISE:
+                return initialise(c.getData());
+            case INS_PERSONALISE:
+                return personalise(c.getData());
+            case INS_GET_ATTRIBUTE:
+                return getAttribute(c.getData());
+            case INS_GET_KEY:
+                return getKey();
+            case INS_COMPUTE_DH:
+                return computeDH(c.getData());
+            default:
+                return status(ISO7816.SW_INS_NOT_SUPPORTED);
+            }
+        } catch (IllegalArgumentException e) {
+            // Field too short or not a point on the curve
+            return status(ISO7816.SW_WRONG_DATA);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return status(ISO7816.SW_WRONG_LENGTH);
+        }
+    }
+
+    private ResponseAPDU select(CommandAPDU c) {
+        if (c.getP1() != 0x04) {
+            return status(ISO7816.SW_INCORRECT_P1P2);
+        }
+        selected = Arrays.equals(c.getData(), AID);
+        return status(selected ? ISO7816.SW_NO_ERROR : ISO7816.SW_FILE_NOT_FOUND);
+    }
+
+    private ResponseAPDU initialise(byte[] data) {
+        if (K != null) {
+            return status(CardInterface.SW_ALREADY_INITIALISED);
+        }
+        APDUCodec.Fields f = APDUCodec.parse(data, 5);
+        ECCurve.Fp c = new ECCurve.Fp(f.getBigInteger(0), f.getBigInteger(2), f.getBigInteger(3));
+        ECPoint G = f.getPoint(4, c);
+        curve = c;
+        r = f.getBigInteger(1);
+        k = scalar();
+        K = G.multiply(k);
+        keyTable = new PointTable(K, r.bitLength());
+        return respond(codec.reset().putField(K));
+    }
+
+    private ResponseAPDU personalise(byte[] data) {
+        if (K == null) {
+            return status(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        int count = (data[0] & 0xff) << 8 | data[1] & 0xff;
+        int fieldSize = (curve.getFieldSize() + 7) / 8;
+        byte[] id = new byte[count];
+        PointTable[] cert = new PointTable[count];
+        byte[][] val = new byte[count][];
+        int pos = 2;
+        for (int i = 0; i < count; i++) {
+            id[i] = data[pos++];
+            int length = data[pos] == 0x04 ? 1 + 2 * fieldSize : 1 + fieldSize;
+            cert[i] = new PointTable(curve.decodePoint(Arrays.copyOfRange(data, pos, pos + length)),
+                    r.bitLength());
+            pos += length;
+            int l = (data[pos] & 0xff) << 8 | data[pos + 1] & 0xff;
+            if (pos + 2 + l > data.length) {
+                return status(ISO7816.SW_WRONG_LENGTH);
+            }
+            val[i] = Arrays.copyOfRange(data, pos + 2, pos + 2 + l);
+            pos += 2 + l;
+        }
+        attributeId = id;
+        certificate = cert;
+        value = val;
+        return status(ISO7816.SW_NO_ERROR);
+    }
+
+    private ResponseAPDU getAttribute(byte[] data) {
+        int i = 0;
+        while (i < attributeId.length && attributeId[i] != data[0]) {
+            i++;
+        }
+        if (i == attributeId.length) {
+            return status(ISO7816.SW_RECORD_NOT_FOUND);
+        }
+        ECPoint N = APDUCodec.parse(Arrays.copyOfRange(data, 1, data.length), 1).getPoint(0, curve);
+        BigInteger b = scalar();
+        codec.reset();
+        codec.putField(N.multiply(b.multiply(k).mod(r)).getX().toBigInteger());
+        codec.putField(keyTable.multiply(b).getX().toBigInteger());
+        codec.putField(certificate[i].multiply(b).getX().toBigInteger());
+        codec.putField(value[i]);
+        return respond(codec);
+    }
+
+    private ResponseAPDU getKey() {
+        if (K == null) {
+            return status(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        return respond(codec.reset().putField(K));
+    }
+
+    private ResponseAPDU computeDH(byte[] data) {
+        if (curve == null) {
+            return status(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        APDUCodec.Fields f = APDUCodec.parse(data, 2);
+        ECPoint p = f.getPoint(1, curve).multiply(f.getBigInteger(0));
+        return respond(codec.reset().putField(p.getX().toBigInteger()));
+    }
+
+    /**
+     * A uniform scalar in [1, r)
+     */
+    private BigInteger scalar() {
+        byte[] b = new byte[(r.bitLength() + 7) / 8 + 8];
+        BigInteger s;
+        do {
+            random.nextBytes(b);
+            s = new BigInteger(1, b).mod(r);
+        } while (s.signum() == 0);
+        return s;
+    }
+
+    private static ResponseAPDU respond(APDUCodec data) {
+        byte[] r = new byte[data.length() + 2];
+        System.arraycopy(data.array(), 0, r, 0, data.length());
+        r[r.length - 2] = (byte) 0x90;
+        return new ResponseAPDU(r);
+    }
+
+    private static ResponseAPDU status(int sw) {
+        return new ResponseAPDU(new byte[] { (byte) (sw >> 8), (byte) sw });
+    }
+}
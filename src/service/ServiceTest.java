@@ -19,7 +19,11 @@ public class ServiceTest implements APDUListener {
     static SecureRandom random = new SecureRandom();
 
     public static void main(String[] args) throws CardServiceException, CardException {
-	    new ServiceTest().run();
+	    if (args.length > 0 && args[0].equals("--emulate")) {
+	    	new ServiceTest().runEmulated();
+	    } else {
+	    	new ServiceTest().run();
+	    }
     }
     
     public void run() throws CardException, CardServiceException {
@@ -40,6 +44,26 @@ public class ServiceTest implements APDUListener {
 	    //cc.proveAttribute(1);//*/
     }
 
+    /**
+     * The same exchanges with an emulated card, no reader needed
+     */
+    public void runEmulated() throws CardServiceException {
+    	byte[][] a = new byte[4][];
+	    a[0] = BigInteger.ONE.toByteArray();
+	    a[1] = BigInteger.TEN.toByteArray();
+	    a[2] = BigInteger.ZERO.toByteArray();
+	    a[3] = BigInteger.probablePrime(16, random).toByteArray();
+
+	    ACService cc = new ACService(new EmulatedCardService(), a);
+	    // Through the service, so the listener is called off the APDU path
+	    cc.addAPDUListener(this);
+	    cc.open();
+	    cc.initialiseCard();
+	    cc.testDH();
+	    cc.personalise(new byte[]{1,2,3,4});
+	    cc.proveAttribute(1);
+    }
+
 	@Override
 	public void exchangedAPDU(APDUEvent e) {
 		System.out.println("C: " + Hex.toHexString(e.getCommandAPDU().getBytes()));
@@ -0,0 +1,377 @@
+/**
+ * AppletProvisioner.java
+ *
+ * Installs the applet on cards on all attached readers
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+
+import net.sourceforge.gpj.cardservices.AID;
+import net.sourceforge.gpj.cardservices.AIDRegistryEntry;
+import net.sourceforge.gpj.cardservices.CapFile;
+import net.sourceforge.gpj.cardservices.GlobalPlatformService;
+
+import proxy.CardPresenceMonitor;
+
+/**
+ * Provisions a fleet of cards: every attached reader gets a thread that
+ * waits for a card, installs the applet unless the card already has the
+ * current version, and waits for the card to be taken away.
+ *
+ * The CAP file is read and parsed once and shared by all readers. Before
+ * anything is deleted, the card's registry is read with GET STATUS. If
+ * the card reports the version of the package (GlobalPlatform 2.2 tagged
+ * format), it is compared with the version in the CAP header. Older
+ * cards only report which packages and applets are present; a package
+ * of unknown version is taken to be stale and installed again. A card
+ * is only current with the applet instance; when just the instance is
+ * missing it is installed from the package already on the card.
+ *
+ * A card that cannot be connected to (mute or broken) is reported as
+ * failed, and the reader waits until it is taken away.
+ *
+ * Load blocks are 247 bytes: the largest that fits a short APDU together
+ * with the C-MAC of the secure channel.
+ */
+public class AppletProvisioner {
+
+    // Largest LOAD block with a C-MAC in a short APDU
+    private static final int BLOCK_SIZE = 247;
+
+    // How long a reader waits for a card before it checks again (in ms)
+    private static final long POLL_INTERVAL = 1000;
+
+    public enum Status { INSTALLED, CURRENT, FAILED }
+
+    /**
+     * Receives the outcome for every card
+     */
+    public interface Listener {
+        public void cardDone(String reader, Status status, String detail, long time);
+    }
+
+    private final CapFile cap;
+    private final int[] version;
+    private final AID packageAID;
+    private final AID appletAID;
+    private final AID sdAID;
+    private final boolean force;
+    private final Listener listener;
+
+    // Guarded by this
+    private int installed = 0;
+    private int current = 0;
+    private int failed = 0;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param capFile The CAP file, read once
+     * @param force Install even on cards that are current
+     * @param listener Receives the outcome for every card
+     */
+    public AppletProvisioner(URL capFile, boolean force, Listener listener) throws IOException {
+        byte[] data = read(capFile);
+        cap = new CapFile(new ByteArrayInputStream(data));
+        version = readVersion(data);
+        packageAID = new AID(GateClientGUI.packageAID);
+        appletAID = new AID(GateClientGUI.appletAID);
+        sdAID = new AID(GateClientGUI.sdAID);
+        this.force = force;
+        this.listener = listener;
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Package version (major, minor) from the Header component: tag (1)
+     * size (2) magic (4) CAP minor, major (2) flags (1) package minor,
+     * major (2)
+     */
+    private static int[] readVersion(byte[] cap) throws IOException {
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(cap));
+        try {
+            ZipEntry e;
+            while ((e = zip.getNextEntry()) != null) {
+                if (e.getName().endsWith("Header.cap")) {
+                    byte[] header = read(zip);
+                    return new int[] { header[11] & 0xff, header[10] & 0xff };
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        throw new IOException("No Header component in CAP file");
+    }
+
+    private static byte[] read(ZipInputStream zip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = zip.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    public String getVersion() {
+        return version[0] + "." + version[1];
+    }
+
+    /**
+     * Serve all attached readers until stop() is called
+     */
+    public void run() throws CardException, InterruptedException {
+        List<CardTerminal> terminals = TerminalFactory.getDefault().terminals().list();
+        if (terminals.isEmpty()) {
+            throw new CardException("No readers found");
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final CardTerminal terminal : terminals) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    serve(terminal);
+                }
+            }, "AppletProvisioner-" + terminal.getName());
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public synchronized String getSummary() {
+        return installed + " installed, " + current + " current, " + failed + " failed";
+    }
+
+    private void serve(CardTerminal terminal) {
+        CardPresenceMonitor monitor = CardPresenceMonitor.getDefault();
+        while (running) {
+            try {
+                if (!monitor.awaitCard(terminal, POLL_INTERVAL)) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                Status status;
+                String detail;
+                Card card = null;
+                try {
+                    card = terminal.connect("*");
+                    detail = provision(card);
+                    status = detail == null ? Status.INSTALLED : Status.CURRENT;
+                } catch (Exception e) {
+                    status = Status.FAILED;
+                    detail = e.getMessage();
+                } finally {
+                    disconnect(terminal, card);
+                }
+                done(terminal.getName(), status, detail, System.nanoTime() - start);
+                while (running && !monitor.awaitRemoval(terminal, POLL_INTERVAL)) {
+                    // Card still on the reader
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void disconnect(CardTerminal terminal, Card card) {
+        if (card == null) {
+            return;
+        }
+        try {
+            card.disconnect(true);
+        } catch (CardException e) {
+            System.err.println(terminal.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void count(Status status) {
+        switch (status) {
+            case INSTALLED:
+                installed++;
+                break;
+            case CURRENT:
+                current++;
+                break;
+            default:
+                failed++;
+        }
+    }
+
+    private void done(String reader, Status status, String detail, long time) {
+        count(status);
+        try {
+            listener.cardDone(reader, status, detail, time);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Install the applet on a card unless it is current
+     *
+     * @return Why the card was skipped, null if the applet was installed
+     */
+    String provision(Card card) throws Exception {
+        GlobalPlatformService s = new GlobalPlatformService(sdAID, card.getBasicChannel());
+        s.openWithDefaultKeys();
+
+        boolean hasPackage = false;
+        boolean hasApplet = false;
+        for (AIDRegistryEntry e : s.getStatus()) {
+            hasPackage |= e.isPackage() && e.getAID().equals(packageAID);
+            hasApplet |= e.isApplet() && e.getAID().equals(appletAID);
+        }
+        if (hasPackage && !force) {
+            // A package of unknown version is replaced like an old one
+            int[] installed = installedVersion(s);
+            if (installed != null && Arrays.equals(installed, version)) {
+                if (hasApplet) {
+                    return "version " + getVersion();
+                }
+                // The package is current, only the instance is missing
+                s.installAndMakeSelecatable(packageAID, appletAID, null, (byte) 0, null, null);
+                return null;
+            }
+        }
+
+        if (hasPackage) {
+            s.deleteAID(packageAID, true);
+        }
+        s.loadCapFile(cap, false, false, BLOCK_SIZE, false, false);
+        s.installAndMakeSelecatable(packageAID, appletAID, null, (byte) 0, null, null);
+        return null;
+    }
+
+    /**
+     * The version of the installed package from GET STATUS in the tagged
+     * format, null if the card does not support it
+     */
+    private int[] installedVersion(GlobalPlatformService s) throws CardException {
+        // GET STATUS of executable load files, tagged response
+        ResponseAPDU r = s.transmit(new CommandAPDU(0x80, 0xF2, 0x20, 0x02, new byte[] { 0x4F, 0x00 }));
+        if (r.getSW() != 0x9000 && r.getSW() != 0x6310) {
+            return null;
+        }
+        byte[] d = r.getData();
+        int i = 0;
+        while (i + 2 <= d.length && (d[i] & 0xff) == 0xE3) {
+            int[] length = length(d, i + 1);
+            int end = length[1] + length[0];
+            AID aid = null;
+            int[] version = null;
+            int j = length[1];
+            while (j + 2 <= end) {
+                int tag = d[j] & 0xff;
+                if (tag == 0x9F || tag == 0x5F || tag == 0xBF) {
+                    tag = tag << 8 | d[++j] & 0xff;
+                }
+                int[] l = length(d, j + 1);
+                if (tag == 0x4F) {
+                    aid = new AID(d, l[1], l[0]);
+                } else if (tag == 0xCE && l[0] >= 2) {
+                    version = new int[] { d[l[1]] & 0xff, d[l[1] + 1] & 0xff };
+                }
+                j = l[1] + l[0];
+            }
+            if (packageAID.equals(aid)) {
+                return version;
+            }
+            i = end;
+        }
+        return null;
+    }
+
+    /**
+     * BER length at the given offset: the length and the offset of the
+     * value
+     */
+    private static int[] length(byte[] d, int i) {
+        int l = d[i] & 0xff;
+        if (l == 0x81) {
+            return new int[] { d[i + 1] & 0xff, i + 2 };
+        }
+        if (l == 0x82) {
+            return new int[] { (d[i + 1] & 0xff) << 8 | d[i + 2] & 0xff, i + 3 };
+        }
+        return new int[] { l, i + 1 };
+    }
+
+    /**
+     * Provision cards on all attached readers until interrupted
+     *
+     * Usage: AppletProvisioner [--force]
+     */
+    public static void main(String[] args) throws Exception {
+        boolean force = args.length > 0 && args[0].equals("--force");
+        final long start = System.nanoTime();
+        final AppletProvisioner provisioner = new AppletProvisioner(GateClientGUI.getCapFileURL(),
+                force, new Listener() {
+            public void cardDone(String reader, Status status, String detail, long time) {
+                System.out.format("%s: %s%s (%.1f s)%n", reader, status,
+                        detail == null ? "" : ", " + detail, time / 1e9);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                provisioner.stop();
+                System.out.format("%s in %.1f min%n", provisioner.getSummary(),
+                        (System.nanoTime() - start) / 6e10);
+            }
+        });
+        System.out.println("Provisioning applet version " + provisioner.getVersion());
+        provisioner.run();
+    }
+}
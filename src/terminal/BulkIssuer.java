@@ -0,0 +1,366 @@
+/**
+ * BulkIssuer.java
+ *
+ * Personalises a batch of cards on all attached readers
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import proxy.CardProxy;
+import proxy.CardProxyConfiguration;
+import verifier.LaneScheduler;
+
+/**
+ * Issues cards for a list of passengers without the GUI. Every reader has
+ * its own thread that waits for a card, takes the next passenger,
+ * initialises the card, and stores the passenger's attributes. The
+ * certificates are computed by a shared pool of workers (or the issuance
+ * lane of a LaneScheduler), so the scalar multiplications for one card
+ * run while the other readers exchange APDUs with theirs.
+ *
+ * A card that fails is tried again a few times; when it keeps failing
+ * the passenger goes back in the queue for the next card, and the card is
+ * reported as failed so the operator can take it out. A card that does
+ * not even answer SELECT (e.g. one without the applet) is reported as
+ * failed before a passenger is taken for it.
+ *
+ * The passenger file has one passenger per line: a label and the ids of
+ * the attributes to issue, separated by commas. Lines starting with #
+ * are skipped, e.g.
+ *
+ *   P000123 1,3
+ */
+public class BulkIssuer {
+
+    // Stack size of the reader threads (in bytes)
+    private static final long READER_STACK = 256 * 1024;
+
+    // Attempts per card before it is given up
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Times a passenger is tried on a new card before being given up
+    private static final int MAX_CARDS = 3;
+
+    // How long a reader waits for a card before it checks for work (in ms)
+    private static final long POLL_INTERVAL = 1000;
+
+    public enum Status { ISSUED, RETRIED, FAILED }
+
+    public static class Passenger {
+        public final String label;
+        public final byte[] attributeIds;
+        int cards = 0;
+
+        public Passenger(String label, byte[] attributeIds) {
+            this.label = label;
+            this.attributeIds = attributeIds;
+        }
+    }
+
+    /**
+     * Receives the outcome for every card
+     */
+    public interface Listener {
+
+        /**
+         * @param passenger The passenger, null for a card that did not
+         *        answer at all
+         */
+        public void cardDone(Passenger passenger, String reader, Status status, int attempts, long time);
+    }
+
+    private final BufferedReader input;
+    private final Executor certifiers;
+    private final Listener listener;
+
+    // Guarded by this
+    private final ArrayDeque<Passenger> retries = new ArrayDeque<Passenger>();
+    private boolean exhausted = false;
+    private int inProgress = 0;
+    private int issued = 0;
+    private int failed = 0;
+
+    /**
+     * @param input Passenger file, read as cards arrive
+     * @param certifiers Computes the certificates, e.g. a LaneScheduler's issuance lane
+     * @param listener Receives the outcome for every card
+     */
+    public BulkIssuer(BufferedReader input, Executor certifiers, Listener listener) {
+        this.input = input;
+        this.certifiers = certifiers;
+        this.listener = listener;
+    }
+
+    /**
+     * Issue all passengers on all attached readers and wait until done
+     */
+    public void run() throws CardException, InterruptedException {
+        List<CardTerminal> terminals = TerminalFactory.getDefault().terminals().list();
+        if (terminals.isEmpty()) {
+            throw new CardException("No readers found");
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        GateClient shared = null;
+        for (final CardTerminal terminal : terminals) {
+            CardProxy card = new CardProxy(terminal);
+            // The first client builds the keys and tables, the others share them
+            final GateClient client = shared == null
+                    ? (shared = new GateClient(card)) : new GateClient(shared, card);
+            client.setLogger(GateLogger.SILENT);
+            Thread t = new Thread(null, new Runnable() {
+                public void run() {
+                    serve(client, terminal.getName());
+                }
+            }, "BulkIssuer-" + terminal.getName(), READER_STACK);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    public synchronized int getIssued() {
+        return issued;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    /**
+     * Whether all passengers are done, reading ahead if needed
+     */
+    private synchronized boolean isDone() {
+        if (retries.isEmpty() && !exhausted) {
+            Passenger p = read();
+            if (p != null) {
+                retries.add(p);
+            } else {
+                exhausted = true;
+            }
+        }
+        return retries.isEmpty() && exhausted && inProgress == 0;
+    }
+
+    /**
+     * The next passenger to issue, or null once all are done. Waits while
+     * other readers may still hand passengers back.
+     */
+    private synchronized Passenger next() throws InterruptedException {
+        while (true) {
+            if (!retries.isEmpty()) {
+                inProgress++;
+                return retries.poll();
+            }
+            if (!exhausted) {
+                Passenger p = read();
+                if (p != null) {
+                    inProgress++;
+                    return p;
+                }
+                exhausted = true;
+            }
+            if (inProgress == 0) {
+                return null;
+            }
+            wait();
+        }
+    }
+
+    private Passenger read() {
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split("\\s+");
+                String[] ids = f[f.length - 1].split(",");
+                byte[] attributeIds = new byte[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    attributeIds[i] = Byte.parseByte(ids[i]);
+                }
+                return new Passenger(f.length > 1 ? f[0] : line, attributeIds);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read passengers: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            System.err.println("Bad passenger line: " + e.getMessage());
+            return read();
+        }
+        return null;
+    }
+
+    private synchronized void finished(Passenger p, boolean ok) {
+        inProgress--;
+        if (ok) {
+            issued++;
+        } else if (++p.cards < MAX_CARDS) {
+            retries.add(p);
+        } else {
+            failed++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Reader loop: wait for a card, issue the next passenger on it, wait
+     * for the card to be taken away
+     */
+    private void serve(GateClient client, String reader) {
+        CardProxy card = client.card;
+        while (!isDone() && !Thread.currentThread().isInterrupted()) {
+            if (!card.awaitCard(POLL_INTERVAL)) {
+                // No card yet
+                continue;
+            }
+            long start = System.nanoTime();
+            if (card.getATR() == null) {
+                // No passenger is spent on a card that cannot be selected
+                report(null, reader, Status.FAILED, 1, System.nanoTime() - start);
+                awaitRemoval(card);
+                continue;
+            }
+            Passenger p;
+            try {
+                p = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (p == null) {
+                return;
+            }
+
+            int attempt = 0;
+            boolean ok = false;
+            while (!ok && attempt++ < MAX_ATTEMPTS) {
+                ok = issue(client, p);
+                if (!ok) {
+                    card.disconnect();
+                }
+            }
+            long time = System.nanoTime() - start;
+            finished(p, ok);
+            report(p, reader, ok ? Status.ISSUED
+                    : p.cards < MAX_CARDS ? Status.RETRIED : Status.FAILED, attempt, time);
+            awaitRemoval(card);
+        }
+    }
+
+    private void report(Passenger p, String reader, Status status, int attempts, long time) {
+        try {
+            listener.cardDone(p, reader, status, attempts, time);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void awaitRemoval(CardProxy card) {
+        while (!card.waitForCardAbsent(POLL_INTERVAL) && !Thread.currentThread().isInterrupted()) {
+            // Card still on the reader
+        }
+        card.disconnect();
+    }
+
+    /**
+     * Initialise the card, have the certificates computed by the workers,
+     * and store them
+     */
+    private boolean issue(final GateClient client, final Passenger p) {
+        final ECPoint key = client.initialiseCard();
+        if (key == null) {
+            return false;
+        }
+        FutureTask<ECPoint[]> certificates = new FutureTask<ECPoint[]>(new Callable<ECPoint[]>() {
+            public ECPoint[] call() {
+                return client.certify(key, p.attributeIds);
+            }
+        });
+        certifiers.execute(certificates);
+        try {
+            ECPoint[] cert = certificates.get();
+            return cert != null && client.store(p.attributeIds, cert);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Issue the passengers in a file on all attached readers
+     *
+     * Usage: BulkIssuer passengers [workers] [--lanes]
+     */
+    public static void main(String[] args) throws Exception {
+        // Every reader is used, so the reader choice dialog is not wanted
+        CardProxyConfiguration.GUI_CHOOSE = false;
+
+        int workers = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = null;
+        Executor certifiers;
+        if (args.length > 2 && args[2].equals("--lanes")) {
+            // Issue next to a running gate, which keeps one thread for itself
+            certifiers = new LaneScheduler(workers + 1, 1).executor(LaneScheduler.Lane.ISSUANCE);
+        } else {
+            certifiers = pool = Executors.newFixedThreadPool(workers);
+        }
+
+        BufferedReader input = new BufferedReader(new FileReader(args[0]));
+        BulkIssuer issuer = new BulkIssuer(input, certifiers, new Listener() {
+            public void cardDone(Passenger p, String reader, Status status, int attempts, long time) {
+                System.out.format("%s %s %s (%d attempts, %.0f ms)%n", p == null ? "-" : p.label, reader,
+                        status, attempts, time / 1000000.0);
+            }
+        });
+
+        long start = System.nanoTime();
+        issuer.run();
+        double hours = (System.nanoTime() - start) / 3.6e12;
+        System.out.format("%d cards issued, %d passengers failed, %.0f cards/hour%n",
+                issuer.getIssued(), issuer.getFailed(), issuer.getIssued() / hours);
+        input.close();
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,546 @@
+/**
+ * CardBenchmark.java
+ *
+ * Measures the throughput of the on-card crypto over a reader
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+
+import net.sourceforge.scuba.smartcards.CardService;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+import net.sourceforge.scuba.smartcards.TerminalCardService;
+import net.sourceforge.scuba.util.Hex;
+
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.math.ec.ECPoint;
+
+import service.ACService;
+import service.BenchmarkSupport;
+import service.EmulatedCardService;
+import card.APDUCodec;
+import card.PairingParameters;
+
+/**
+ * Runs many COMPUTE_DH, GET_ATTRIBUTE and signature exchanges (the one of
+ * ECTestHost) against one card and reports, per exchange, the round trip
+ * split into transport and on-card compute.
+ *
+ * The transport is calibrated first: commands with an instruction the
+ * applet rejects straight away are sent with 0 to 255 data bytes, and a
+ * line through their median round trips gives the cost per exchange and
+ * per byte of this reader and card. The compute time of an exchange is
+ * its round trip minus the transport for its bytes, so it includes the
+ * applet dispatch the probes also pay.
+ *
+ * All commands are built before and all results checked after the timed
+ * loop, so host crypto does not end up in the measurement. The results
+ * are checked in batches on all processors: the DH x coordinate against
+ * x(x.P), the attribute proofs with the GateVerifier and the card
+ * signatures with the public key the card was given.
+ *
+ * The report carries the name and ATR of the card, so reports of
+ * different card models can be put side by side. It goes to System.err,
+ * as JSON to a file, and as CSV to System.out with --csv; the pairing
+ * library prints progress to System.out, which is discarded meanwhile.
+ */
+public class CardBenchmark {
+
+    // The applet answers this instruction with 6D00 without computing
+    private static final int INS_PROBE = 0x7F;
+
+    private static final int[] PROBE_LENGTHS = { 0, 32, 64, 128, 192, 255 };
+
+    // Checks per verification task
+    private static final int BATCH = 64;
+
+    private static final byte[] ATTRIBUTE_IDS = { 1, 2, 3, 4 };
+
+    /**
+     * The host side of one exchange, run after the timing
+     */
+    interface Check {
+        boolean verify() throws Exception;
+    }
+
+    /**
+     * One kind of exchange, measured count times
+     */
+    static abstract class Exchange {
+        final String name;
+
+        Exchange(String name) {
+            this.name = name;
+        }
+
+        /**
+         * The i-th command, built before the timing
+         */
+        abstract CommandAPDU command(int i);
+
+        /**
+         * The check of the i-th response, the status word is already 9000
+         */
+        abstract Check check(int i, ResponseAPDU response);
+    }
+
+    /**
+     * Transport cost of this reader and card: a fixed cost per exchange
+     * plus a cost per byte of the command and the response (in ns)
+     */
+    static class Transport {
+        double overhead;
+        double perByte;
+
+        long nanos(int bytes) {
+            return (long) (overhead + perByte * bytes);
+        }
+    }
+
+    /**
+     * Outcome of one kind of exchange
+     */
+    static class Result {
+        String name;
+        int count;
+        int bytes;
+        long transport;
+        final LatencyHistogram roundTrip = new LatencyHistogram();
+        final LatencyHistogram compute = new LatencyHistogram();
+        int errors;
+        int verified;
+        int failed;
+        double verifyTime;
+    }
+
+    private final CardService service;
+    private final int count;
+    private final int warmup;
+    private final SecureRandom random;
+    private Transport transport;
+
+    /**
+     * @param service Open channel to the card
+     * @param count Exchanges measured of each kind
+     * @param warmup Exchanges of each kind before measuring
+     */
+    public CardBenchmark(CardService service, int count, int warmup, SecureRandom random) {
+        this.service = service;
+        this.count = count;
+        this.warmup = warmup;
+        this.random = random;
+    }
+
+    /**
+     * Measure the transport with commands the selected applet rejects
+     */
+    Transport calibrate(int repeat) throws Exception {
+        int n = PROBE_LENGTHS.length;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            int length = PROBE_LENGTHS[i];
+            CommandAPDU probe = length == 0 ? new CommandAPDU(0, INS_PROBE, 0, 0)
+                    : new CommandAPDU(0, INS_PROBE, 0, 0, new byte[length]);
+            long[] t = new long[repeat];
+            int bytes = 0;
+            for (int j = 0; j < repeat; j++) {
+                long start = System.nanoTime();
+                ResponseAPDU r = service.transmit(probe);
+                t[j] = System.nanoTime() - start;
+                bytes = probe.getBytes().length + r.getBytes().length;
+            }
+            Arrays.sort(t);
+            x[i] = bytes;
+            y[i] = t[repeat / 2];
+        }
+
+        // Least squares line through the medians
+        double mx = 0, my = 0;
+        for (int i = 0; i < n; i++) {
+            mx += x[i] / n;
+            my += y[i] / n;
+        }
+        double sxy = 0, sxx = 0;
+        for (int i = 0; i < n; i++) {
+            sxy += (x[i] - mx) * (y[i] - my);
+            sxx += (x[i] - mx) * (x[i] - mx);
+        }
+        Transport t = new Transport();
+        t.perByte = Math.max(0, sxy / sxx);
+        t.overhead = Math.max(0, my - t.perByte * mx);
+        transport = t;
+        return t;
+    }
+
+    /**
+     * Run one kind of exchange: warm up, time all exchanges back to back,
+     * then check the results in batches
+     */
+    Result run(Exchange e, ExecutorService verifiers) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            service.transmit(e.command(i));
+        }
+
+        CommandAPDU[] command = new CommandAPDU[count];
+        for (int i = 0; i < count; i++) {
+            command[i] = e.command(i);
+        }
+        ResponseAPDU[] response = new ResponseAPDU[count];
+        long[] time = new long[count];
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            response[i] = service.transmit(command[i]);
+            time[i] = System.nanoTime() - start;
+        }
+
+        Result r = new Result();
+        r.name = e.name;
+        r.count = count;
+        long bytes = 0;
+        final List<Check> checks = new ArrayList<Check>();
+        for (int i = 0; i < count; i++) {
+            int b = command[i].getBytes().length + response[i].getBytes().length;
+            long t = transport.nanos(b);
+            bytes += b;
+            r.roundTrip.record(time[i]);
+            r.compute.record(time[i] - t);
+            if (response[i].getSW() != 0x9000) {
+                r.errors++;
+            } else {
+                checks.add(e.check(i, response[i]));
+            }
+        }
+        r.bytes = (int) (bytes / count);
+        r.transport = transport.nanos(r.bytes);
+
+        long start = System.nanoTime();
+        List<Future<Integer>> failures = new ArrayList<Future<Integer>>();
+        for (int from = 0; from < checks.size(); from += BATCH) {
+            final List<Check> batch = checks.subList(from, Math.min(from + BATCH, checks.size()));
+            failures.add(verifiers.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    int failed = 0;
+                    for (Check c : batch) {
+                        try {
+                            if (!c.verify()) {
+                                failed++;
+                            }
+                        } catch (RuntimeException e) {
+                            // A malformed answer fails its exchange, not the run
+                            failed++;
+                        }
+                    }
+                    return failed;
+                }
+            }));
+        }
+        for (Future<Integer> f : failures) {
+            r.failed += f.get();
+        }
+        r.verified = checks.size() - r.failed;
+        r.verifyTime = (System.nanoTime() - start) / 1e6;
+        return r;
+    }
+
+    /**
+     * COMPUTE_DH with a fresh scalar and point every time
+     */
+    Exchange computeDH(final GateVerifier verifier) {
+        final ECPoint G = verifier.getCurve().getG();
+        final BigInteger order = verifier.getCurve().getR();
+        final BigInteger[] x = new BigInteger[count];
+        final ECPoint[] P = new ECPoint[count];
+        return new Exchange("COMPUTE_DH") {
+            CommandAPDU command(int i) {
+                x[i] = new BigInteger(order.bitLength() - 1, random).add(BigInteger.ONE);
+                P[i] = G.multiply(new BigInteger(order.bitLength() - 1, random).add(BigInteger.ONE));
+                APDUCodec codec = new APDUCodec().putField(x[i]).putField(P[i]);
+                return new CommandAPDU(0x00, 0x05, 0x00, 0x00, codec.array(), 0, codec.length(), 256);
+            }
+
+            Check check(final int i, final ResponseAPDU response) {
+                return new Check() {
+                    public boolean verify() {
+                        BigInteger dh = APDUCodec.parse(response.getData(), 1).getBigInteger(0);
+                        return dh.equals(P[i].multiply(x[i]).getX().toBigInteger());
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * GET_ATTRIBUTE for each attribute in turn, with a fresh nonce
+     */
+    Exchange getAttribute(final GateVerifier verifier) {
+        final ECPoint G = verifier.getCurve().getG();
+        final int attributes = verifier.getAttributeCount();
+        final BigInteger[] nonce = new BigInteger[count];
+        return new Exchange("GET_ATTRIBUTE") {
+            CommandAPDU command(int i) {
+                nonce[i] = BigInteger.probablePrime(127, random);
+                APDUCodec codec = new APDUCodec().put(ATTRIBUTE_IDS[i % attributes])
+                        .putField(G.multiply(nonce[i]));
+                return new CommandAPDU(0x00, 0x03, 0x00, 0x00, codec.array(), 0, codec.length());
+            }
+
+            Check check(final int i, final ResponseAPDU response) {
+                return new Check() {
+                    public boolean verify() {
+                        return verifier.verify(Passage.parse(i % attributes, nonce[i],
+                                response.getData()));
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The signature exchange of ECTestHost: the card gets a secp192r1 key
+     * pair and a host signature on the private key, checks it, and signs
+     * the private key itself
+     */
+    Exchange signature() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("ECDSA", "BC");
+        generator.initialize(new ECGenParameterSpec("secp192r1"), random);
+        final KeyPair keyPair = generator.generateKeyPair();
+        final byte[] privKeyData = ECTestHost.privateKeyData((ECPrivateKey) keyPair.getPrivate());
+        byte[] pubKeyData = ((ECPublicKey) keyPair.getPublic()).getQ().getEncoded();
+        Signature signer = Signature.getInstance("SHA1WITHECDSA", "BC");
+        signer.initSign(keyPair.getPrivate(), random);
+        signer.update(privKeyData);
+        final byte[] keyData = ECTestHost.keyData(privKeyData, pubKeyData, signer.sign());
+
+        return new Exchange("ECDSA sign/verify") {
+            CommandAPDU command(int i) {
+                return new CommandAPDU(0x00, 0x02, 0x00, 0x00, keyData, 50);
+            }
+
+            Check check(int i, final ResponseAPDU response) {
+                return new Check() {
+                    public boolean verify() throws Exception {
+                        byte[] data = response.getData();
+                        if (data.length < 2 || (data[data.length - 1] & 0x03) != 0x03) {
+                            return false;
+                        }
+                        Signature verifier = Signature.getInstance("SHA1WITHECDSA", "BC");
+                        verifier.initVerify(keyPair.getPublic());
+                        verifier.update(privKeyData);
+                        return verifier.verify(Arrays.copyOf(data, data.length - 1));
+                    }
+                };
+            }
+        };
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Benchmark one card
+     *
+     * Usage: CardBenchmark [--reader index|name | --emulate] [--count n]
+     *          [--warmup n] [--length bits] [--label name] [--seed n]
+     *          [--no-signature] [--report file] [--csv]
+     */
+    public static void main(String[] args) throws Exception {
+        PairingParameters.useBenchmarkSeed();
+        String reader = "0";
+        boolean emulate = false;
+        int count = 1000;
+        int warmup = 10;
+        int length = ACService.KEY_LENGTH;
+        String label = null;
+        Long seed = null;
+        boolean signature = true;
+        String report = "card-benchmark.json";
+        boolean csv = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--reader")) {
+                reader = args[++i];
+            } else if (args[i].equals("--emulate")) {
+                emulate = true;
+            } else if (args[i].equals("--count")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--warmup")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--length")) {
+                length = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--label")) {
+                label = args[++i];
+            } else if (args[i].equals("--seed")) {
+                seed = Long.valueOf(args[++i]);
+            } else if (args[i].equals("--no-signature")) {
+                signature = false;
+            } else if (args[i].equals("--report")) {
+                report = args[++i];
+            } else if (args[i].equals("--csv")) {
+                csv = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        PrintStream out = BenchmarkSupport.discardStdout();
+        Security.addProvider(new BouncyCastleProvider());
+        SecureRandom random = BenchmarkSupport.random(seed);
+
+        CardService card;
+        if (emulate) {
+            // Illustrative timings: a contactless link and a slow card
+            EmulatedCardService emulated = new EmulatedCardService(random.nextLong());
+            emulated.setTransportDelay(EmulatedCardService.link(1000000, 106000));
+            long[] compute = new long[6];
+            compute[0x03] = 120000000;
+            compute[0x05] = 40000000;
+            emulated.setComputeDelay(EmulatedCardService.perInstruction(compute));
+            card = emulated;
+        } else {
+            List<CardTerminal> terminals = TerminalFactory.getDefault().terminals().list();
+            CardTerminal terminal = null;
+            for (CardTerminal t : terminals) {
+                if (t.getName().equals(reader)) {
+                    terminal = t;
+                }
+            }
+            if (terminal == null) {
+                terminal = terminals.get(Integer.parseInt(reader));
+            }
+            card = new TerminalCardService(terminal);
+        }
+
+        GateClient gate = new GateClient((proxy.CardProxy) null, length);
+        gate.setLogger(GateLogger.SILENT);
+        GateVerifier verifier = gate.getVerifier();
+        ACService issuer = new ACService(card, null, length);
+        issuer.open();
+        if (issuer.initialiseCard() == null) {
+            throw new IllegalStateException("Could not initialise the card");
+        }
+        issuer.personalise(ATTRIBUTE_IDS);
+        if (label == null) {
+            label = card.getName();
+        }
+        String atr = Hex.bytesToHexString(card.getATR());
+
+        CardBenchmark bench = new CardBenchmark(card, count, warmup, random);
+        Transport t = bench.calibrate(Math.max(5, Math.min(50, count / 10)));
+        ExecutorService verifiers =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Result> results = new ArrayList<Result>();
+        try {
+            results.add(bench.run(bench.computeDH(verifier), verifiers));
+            results.add(bench.run(bench.getAttribute(verifier), verifiers));
+            if (signature) {
+                ResponseAPDU selected = card.transmit(new CommandAPDU(ECTestHost.SELECT));
+                if (selected.getSW() == 0x9000) {
+                    results.add(bench.run(bench.signature(), verifiers));
+                } else {
+                    System.err.format("No signature applet on the card (SW %04X), skipped%n",
+                            selected.getSW());
+                }
+            }
+        } finally {
+            verifiers.shutdown();
+            card.close();
+        }
+        System.setOut(out);
+
+        System.err.format("%s, ATR %s, %d bits, %d exchanges after %d warm-up%n", label, atr,
+                length, count, warmup);
+        System.err.format("transport %.2f ms per exchange + %.1f us per byte%n",
+                t.overhead / 1e6, t.perByte / 1e3);
+        System.err.format("%-18s %5s %17s %9s %17s %9s %s%n", "Exchange", "bytes",
+                "round trip/p99", "transport", "compute/p99", "per s", "verified");
+        for (Result r : results) {
+            System.err.format("%-18s %5d %8.2f/%8.2f %9.2f %8.2f/%8.2f %9.2f %d/%d%s%n", r.name,
+                    r.bytes, r.roundTrip.getMean() / 1e6,
+                    r.roundTrip.getValueAtPercentile(99) / 1e6, r.transport / 1e6,
+                    r.compute.getMean() / 1e6, r.compute.getValueAtPercentile(99) / 1e6,
+                    1e9 / r.roundTrip.getMean(), r.verified, r.count,
+                    r.errors == 0 ? "" : ", " + r.errors + " errors");
+        }
+
+        PrintWriter w = new PrintWriter(new FileWriter(report));
+        w.println("{");
+        w.format("  \"card\": %s,%n", quote(label));
+        w.format("  \"atr\": \"%s\",%n", atr);
+        w.format("  \"key_length\": %d,%n", length);
+        w.format("  \"count\": %d,%n", count);
+        w.format("  \"transport\": { \"overhead_ms\": %.3f, \"per_byte_us\": %.3f },%n",
+                t.overhead / 1e6, t.perByte / 1e3);
+        w.println("  \"exchanges\": {");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            w.format("    %s: { \"bytes\": %d, \"round_trip\": { \"mean\": %.3f, \"p50\": %.3f, "
+                    + "\"p99\": %.3f, \"max\": %.3f }, \"transport\": %.3f, \"compute\": { "
+                    + "\"mean\": %.3f, \"p50\": %.3f, \"p99\": %.3f }, \"per_second\": %.2f, "
+                    + "\"errors\": %d, \"verified\": %d, \"failed\": %d, \"verify_ms\": %.1f }%s%n",
+                    quote(r.name), r.bytes, r.roundTrip.getMean() / 1e6,
+                    r.roundTrip.getValueAtPercentile(50) / 1e6,
+                    r.roundTrip.getValueAtPercentile(99) / 1e6, r.roundTrip.getMax() / 1e6,
+                    r.transport / 1e6, r.compute.getMean() / 1e6,
+                    r.compute.getValueAtPercentile(50) / 1e6,
+                    r.compute.getValueAtPercentile(99) / 1e6, 1e9 / r.roundTrip.getMean(),
+                    r.errors, r.verified, r.failed, r.verifyTime,
+                    i + 1 < results.size() ? "," : "");
+        }
+        w.println("  }");
+        w.println("}");
+        w.close();
+
+        if (csv) {
+            out.println("card,atr,key_length,exchange,count,bytes,round_trip_mean_ms,"
+                    + "round_trip_p99_ms,transport_ms,compute_mean_ms,compute_p99_ms,"
+                    + "per_second,errors,failed");
+            for (Result r : results) {
+                out.format("%s,%s,%d,%s,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.2f,%d,%d%n",
+                        quote(label), atr, length, quote(r.name), r.count, r.bytes,
+                        r.roundTrip.getMean() / 1e6, r.roundTrip.getValueAtPercentile(99) / 1e6,
+                        r.transport / 1e6, r.compute.getMean() / 1e6,
+                        r.compute.getValueAtPercentile(99) / 1e6, 1e9 / r.roundTrip.getMean(),
+                        r.errors, r.failed);
+            }
+        }
+    }
+}
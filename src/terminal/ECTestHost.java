@@ -20,7 +20,7 @@ import org.bouncycastle.jce.interfaces.ECPublicKey;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class ECTestHost {
-    private static byte[] SELECT = { (byte) 0x00, (byte) 0xA4, (byte) 0x04,
+    static final byte[] SELECT = { (byte) 0x00, (byte) 0xA4, (byte) 0x04,
 	    (byte) 0x00, (byte) 0x06, (byte) 0x35, (byte) 0x01, (byte) 0x02,
 	    (byte) 0x03, (byte) 0x04, (byte) 0x05 };
 
@@ -52,11 +52,7 @@ public class ECTestHost {
 
 	// The private key: a BigInteger
 	ECPrivateKey privKey = (ECPrivateKey) keyPair.getPrivate();
-	byte[] privKeyData = privKey.getS().toByteArray();
-	if (privKeyData[0] == 0 && privKeyData.length > 1) {
-	    System.err.println("Applying BigInteger.toByteArray() fix...");
-	    privKeyData = Arrays.copyOfRange(privKeyData, 1, privKeyData.length);
-	}
+	byte[] privKeyData = privateKeyData(privKey);
 	System.out.println("privKeyData.length = " + privKeyData.length);
 	
 	// The public key: an ECPoint
@@ -69,7 +65,6 @@ public class ECTestHost {
 	signer.initSign(privKey);
 	signer.update(privKeyData);
 	byte[] hostSign = signer.sign();
-	byte[] hostLen = {(byte) (hostSign.length >> 8), (byte) hostSign.length};
 	System.out.println("hostSign.length = " + hostSign.length);
 	printArray(hostSign);
 	
@@ -81,10 +76,7 @@ public class ECTestHost {
 
 	if (!check9000(channel.transmit(new CommandAPDU(SELECT)))) System.out.println("SELECT failed");
 
-	byte[] keyData = Arrays.copyOf(privKeyData, 24 + 49 + 2 + hostSign.length);
-	System.arraycopy(pubKeyData, 0, keyData, 24, pubKeyData.length);
-	System.arraycopy(hostLen, 0, keyData, 24 + 49, hostLen.length);
-	System.arraycopy(hostSign, 0, keyData, 24 + 49 + 2, hostSign.length);
+	byte[] keyData = keyData(privKeyData, pubKeyData, hostSign);
 	
 	ResponseAPDU response = channel.transmit(new CommandAPDU(0, 2, 0, 0,
 		keyData, 50));
@@ -111,6 +103,32 @@ public class ECTestHost {
 	card.disconnect(false);
     }
 
+    /**
+     * The private key as the card expects it, without the sign byte that
+     * BigInteger.toByteArray() may add
+     */
+    static byte[] privateKeyData(ECPrivateKey privKey) {
+	byte[] privKeyData = privKey.getS().toByteArray();
+	if (privKeyData[0] == 0 && privKeyData.length > 1) {
+	    privKeyData = Arrays.copyOfRange(privKeyData, 1, privKeyData.length);
+	}
+	return privKeyData;
+    }
+
+    /**
+     * Data of the signature request: the private key (24 bytes), the
+     * public key (49 bytes), the length of the host signature (2 bytes)
+     * and the host signature
+     */
+    static byte[] keyData(byte[] privKeyData, byte[] pubKeyData, byte[] hostSign) {
+	byte[] keyData = Arrays.copyOf(privKeyData, 24 + 49 + 2 + hostSign.length);
+	System.arraycopy(pubKeyData, 0, keyData, 24, pubKeyData.length);
+	keyData[24 + 49] = (byte) (hostSign.length >> 8);
+	keyData[24 + 49 + 1] = (byte) hostSign.length;
+	System.arraycopy(hostSign, 0, keyData, 24 + 49 + 2, hostSign.length);
+	return keyData;
+    }
+
     public static boolean check9000(ResponseAPDU ra) {
 	byte[] response = ra.getBytes();
 	return (response[response.length - 2] == (byte) 0x90 && response[response.length - 1] == (byte) 0x00);
@@ -22,29 +22,41 @@
 
 package terminal;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 
 import net.sourceforge.scuba.smartcards.CardServiceException;
 import net.sourceforge.scuba.smartcards.InteractiveConsoleCardService;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.jce.spec.ECParameterSpec;
-import org.bouncycastle.math.ec.ECCurve;
 import org.bouncycastle.math.ec.ECFieldElement;
-import org.bouncycastle.math.ec.ECFieldElementFp12;
 import org.bouncycastle.math.ec.ECFieldElementFp2;
 import org.bouncycastle.math.ec.ECPoint;
 import org.bouncycastle.math.ec.ECPointFp2;
 import org.bouncycastle.math.ec.pairing.ECCurveWithPairing;
 
 import proxy.CardProxy;
+import proxy.TransmitResult;
 import service.ACService;
+import card.CardFarm;
 import card.CardInterface;
+import card.PairingParameters;
+import card.PointTable;
 
 public class GateClient implements GateLogger {
 
@@ -75,34 +87,63 @@ public class GateClient implements GateLogger {
 
     static SecureRandom random = new SecureRandom();
     CardProxy card;
-    static ECFieldElement ONE;
-    static Signature signer;
+    GateVerifier verifier;
+
+    // Keystore (PKCS12) with the gate's ECDSA key, its password and alias
+    public static final String KEYSTORE = "gate.keystore";
+    public static final String KEYSTORE_PASSWORD = "gate.keystore.password";
+    public static final String KEY_ALIAS = "gate.key.alias";
+
+    KeyPair signingKey;
 
     GateLogger log = this;
 
     public GateClient() {
+	this(new CardProxy());
+    }
+
+    /**
+     * Create a gate client that shares the curve, keys and verifier of
+     * another one, only the card connection is its own
+     */
+    public GateClient(GateClient shared, CardProxy card) {
+	this.card = card;
+	c = shared.c;
+	c_params = shared.c_params;
+	Q = shared.Q;
+	a = shared.a;
+	sa = shared.sa;
+	saQ = shared.saQ;
+	verifier = shared.verifier;
+	signingKey = shared.signingKey;
+    }
+
+    /**
+     * Create a gate client using the given card proxy, which may be null
+     * if the client is only used for its keys (e.g. to issue or verify)
+     */
+    public GateClient(CardProxy card) {
+	this(card, KEY_LENGTH);
+    }
+
+    /**
+     * Create a gate client for a curve of the given length (in bits):
+     * 128, 160, 192 or 224
+     */
+    public GateClient(CardProxy card, int keyLength) {
 	// Register BouncyCastle as a SecurityProvider
 	Security.addProvider(new BouncyCastleProvider());
 
-	// Initialise the signer
-	try {
-	    signer = Signature.getInstance("SHA1WITHECDSA", "BC");
-	} catch (NoSuchAlgorithmException e) {
-	    e.printStackTrace();
-	} catch (NoSuchProviderException e) {
-	    e.printStackTrace();
-	}
-
 	// Select the CardInterface to use
 	//if (SIMULATE) {
 	//card = new CardClient();
-	card = new CardProxy();
+	this.card = card;
 	//} else {
 	//card = new CardProxy();
 	//}
 
-	// Construct an Elliptic Curve based on the KEY_LENGTH used by the card 
-	c = constructCurve(KEY_LENGTH);
+	// Construct an Elliptic Curve based on the key length used by the card 
+	c = constructCurve(keyLength);
 	c_params = new ECParameterSpec(c, c.getG(), c.getR());
 
 	// Construct the fixed point on the curve
@@ -116,6 +157,10 @@ public class GateClient implements GateLogger {
 
 	// Construct the public keys for the attributes from sa and Q
 	saQ = constructPublicAttributeKeys(sa, Q);
+
+	// The verifier only reads these tables, it can be shared
+	verifier = new GateVerifier(c, Q, saQ);
+	verifier.setLogger(log);
     }
 
     /**
@@ -176,11 +221,8 @@ public class GateClient implements GateLogger {
 		    Qy2 = curve.fromBigInteger(new BigInteger("3154781622325109970942793240041155216575064371213525353572"));
 		    break;
 		default:
-		    Qx1 = null;
-		    Qx2 = null; 
-		    Qy1 = null; 
-		    Qy2 = null;
-		    break;
+		    // No hard-coded point, derive one
+		    return PairingParameters.fixedPoint(curve);
 	    }
 
 	    ECFieldElementFp2 Qx = new ECFieldElementFp2(Qx1, Qx2, true);
@@ -226,7 +268,7 @@ public class GateClient implements GateLogger {
     /**
      * Construct a number of private attribute keys for the given curve 
      */
-    static private BigInteger[] constructPrivateAttributeKeys(ECCurve.Fp curve) {
+    static private BigInteger[] constructPrivateAttributeKeys(ECCurveWithPairing curve) {
 	BigInteger[] private_key;
 
 	if (RANDOMISE) {
@@ -257,6 +299,8 @@ public class GateClient implements GateLogger {
 		    private_key[3] = new BigInteger("2662731123551621877786553098979283273055334939330269203348");
 		    break;
 		default:
+		    // No hard-coded keys, derive them
+		    private_key = PairingParameters.attributeKeys(curve, 4);
 		    break;
 	    }
 	}
@@ -277,104 +321,265 @@ public class GateClient implements GateLogger {
 	return public_key;
     }
 
-    static private ECPoint[] constructCertificates(BigInteger[] private_key, ECPoint public_key) {
-	ECPoint[] certificate = new ECPoint[private_key.length];
+    /**
+     * Construct the certificates of the selected attributes: the card key
+     * multiplied by their private keys. The window table of the card key is
+     * built once and shared by all of them.
+     */
+    static private ECPoint[] constructCertificates(BigInteger[] private_key, int[] selected,
+	    ECPoint public_key) {
+	ECPoint[] certificate = new ECPoint[selected.length];
+	PointTable table = new PointTable(public_key, public_key.getCurve().getFieldSize());
 
-	for (int i = 0; i < private_key.length; i++) {
-	    certificate[i] = public_key.multiply(private_key[i]);
+	for (int i = 0; i < selected.length; i++) {
+	    certificate[i] = table.multiply(private_key[selected[i]]);
 	}
 
 	return certificate;
     }
 
+    /**
+     * Construct the attribute certificates for the given card key, in the
+     * order of the attributes
+     */
+    public ECPoint[] certify(ECPoint card_key) {
+	int[] all = new int[sa.length];
+	for (int i = 0; i < all.length; i++) {
+	    all[i] = i;
+	}
+	return constructCertificates(sa, all, card_key);
+    }
+
+    /**
+     * Construct only the certificates of the given attributes
+     *
+     * @return The certificates in the order of attribute_id, null if an
+     *         id is unknown
+     */
+    public ECPoint[] certify(ECPoint card_key, byte[] attribute_id) {
+	int[] selected = new int[attribute_id.length];
+	for (int i = 0; i < attribute_id.length; i++) {
+	    selected[i] = getAttributeIndex(attribute_id[i]);
+	    if (selected[i] < 0) {
+		log.append("!!! Unknown attribute ID: " + attribute_id[i]);
+		return null;
+	    }
+	}
+	return constructCertificates(sa, selected, card_key);
+    }
+
+    /**
+     * The index of the attribute with the given id, -1 if there is none
+     */
+    public int getAttributeIndex(byte id) {
+	for (int i = 0; i < a.length; i++) {
+	    if (a[i].id == id) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * The id and value of the attribute with the given index
+     */
+    public byte getAttributeId(int attrIndex) {
+	return a[attrIndex].id;
+    }
+
+    public BigInteger getAttributeValue(int attrIndex) {
+	return a[attrIndex].value;
+    }
+
     public void personalise(byte[] attribute_id) {
 	log.append("---> Personalising card with parameters:");
-	log.append("  key_length = " + KEY_LENGTH);
+	log.append("  key_length = " + c.getFieldSize());
 	log.append("");
 
-	// Initialise the card by storing the ECC parameters
-	ECPoint card_key = card.initialise(c.getP(), c.getR(), 
-		c.getA().toBigInteger(), c.getB().toBigInteger(), c.getG());
+	ECPoint card_key = initialiseCard();
+	if (card_key == null) {
+	    log.append("!!! Could not obtain the card key");
+	    return;
+	}
 
 	// Construct certificates based on the card's key
-	ECPoint[] cert = constructCertificates(sa, card_key);
+	ECPoint[] cert = certify(card_key, attribute_id);
+	if (cert != null) {
+	    store(attribute_id, cert);
+	}
+    }
 
-	// Select the requested attributes and certificates for personalisation
+    /**
+     * Get the key of the card on the reader, initialising the card first.
+     * A new card returns its key with INITIALISE; a card that was
+     * initialised before refuses it, and its key is read with GET_KEY.
+     *
+     * @return The card's public key, null if the card did not answer
+     */
+    public ECPoint initialiseCard() {
+	// Initialise the card by storing the ECC parameters
+	return card.initialise(c.getP(), c.getR(), 
+		c.getA().toBigInteger(), c.getB().toBigInteger(), c.getG());
+    }
+
+    /**
+     * Store the requested attributes on the card, with their certificates
+     *
+     * @param attribute_id Ids of the attributes to store
+     * @param cert Their certificates, as returned by certify(card_key, attribute_id)
+     * @return Whether the card accepted them
+     */
+    public boolean store(byte[] attribute_id, ECPoint[] cert) {
+	// Select the values of the requested attributes for personalisation
 	BigInteger[] attribute = new BigInteger[attribute_id.length];
-	ECPoint[] certificate = new ECPoint[attribute_id.length];
 
 	for (int i = 0; i < attribute_id.length; i++) {
-
-	    int j = 0; 
-	    while (j < a.length && attribute_id[i] != a[j].id) j++;
-
-	    if (attribute_id[i] != a[j].id) {
+	    int j = getAttributeIndex(attribute_id[i]);
+	    if (j < 0) {
 		log.append("!!! Unknown attribute ID: " + attribute_id[i]);
-		return;
-	    } else {
-		attribute[i] = a[j].value;
-		certificate[i] = cert[j];
-	    }	    
+		return false;
+	    }
+	    attribute[i] = a[j].value;
 	}
 
-	card.personalise(attribute_id, attribute, certificate);
+	card.personalise(attribute_id, attribute, cert);
+	TransmitResult result = card.getLastResult();
+	return result != null && result.isOK() && result.getResponse().getSW() == 0x9000;
     }
 
     public BigInteger[] proveAttribute(int attrIndex) {
-	log.append("---> Get Attributes");
-	BigInteger N = BigInteger.probablePrime(127, random);		
-	ECPoint nonce = c.getG().multiply(N);
-	BigInteger[] attr = card.getAttribute(a[attrIndex].id, nonce);
-	if (attr == null) {
+	Passage passage = readAttribute(attrIndex);
+	if (passage == null) {
+	    return null;
+	}
+
+	// *** NONCE AND PAIRING SIGNATURE VERIFICATION ***
+	if (!verifier.checkNonce(passage) || !verifier.checkPairing(passage)) {
+	    return null;
+	}
+	passage.granted = true;
+
+	log.append("*** VERIFICATION ***");
+	System.out.format(" d = %.2f ms\n", (passage.nonceTime + passage.pairingTime) / 1000000.0);
+	return passage.attr;
+    }
+
+    /**
+     * Card I/O phase of a tap: challenge the card with a fresh nonce and
+     * read the blinded attribute proof. The proof is checked separately
+     * by the verifier, so the next card can be read in the meantime.
+     *
+     * @return The passage to verify, null if the card did not answer
+     */
+    public Passage readAttribute(int attrIndex) {
+	Passage passage = readAttribute(attrIndex, card);
+	if (passage == null) {
 	    return null;
 	}
-	for(BigInteger ti : attr) {
+	if (card.getTerminal() != null) {
+	    passage.reader = card.getTerminal().getName();
+	}
+	for(BigInteger ti : passage.attr) {
 	    System.out.println("attr: "+ti);
 	}
+	return passage;
+    }
+
+    /**
+     * Card I/O phase of a tap on any card, e.g. one of a CardFarm
+     *
+     * @return The passage to verify, null if the card did not answer
+     */
+    public Passage readAttribute(int attrIndex, CardInterface card) {
+	log.append("---> Get Attributes");
+	Passage passage = new Passage(attrIndex);
+	passage.attributeId = a[attrIndex].id;
+	passage.nonce = BigInteger.probablePrime(127, random);
+	ECPoint nonce = c.getG().multiply(passage.nonce);
 
-	// *** NONCE SIGNATURE VERIFICATION ***
 	long start = System.nanoTime();
-	ECPoint sn = reconstructPoint(c, attr[CardInterface.SIGNED_NONCE], false);
-	ECPoint bk = reconstructPoint(c, attr[CardInterface.BLINDED_KEY], false);
-
-	ECPoint bkn = bk.multiply(N); 
-	if (!bkn.equals(sn)) {
-	    log.append("Nonce signature verification failed (n.bk != sn)");
-	    if (!bkn.negate().equals(sn)) {
-		log.append("Nonce signature verification failed (-n.bk != sn)");
-		return null;
-	    } else {
-		log.append("Nonce signature verification succeeded (-n.bk == sn)");
-	    }
-	} else {
-	    log.append("Nonce signature verification succeeded (n.bk == sn)");
-	}
-	
-	// *** PAIRING SIGNATURE VERIFICATION ***
-	ECFieldElement e1 = c.R_atePairing(bk, saQ[attrIndex]);
+	passage.attr = card.getAttribute(a[attrIndex].id, nonce);
+	passage.ioTime = System.nanoTime() - start;
+	return passage.attr == null ? null : passage;
+    }
 
-	ECPoint bs = reconstructPoint(c, attr[CardInterface.BLINDED_SIGNATURE], false);
-	ECFieldElement e2 = c.R_atePairing(bs, Q);
+    /**
+     * Simulate a number of cards of this issuer, without attributes yet
+     *
+     * @param seed Seed for the card keys and blinders
+     */
+    public CardFarm createCardFarm(int cards, long seed) {
+	byte[] id = new byte[a.length];
+	BigInteger[] value = new BigInteger[a.length];
+	for (int i = 0; i < a.length; i++) {
+	    id[i] = a[i].id;
+	    value[i] = a[i].value;
+	}
+	return new CardFarm(cards, c.getG(), c.getR(), id, value, certify(c.getG()), seed);
+    }
 
-	ONE = new ECFieldElementFp12(new ECFieldElement.Fp(c.getQ(), BigInteger.valueOf(1)));
+    /**
+     * The ECDSA key pair of the gate, loaded on first use from the keystore
+     * named by the gate.keystore property (password gate.keystore.password,
+     * alias gate.key.alias, "gate" by default). The back office verifies
+     * receipts with the public key of its certificate. A keystore can be
+     * made with e.g.
+     *
+     *   keytool -genkeypair -keyalg EC -groupname secp256r1 -alias gate
+     *           -storetype PKCS12 -keystore gate.p12
+     *
+     * @throws KeyStoreException if no keystore is configured or it holds no
+     *         usable key, receipts are never signed with a throwaway key
+     */
+    public synchronized KeyPair getSigningKey() throws GeneralSecurityException {
+	if (signingKey == null) {
+	    signingKey = loadSigningKey();
+	}
+	return signingKey;
+    }
 
-	if (!e1.equals(e2)) {
-	    log.append("Pairing signature verification failed (e1 != e2)");
-	    if(!ONE.equals(e1.multiply(e2))) {
-		log.append("Pairing signature verification failed (!equals ONE)");
-		return null;
-	    }
-	    else {
-		log.append("Pairing signature verification succeeded (equals ONE)");
+    private static KeyPair loadSigningKey() throws GeneralSecurityException {
+	String file = System.getProperty(KEYSTORE);
+	if (file == null) {
+	    throw new KeyStoreException("No gate keystore, set " + KEYSTORE);
+	}
+	char[] password = System.getProperty(KEYSTORE_PASSWORD, "").toCharArray();
+	String alias = System.getProperty(KEY_ALIAS, "gate");
+	KeyStore store = KeyStore.getInstance("PKCS12");
+	try {
+	    InputStream in = new FileInputStream(file);
+	    try {
+		store.load(in, password);
+	    } finally {
+		in.close();
 	    }
-	} else {
-	    log.append("Pairing signature verification succeeded (e1 == e2)");
+	} catch (IOException e) {
+	    throw new KeyStoreException("Cannot read gate keystore " + file + ": " + e.getMessage(), e);
+	}
+	Key key = store.getKey(alias, password);
+	if (!(key instanceof PrivateKey) || store.getCertificate(alias) == null
+		|| !key.getAlgorithm().startsWith("EC")) {
+	    throw new KeyStoreException("No EC key pair \"" + alias + "\" in " + file);
 	}
+	// Re-encode the keys for the BouncyCastle signer
+	KeyFactory factory = KeyFactory.getInstance("ECDSA", "BC");
+	return new KeyPair(
+		factory.generatePublic(new X509EncodedKeySpec(store.getCertificate(alias).getPublicKey().getEncoded())),
+		factory.generatePrivate(new PKCS8EncodedKeySpec(key.getEncoded())));
+    }
 
-	long end = System.nanoTime();
-	log.append("*** VERIFICATION ***");
-	System.out.format(" d = %.2f ms\n", (end - start) / 1000000.0);
-	return attr;
+    /**
+     * Batch passage records under receipts signed with the gate's key, by a
+     * signer of the batcher's own
+     */
+    public ReceiptBatcher createReceiptBatcher(int gate, int maxRecords, long maxDelay,
+	    ReceiptListener listener) throws GeneralSecurityException {
+	return new ReceiptBatcher(gate, Signature.getInstance("SHA1WITHECDSA", "BC"),
+		getSigningKey().getPrivate(), maxRecords, maxDelay, listener);
+    }
+
+    public GateVerifier getVerifier() {
+	return verifier;
     }
 
   /*  public static void main(String[] args) {
@@ -492,17 +697,6 @@ public class GateClient implements GateLogger {
 	}
     }*/
 
-    private static ECPoint reconstructPoint(ECCurve c, BigInteger i, boolean negate) {	
-	ECFieldElement x = c.fromBigInteger(i);
-	ECFieldElement y = x.multiply(x).multiply(x).add(
-		c.getA().multiply(x)).add(c.getB()).sqrt();
-	if (negate) {
-	    return c.createPoint(x.toBigInteger(), y.toBigInteger().negate(), false);
-	} else {
-	    return c.createPoint(x.toBigInteger(), y.toBigInteger(), false);
-	}
-    }
-
     public static void printArray(byte[] array) {
 	for (int i = 0; i < array.length; i++) {
 	    String s = Integer.toHexString(array[i] & 0xff).toString();
@@ -517,6 +711,7 @@ public class GateClient implements GateLogger {
 
     public void setLogger(GateLogger logger) {
 	log = logger;
+	verifier.setLogger(logger);
     }
 /*
     public static void main(String[] args) {
@@ -54,6 +54,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.border.Border;
 
 import net.sourceforge.gpj.cardservices.AID;
@@ -328,7 +329,6 @@ public class GateClientGUI extends JPanel implements GateLogger {
                 terminal = factory.terminals().list().get(
                         CardProxyConfiguration.TERMINAL_ID);
             }
-            terminal.waitForCardPresent(100);
             if (!terminal.isCardPresent()) {
                 statusTextArea.append("\nNo card on/in the reader!");
                 return null;
@@ -342,8 +342,8 @@ public class GateClientGUI extends JPanel implements GateLogger {
 
     }
 
-    private URL getCapFileURL() {
-        URL url = getClass().getResource("GateClientGUI.class");
+    static URL getCapFileURL() {
+        URL url = GateClientGUI.class.getResource("GateClientGUI.class");
         String path = url.toString();
         int i = path.indexOf("terminal/GateClientGUI.class");
         path = path.substring(0,i)+"javacard/applet.cap";
@@ -359,6 +359,23 @@ public class GateClientGUI extends JPanel implements GateLogger {
     static byte[] sdAID = { (byte) 0xA0, 0x00, 0x00, 0x00, 0x03, 0x00, 0x00,
             0x00 };
 
+    /**
+     * Shows the exchanged APDUs in the status area. The text is formatted
+     * and appended on the event dispatch thread, not during transmit.
+     */
+    class StatusAPDUListener implements APDUListener {
+        public void exchangedAPDU(final CommandAPDU c, final ResponseAPDU r) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    statusTextArea.append("C: "
+                            + GPUtil.byteArrayToString(c.getBytes()) + "\n");
+                    statusTextArea.append("R: "
+                            + GPUtil.byteArrayToString(r.getBytes()) + "\n");
+                }
+            });
+        }
+    }
+
     class UploadAppletEventListener implements ActionListener {
         public void actionPerformed(ActionEvent ae) {
             try {
@@ -368,20 +385,7 @@ public class GateClientGUI extends JPanel implements GateLogger {
                 statusTextArea.setText("");
                 GlobalPlatformService s = new GlobalPlatformService(new AID(
                         sdAID), channel);
-                s.addAPDUListener(new APDUListener() {
-                    public void exchangedAPDU(CommandAPDU c, ResponseAPDU r) {
-                        statusTextArea
-                                .append("C: "
-                                        + GPUtil
-                                                .byteArrayToString(c.getBytes())
-                                        + "\n");
-                        statusTextArea
-                                .append("R: "
-                                        + GPUtil
-                                                .byteArrayToString(r.getBytes())
-                                        + "\n");
-                    }
-                });
+                s.addAPDUListener(new StatusAPDUListener());
                 s.openWithDefaultKeys();
                 statusTextArea.append("\nDeleting previous instance.\n");
                 try {
@@ -412,20 +416,7 @@ public class GateClientGUI extends JPanel implements GateLogger {
                 statusTextArea.setText("");
                 GlobalPlatformService s = new GlobalPlatformService(new AID(
                         sdAID), channel);
-                s.addAPDUListener(new APDUListener() {
-                    public void exchangedAPDU(CommandAPDU c, ResponseAPDU r) {
-                        statusTextArea
-                                .append("C: "
-                                        + GPUtil
-                                                .byteArrayToString(c.getBytes())
-                                        + "\n");
-                        statusTextArea
-                                .append("R: "
-                                        + GPUtil
-                                                .byteArrayToString(r.getBytes())
-                                        + "\n");
-                    }
-                });
+                s.addAPDUListener(new StatusAPDUListener());
                 s.openWithDefaultKeys();
                 try {
                     s.deleteAID(new AID(packageAID), true);
@@ -0,0 +1,539 @@
+/**
+ * GateLoadGenerator.java
+ *
+ * Drives simulated passengers through gates and measures the latency
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import service.ACService;
+import service.BenchmarkSupport;
+import service.EmulatedCardService;
+import card.CardFarm;
+import card.PairingParameters;
+
+/**
+ * Open-loop load test of a gate host: passengers arrive by a Poisson
+ * process whose rate follows the chosen profile, wait in a queue, and
+ * are served by a number of concurrent gate sessions on simulated cards.
+ * Latencies are measured from the moment a passenger arrives, so time
+ * spent waiting for a free gate counts too and an overloaded host shows
+ * up in the percentiles instead of in a lower arrival rate.
+ *
+ * Gate sessions run GateClient on a CardFarm and record the I/O, nonce
+ * and pairing phases of every passage. Service sessions run ACService on
+ * its own EmulatedCardService each, the whole APDU path, and record the
+ * total only. Arrivals that find the queue full are dropped and counted.
+ *
+ * The report is written as JSON with the percentiles of every phase in
+ * ms; a short summary goes to System.err.
+ */
+public class GateLoadGenerator {
+
+    // Waiting passengers per gate before arrivals are dropped
+    private static final int QUEUE_PER_GATE = 64;
+
+    /**
+     * Arrival rate over time
+     */
+    public interface ArrivalProcess {
+        /**
+         * @param t Time since the start (in s)
+         * @return Passengers per minute
+         */
+        public double rate(double t);
+
+        /**
+         * @return The highest rate at any time (passengers per minute)
+         */
+        public double getPeak();
+    }
+
+    /**
+     * The same rate all the time
+     */
+    public static ArrivalProcess steady(final double perMinute) {
+        return new ArrivalProcess() {
+            public double rate(double t) {
+                return perMinute;
+            }
+
+            public double getPeak() {
+                return perMinute;
+            }
+        };
+    }
+
+    /**
+     * A base rate with a burst at the start of every period
+     *
+     * @param period Length of a period (in s)
+     * @param burst Length of the burst (in s)
+     */
+    public static ArrivalProcess burst(final double base, final double peak, final double period,
+            final double burst) {
+        return new ArrivalProcess() {
+            public double rate(double t) {
+                return t % period < burst ? peak : base;
+            }
+
+            public double getPeak() {
+                return Math.max(base, peak);
+            }
+        };
+    }
+
+    /**
+     * Replay a recorded profile: lines of a time (in s) and the rate from
+     * then on, e.g. counts per minute of a rush hour. Lines starting with
+     * # are skipped.
+     *
+     * @param speedup How much faster than recorded the profile is played
+     */
+    public static ArrivalProcess replay(String file, final double speedup) throws IOException {
+        final List<double[]> steps = new ArrayList<double[]>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split("[\\s,]+");
+                steps.add(new double[] { Double.parseDouble(f[0]), Double.parseDouble(f[1]) });
+            }
+        } finally {
+            in.close();
+        }
+        return new ArrivalProcess() {
+            public double rate(double t) {
+                double rate = 0;
+                for (double[] s : steps) {
+                    if (s[0] > t * speedup) {
+                        break;
+                    }
+                    rate = s[1];
+                }
+                return rate * speedup;
+            }
+
+            public double getPeak() {
+                double peak = 0;
+                for (double[] s : steps) {
+                    peak = Math.max(peak, s[1]);
+                }
+                return peak * speedup;
+            }
+        };
+    }
+
+    /**
+     * One passage through a gate, reusing its simulated card
+     */
+    interface Session {
+        /**
+         * @return Whether the passenger was granted entry
+         */
+        boolean pass(int attrIndex, Phases phases) throws Exception;
+    }
+
+    /**
+     * Latencies of the phases, one histogram each
+     */
+    static class Phases {
+        final Map<String, LatencyHistogram> phases = new LinkedHashMap<String, LatencyHistogram>();
+
+        void record(String phase, long nanos) {
+            LatencyHistogram h;
+            synchronized (phases) {
+                h = phases.get(phase);
+                if (h == null) {
+                    phases.put(phase, h = new LatencyHistogram());
+                }
+            }
+            h.record(nanos);
+        }
+    }
+
+    private final ArrivalProcess arrivals;
+    private final double[] mix;
+    private final List<Session> sessions;
+    private final long seed;
+
+    private final Phases phases = new Phases();
+    private final AtomicLong arrived = new AtomicLong();
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param arrivals When passengers arrive
+     * @param mix Weights of the attributes the passengers show, by index
+     * @param sessions One per concurrent gate
+     */
+    GateLoadGenerator(ArrivalProcess arrivals, double[] mix, List<Session> sessions, long seed) {
+        this.arrivals = arrivals;
+        this.sessions = sessions;
+        this.seed = seed;
+        double total = 0;
+        for (double w : mix) {
+            total += w;
+        }
+        this.mix = new double[mix.length];
+        double sum = 0;
+        for (int i = 0; i < mix.length; i++) {
+            sum += mix[i] / total;
+            this.mix[i] = sum;
+        }
+    }
+
+    /**
+     * Sessions of GateClient on cards of a farm, which hold all attributes
+     */
+    static List<Session> gateSessions(final GateClient issuer, final CardFarm farm, int gates,
+            long seed) {
+        byte[] all = new byte[issuer.getVerifier().getAttributeCount()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = issuer.getAttributeId(i);
+        }
+        farm.issueAll(all);
+        List<Session> s = new ArrayList<Session>();
+        for (int g = 0; g < gates; g++) {
+            final GateClient client = new GateClient(issuer, null);
+            client.setLogger(GateLogger.SILENT);
+            final GateVerifier verifier = client.getVerifier();
+            final Random random = new Random(seed + g);
+            s.add(new Session() {
+                public boolean pass(int attrIndex, Phases phases) {
+                    int card = random.nextInt(farm.getCardCount());
+                    Passage p = client.readAttribute(attrIndex, farm.card(card));
+                    if (p == null) {
+                        throw new IllegalStateException("Card " + card + " did not answer");
+                    }
+                    boolean ok = verifier.checkNonce(p) && verifier.checkPairing(p);
+                    phases.record("io", p.ioTime);
+                    phases.record("nonce", p.nonceTime);
+                    phases.record("pairing", p.pairingTime);
+                    return ok;
+                }
+            });
+        }
+        return s;
+    }
+
+    /**
+     * Sessions of ACService, each on its own personalised emulated card
+     */
+    static List<Session> serviceSessions(int gates, EmulatedCardService.DelayModel transport,
+            long seed) throws Exception {
+        List<Session> s = new ArrayList<Session>();
+        for (int g = 0; g < gates; g++) {
+            EmulatedCardService card = new EmulatedCardService(seed + g);
+            final ACService service = new ACService(card, null);
+            service.open();
+            service.initialiseCard();
+            service.personalise(new byte[] { 1, 2, 3, 4 });
+            card.setTransportDelay(transport);
+            s.add(new Session() {
+                public boolean pass(int attrIndex, Phases phases) throws Exception {
+                    long start = System.nanoTime();
+                    boolean ok = service.proveAttribute(attrIndex) != null;
+                    phases.record("service", System.nanoTime() - start);
+                    return ok;
+                }
+            });
+        }
+        return s;
+    }
+
+    /**
+     * Generate arrivals for the given time and wait until all passengers
+     * have been served
+     *
+     * @param warmup Time before measuring starts (in s)
+     * @param duration Measured time (in s)
+     * @return Measured time including the queue draining (in s)
+     */
+    double run(double warmup, double duration) throws InterruptedException {
+        final BlockingQueue<long[]> queue = new ArrayBlockingQueue<long[]>(QUEUE_PER_GATE * sessions.size());
+        final long[] stop = new long[0];
+        final Random random = new Random(seed);
+
+        List<Thread> gates = new ArrayList<Thread>();
+        for (int g = 0; g < sessions.size(); g++) {
+            final Session session = sessions.get(g);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    serve(session, queue, stop);
+                }
+            }, "Gate-" + g);
+            gates.add(t);
+            t.start();
+        }
+
+        // Arrival times and attributes are drawn here, passengers carry
+        // (arrival, attribute, measured)
+        long start = System.nanoTime();
+        long measureFrom = start + (long) (warmup * 1e9);
+        long end = measureFrom + (long) (duration * 1e9);
+        long next = start;
+        // Thinning (Lewis and Shedler): candidates arrive at the peak rate
+        // and each is kept with probability rate(t) / peak, which gives
+        // exactly the time-varying rate, also right after a step up
+        double peak = arrivals.getPeak() / 60;
+        while (peak > 0) {
+            next += (long) (-Math.log(1 - random.nextDouble()) / peak * 1e9);
+            if (next >= end) {
+                break;
+            }
+            if (random.nextDouble() * peak >= arrivals.rate((next - start) / 1e9) / 60) {
+                continue;
+            }
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean measured = next >= measureFrom;
+            long[] passenger = { next, attribute(random.nextDouble()), measured ? 1 : 0 };
+            if (measured) {
+                arrived.incrementAndGet();
+            }
+            if (!queue.offer(passenger) && measured) {
+                dropped.incrementAndGet();
+            }
+        }
+        long idle;
+        while (peak <= 0 && (idle = end - System.nanoTime()) > 0) {
+            // Nobody ever arrives, still run for the whole time
+            LockSupport.parkNanos(idle);
+        }
+        for (int g = 0; g < gates.size(); g++) {
+            queue.put(stop);
+        }
+        for (Thread t : gates) {
+            t.join();
+        }
+        return (System.nanoTime() - measureFrom) / 1e9;
+    }
+
+    private int attribute(double u) {
+        int i = 0;
+        while (i < mix.length - 1 && u >= mix[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private void serve(Session session, BlockingQueue<long[]> queue, long[] stop) {
+        while (true) {
+            long[] passenger;
+            try {
+                passenger = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (passenger == stop) {
+                return;
+            }
+            boolean measured = passenger[2] == 1;
+            long start = System.nanoTime();
+            Phases record = measured ? phases : new Phases();
+            try {
+                boolean ok = session.pass((int) passenger[1], record);
+                if (measured) {
+                    (ok ? granted : denied).incrementAndGet();
+                }
+            } catch (Exception e) {
+                if (measured) {
+                    failed.incrementAndGet();
+                }
+                continue;
+            }
+            if (measured) {
+                phases.record("queue", start - passenger[0]);
+                phases.record("total", System.nanoTime() - passenger[0]);
+            }
+        }
+    }
+
+    /**
+     * Write the counts and the percentiles of every phase (in ms) as JSON
+     */
+    void report(PrintWriter out, String config, double seconds) {
+        long served = granted.get() + denied.get();
+        out.println("{");
+        out.format("  \"config\": \"%s\",%n", config.replace("\\", "\\\\").replace("\"", "\\\""));
+        out.format("  \"seconds\": %.3f,%n", seconds);
+        out.format("  \"arrived\": %d,%n", arrived.get());
+        out.format("  \"granted\": %d,%n", granted.get());
+        out.format("  \"denied\": %d,%n", denied.get());
+        out.format("  \"failed\": %d,%n", failed.get());
+        out.format("  \"dropped\": %d,%n", dropped.get());
+        out.format("  \"passengers_per_minute\": %.1f,%n", served * 60 / seconds);
+        out.println("  \"phases\": {");
+        int n = 0;
+        for (Map.Entry<String, LatencyHistogram> e : phases.phases.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            out.format("    \"%s\": { \"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, "
+                    + "\"p99\": %.3f, \"p99.9\": %.3f, \"max\": %.3f }%s%n", e.getKey(),
+                    h.getCount(), h.getMean() / 1e6, h.getValueAtPercentile(50) / 1e6,
+                    h.getValueAtPercentile(90) / 1e6, h.getValueAtPercentile(99) / 1e6,
+                    h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6,
+                    ++n < phases.phases.size() ? "," : "");
+        }
+        out.println("  }");
+        out.println("}");
+    }
+
+    private static double[] parseMix(String mix, int attributes) {
+        double[] w = new double[attributes];
+        for (String part : mix.split(",")) {
+            String[] f = part.split(":");
+            w[Integer.parseInt(f[0]) - 1] = Double.parseDouble(f[1]);
+        }
+        return w;
+    }
+
+    private static ArrivalProcess parseArrivals(String spec) throws IOException {
+        String[] f = spec.split(":", 2);
+        String[] p = f.length > 1 ? f[1].split(",") : new String[0];
+        if (f[0].equals("steady")) {
+            return steady(Double.parseDouble(p[0]));
+        } else if (f[0].equals("burst")) {
+            return burst(Double.parseDouble(p[0]), Double.parseDouble(p[1]),
+                    Double.parseDouble(p[2]), Double.parseDouble(p[3]));
+        } else if (f[0].equals("replay")) {
+            return replay(p[0], p.length > 1 ? Double.parseDouble(p[1]) : 1);
+        }
+        throw new IllegalArgumentException("Unknown arrival process " + spec);
+    }
+
+    /**
+     * Run a load test and write its report
+     *
+     * Usage: GateLoadGenerator [--mode gate|service] [--gates n]
+     *          [--arrival steady:perMin | burst:base,peak,period,length
+     *             | replay:file[,speedup]]
+     *          [--mix id:weight,...] [--cards n] [--latency ms] [--jitter ms]
+     *          [--bitrate bps] [--warmup s] [--duration s] [--seed n]
+     *          [--report file]
+     */
+    public static void main(String[] args) throws Exception {
+        PairingParameters.useBenchmarkSeed();
+        String mode = "gate";
+        int gates = Runtime.getRuntime().availableProcessors();
+        String arrival = "steady:60";
+        String mix = "1:1,2:1,3:1,4:1";
+        int cards = 100000;
+        double latency = 0;
+        double jitter = 0;
+        int bitrate = 106000;
+        double warmup = 10;
+        double duration = 60;
+        long seed = 1;
+        String report = "load-report.json";
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--mode")) {
+                mode = args[++i];
+            } else if (a.equals("--gates")) {
+                gates = Integer.parseInt(args[++i]);
+            } else if (a.equals("--arrival")) {
+                arrival = args[++i];
+            } else if (a.equals("--mix")) {
+                mix = args[++i];
+            } else if (a.equals("--cards")) {
+                cards = Integer.parseInt(args[++i]);
+            } else if (a.equals("--latency")) {
+                latency = Double.parseDouble(args[++i]);
+            } else if (a.equals("--jitter")) {
+                jitter = Double.parseDouble(args[++i]);
+            } else if (a.equals("--bitrate")) {
+                bitrate = Integer.parseInt(args[++i]);
+            } else if (a.equals("--warmup")) {
+                warmup = Double.parseDouble(args[++i]);
+            } else if (a.equals("--duration")) {
+                duration = Double.parseDouble(args[++i]);
+            } else if (a.equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (a.equals("--report")) {
+                report = args[++i];
+            } else {
+                throw new IllegalArgumentException("Unknown option " + a);
+            }
+        }
+        StringBuilder config = new StringBuilder();
+        for (String a : args) {
+            config.append(config.length() == 0 ? "" : " ").append(a);
+        }
+
+        PrintStream out = BenchmarkSupport.discardStdout();
+
+        List<Session> sessions;
+        if (mode.equals("gate")) {
+            GateClient issuer = new GateClient((proxy.CardProxy) null);
+            issuer.setLogger(GateLogger.SILENT);
+            CardFarm farm = issuer.createCardFarm(cards, seed);
+            farm.setLatency((long) (latency * 1e6), (long) (jitter * 1e6));
+            sessions = gateSessions(issuer, farm, gates, seed);
+        } else if (mode.equals("service")) {
+            sessions = serviceSessions(gates, EmulatedCardService.link((long) (latency * 1e6), bitrate),
+                    seed);
+        } else {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+
+        GateLoadGenerator load = new GateLoadGenerator(parseArrivals(arrival), parseMix(mix, 4),
+                sessions, seed);
+        System.err.format("%s: %d gates, %s, %.0f s warm-up, %.0f s measured%n", mode, gates,
+                arrival, warmup, duration);
+        double seconds = load.run(warmup, duration);
+        System.setOut(out);
+
+        PrintWriter w = new PrintWriter(new FileWriter(report));
+        try {
+            load.report(w, config.toString(), seconds);
+        } finally {
+            w.close();
+        }
+        LatencyHistogram total = load.phases.phases.get("total");
+        System.err.format("%d arrived, %d granted, %d denied, %d failed, %d dropped; "
+                + "%.1f passengers/min, p99 %.1f ms; report in %s%n", load.arrived.get(),
+                load.granted.get(), load.denied.get(), load.failed.get(), load.dropped.get(),
+                (load.granted.get() + load.denied.get()) * 60 / seconds,
+                total == null ? 0 : total.getValueAtPercentile(99) / 1e6, report);
+    }
+}
@@ -23,6 +23,17 @@ package terminal;
 
 public interface GateLogger {
 
+    /**
+     * Drops all messages, for gates that run unattended
+     */
+    public static final GateLogger SILENT = new GateLogger() {
+        public void append(String message) {
+        }
+
+        public void clear() {
+        }
+    };
+
     public void append(String message);
     
     public void clear();
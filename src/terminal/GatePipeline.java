@@ -0,0 +1,213 @@
+/**
+ * GatePipeline.java
+ *
+ * Gate that reads the next card while the previous one is being verified
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+/**
+ * Runs the phases of a tap on three threads, connected by bounded
+ * single-producer/single-consumer queues:
+ *
+ *   card I/O  ->  decompression and nonce check  ->  pairing check
+ *
+ * As soon as a card has been read and taken away, the next card can be
+ * read while the previous passage is still being verified. Decisions are
+ * delivered in the order in which the cards were read.
+ */
+public class GatePipeline {
+
+    // Passages that may wait between two stages
+    private static final int DEPTH = 4;
+
+    // How often the I/O stage checks whether it should stop (in ms)
+    private static final long POLL_INTERVAL = 1000;
+
+    private final GateClient client;
+    private final GateVerifier verifier;
+    private final int attrIndex;
+    private final PassageListener listener;
+
+    private final SpscQueue<Passage> read = new SpscQueue<Passage>(DEPTH);
+    private final SpscQueue<Passage> checked = new SpscQueue<Passage>(DEPTH);
+
+    private Thread[] stages = null;
+    private volatile boolean running = false;
+
+    /**
+     * @param client The gate client used for card I/O
+     * @param attrIndex Index of the attribute every passenger must prove
+     * @param listener Receives the decision for every passage
+     */
+    public GatePipeline(GateClient client, int attrIndex, PassageListener listener) {
+        this.client = client;
+        this.verifier = client.getVerifier();
+        this.attrIndex = attrIndex;
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        stages = new Thread[] {
+            stage("io", new Runnable() {
+                public void run() {
+                    readCards();
+                }
+            }),
+            stage("nonce", new Runnable() {
+                public void run() {
+                    checkNonces();
+                }
+            }),
+            stage("pairing", new Runnable() {
+                public void run() {
+                    checkPairings();
+                }
+            })
+        };
+        for (Thread t : stages) {
+            t.start();
+        }
+    }
+
+    /**
+     * Stop all stages, passages still in the pipeline are discarded
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Thread t : stages) {
+            t.interrupt();
+        }
+        for (Thread t : stages) {
+            try {
+                t.join(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private Thread stage(String name, Runnable r) {
+        Thread t = new Thread(r, "GatePipeline-" + name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Stage 1: wait for a card, read it, then wait until it is taken away
+     * so the same card is not read twice (or retried in a tight loop when
+     * the read failed)
+     */
+    private void readCards() {
+        try {
+            while (running) {
+                if (!client.card.awaitCard(POLL_INTERVAL)) {
+                    // No passenger yet
+                    continue;
+                }
+                Passage p = client.readAttribute(attrIndex);
+                if (p != null) {
+                    read.put(p);
+                }
+                // Also after a failed read: the passenger taps again rather
+                // than the reader hammering a card that does not answer
+                while (running && !client.card.waitForCardAbsent(POLL_INTERVAL)) {
+                    // Card still on the reader
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Stage 2: decompress the points and check the nonce signature
+     */
+    private void checkNonces() {
+        try {
+            while (running) {
+                Passage p = read.take();
+                try {
+                    p.nonceVerified = verifier.checkNonce(p);
+                } catch (RuntimeException e) {
+                    // A malformed answer denies this passage only
+                    e.printStackTrace();
+                    p.nonceVerified = false;
+                }
+                checked.put(p);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Stage 3: check the pairings and report the decision
+     */
+    private void checkPairings() {
+        try {
+            while (running) {
+                Passage p = checked.take();
+                try {
+                    p.granted = p.nonceVerified && verifier.checkPairing(p);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    p.granted = false;
+                }
+                try {
+                    listener.passageDecided(p);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Run a pipelined gate for the given attribute index until killed
+     */
+    public static void main(String[] args) {
+        int attrIndex = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        GateClient client = new GateClient();
+        GatePipeline gate = new GatePipeline(client, attrIndex, new PassageListener() {
+            public void passageDecided(Passage passage) {
+                System.out.println("*** " + passage);
+            }
+        });
+        gate.start();
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            gate.stop();
+        }
+    }
+}
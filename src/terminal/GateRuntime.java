@@ -0,0 +1,250 @@
+/**
+ * GateRuntime.java
+ *
+ * Serves all attached readers from a single gate process
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+
+import proxy.CardProxy;
+import proxy.CardProxyConfiguration;
+import verifier.LaneScheduler;
+
+/**
+ * Gives every reader its own thread for the blocking card I/O, while all
+ * readers share one pool of verifier threads and one set of keys and
+ * tables. Reader threads only wait on the card, so they run with a small
+ * stack. When its own verifier pool falls behind, the reader thread that
+ * hands over a passage verifies it itself, which slows down reading
+ * instead of queueing without bound. Alternatively the verifiers can be
+ * the gate lane of a LaneScheduler shared with background work.
+ */
+public class GateRuntime {
+
+    // Stack size of the reader threads (in bytes)
+    private static final long READER_STACK = 256 * 1024;
+
+    // Passages that may wait for a verifier thread, per verifier
+    private static final int BACKLOG = 4;
+
+    // How often reader threads check whether they should stop (in ms)
+    private static final long POLL_INTERVAL = 1000;
+
+    private final int attrIndex;
+    private final PassageListener listener;
+    private final Executor verifiers;
+
+    // Pool owned by this runtime, null when the verifiers are shared
+    private final ThreadPoolExecutor pool;
+    private final List<Thread> readers = new ArrayList<Thread>();
+
+    private GateClient shared = null;
+    private volatile boolean running = false;
+
+    /**
+     * @param attrIndex Index of the attribute every passenger must prove
+     * @param listener Receives the decision for every passage
+     * @param threads Number of verifier threads
+     */
+    public GateRuntime(int attrIndex, PassageListener listener, int threads) {
+        this.attrIndex = attrIndex;
+        this.listener = listener;
+        verifiers = pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * BACKLOG),
+                new ThreadFactory() {
+                    private int n = 0;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GateRuntime-verifier-" + n++);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Verify in the gate lane of a scheduler shared with background work,
+     * such as issuance and audit
+     *
+     * @param attrIndex Index of the attribute every passenger must prove
+     * @param listener Receives the decision for every passage
+     * @param lanes The shared scheduler
+     */
+    public GateRuntime(int attrIndex, PassageListener listener, LaneScheduler lanes) {
+        this.attrIndex = attrIndex;
+        this.listener = listener;
+        verifiers = lanes.executor(LaneScheduler.Lane.GATE);
+        pool = null;
+    }
+
+    /**
+     * Start serving every reader that is attached now
+     */
+    public synchronized void start() throws CardException {
+        if (running) {
+            return;
+        }
+        List<CardTerminal> terminals = TerminalFactory.getDefault().terminals().list();
+        if (terminals.isEmpty()) {
+            throw new CardException("No readers found");
+        }
+        running = true;
+        for (CardTerminal terminal : terminals) {
+            CardProxy card = new CardProxy(terminal);
+            // The first client builds the keys and tables, the others share them
+            GateClient client = shared == null
+                    ? (shared = new GateClient(card)) : new GateClient(shared, card);
+            Thread t = new Thread(null, new ReaderLoop(client),
+                    "GateRuntime-" + terminal.getName(), READER_STACK);
+            t.setDaemon(true);
+            readers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Stop all readers, the runtime cannot be started again afterwards
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Thread t : readers) {
+            t.interrupt();
+        }
+        readers.clear();
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    public synchronized int getReaderCount() {
+        return readers.size();
+    }
+
+    /**
+     * Reads cards on a single reader and hands them to the verifiers
+     */
+    private class ReaderLoop implements Runnable {
+
+        private final GateClient client;
+
+        ReaderLoop(GateClient client) {
+            this.client = client;
+        }
+
+        public void run() {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                if (!client.card.awaitCard(POLL_INTERVAL)) {
+                    // No passenger yet
+                    continue;
+                }
+                Passage read = null;
+                try {
+                    read = client.readAttribute(attrIndex);
+                } catch (RuntimeException e) {
+                    // A broken answer costs this passage, not the reader
+                    e.printStackTrace();
+                }
+                final Passage p = read;
+                if (p != null) {
+                    verifiers.execute(new Runnable() {
+                        public void run() {
+                            // Under CallerRunsPolicy this runs on the reader
+                            // thread, so nothing may escape from here
+                            try {
+                                client.getVerifier().verify(p);
+                            } catch (RuntimeException e) {
+                                e.printStackTrace();
+                                p.granted = false;
+                            }
+                            try {
+                                listener.passageDecided(p);
+                            } catch (RuntimeException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    });
+                }
+                // Also after a failed read, so a card that does not answer
+                // is not retried in a tight loop
+                while (running && !client.card.waitForCardAbsent(POLL_INTERVAL)) {
+                    // Card still on the reader
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a gate on all attached readers for the given attribute index
+     *
+     * Usage: GateRuntime [attribute index] [threads] [journal directory]
+     */
+    public static void main(String[] args) {
+        // Every reader is used, so the reader choice dialog is not wanted
+        CardProxyConfiguration.GUI_CHOOSE = false;
+
+        int attrIndex = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        PassageJournal journal = null;
+        if (args.length > 2) {
+            try {
+                journal = new PassageJournal(new File(args[2]), 0);
+            } catch (IOException e) {
+                System.err.println("Cannot open journal: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        final PassageJournal log = journal;
+
+        GateRuntime runtime = new GateRuntime(attrIndex, new PassageListener() {
+            public void passageDecided(Passage passage) {
+                if (log != null) {
+                    log.passageDecided(passage);
+                }
+                System.out.println("*** " + passage);
+            }
+        }, threads);
+        try {
+            runtime.start();
+            System.out.println("Serving " + runtime.getReaderCount() + " readers with "
+                    + threads + " verifier threads");
+            Thread.currentThread().join();
+        } catch (CardException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            runtime.stop();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * GateVerifier.java
+ *
+ * Verification of the attribute proofs returned by a card
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.math.BigInteger;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECFieldElement;
+import org.bouncycastle.math.ec.ECFieldElementFp12;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.pairing.ECCurveWithPairing;
+
+import card.CardInterface;
+
+/**
+ * Holds the curve, the fixed point Q and the public attribute keys saQ,
+ * and performs the two checks on a Passage:
+ *
+ *  - nonce check:   N.bk == +/- sn
+ *  - pairing check: e(bk, saQ) == e(bs, Q)^(+/-1)
+ *
+ * The tables are only read, so a single verifier can be shared by
+ * several threads.
+ */
+public class GateVerifier {
+
+    final ECCurveWithPairing c;
+    final ECPoint Q;
+    final ECPoint[] saQ;
+    final ECFieldElement ONE;
+
+    private GateLogger log = null;
+
+    public GateVerifier(ECCurveWithPairing c, ECPoint Q, ECPoint[] saQ) {
+        this.c = c;
+        this.Q = Q;
+        this.saQ = saQ;
+        ONE = new ECFieldElementFp12(new ECFieldElement.Fp(c.getQ(), BigInteger.valueOf(1)));
+    }
+
+    public void setLogger(GateLogger logger) {
+        log = logger;
+    }
+
+    public ECCurveWithPairing getCurve() {
+        return c;
+    }
+
+    /**
+     * The number of attributes that can be verified
+     */
+    public int getAttributeCount() {
+        return saQ.length;
+    }
+
+    /**
+     * Decompress the signed nonce and blinded key and check the nonce
+     * signature
+     */
+    public boolean checkNonce(Passage p) {
+        long start = System.nanoTime();
+        boolean ok = true;
+
+        p.sn = reconstructPoint(c, p.attr[CardInterface.SIGNED_NONCE], false);
+        p.bk = reconstructPoint(c, p.attr[CardInterface.BLINDED_KEY], false);
+        if (p.sn == null || p.bk == null) {
+            append("Nonce signature verification failed (point not on the curve)");
+            p.nonceTime = System.nanoTime() - start;
+            return false;
+        }
+
+        ECPoint bkn = p.bk.multiply(p.nonce);
+        if (!bkn.equals(p.sn)) {
+            append("Nonce signature verification failed (n.bk != sn)");
+            if (!bkn.negate().equals(p.sn)) {
+                append("Nonce signature verification failed (-n.bk != sn)");
+                ok = false;
+            } else {
+                append("Nonce signature verification succeeded (-n.bk == sn)");
+            }
+        } else {
+            append("Nonce signature verification succeeded (n.bk == sn)");
+        }
+
+        p.nonceTime = System.nanoTime() - start;
+        return ok;
+    }
+
+    /**
+     * Check the blinded attribute signature, requires checkNonce() first
+     */
+    public boolean checkPairing(Passage p) {
+        long start = System.nanoTime();
+        boolean ok = true;
+
+        ECPoint bs = reconstructPoint(c, p.attr[CardInterface.BLINDED_SIGNATURE], false);
+        if (p.bk == null || bs == null) {
+            append("Pairing signature verification failed (point not on the curve)");
+            p.pairingTime = System.nanoTime() - start;
+            return false;
+        }
+
+        ECFieldElement e1 = c.R_atePairing(p.bk, saQ[p.attrIndex]);
+        ECFieldElement e2 = c.R_atePairing(bs, Q);
+
+        if (!e1.equals(e2)) {
+            append("Pairing signature verification failed (e1 != e2)");
+            if (!ONE.equals(e1.multiply(e2))) {
+                append("Pairing signature verification failed (!equals ONE)");
+                ok = false;
+            } else {
+                append("Pairing signature verification succeeded (equals ONE)");
+            }
+        } else {
+            append("Pairing signature verification succeeded (e1 == e2)");
+        }
+
+        p.pairingTime = System.nanoTime() - start;
+        return ok;
+    }
+
+    /**
+     * Run both checks and record the decision in the passage
+     */
+    public boolean verify(Passage p) {
+        p.granted = checkNonce(p) && checkPairing(p);
+        return p.granted;
+    }
+
+    private void append(String message) {
+        if (log != null) {
+            log.append(message);
+        }
+    }
+
+    /**
+     * Decompress a point from its x coordinate, null when there is no
+     * point on the curve with that x
+     */
+    static ECPoint reconstructPoint(ECCurve c, BigInteger i, boolean negate) {
+        ECFieldElement x = c.fromBigInteger(i);
+        ECFieldElement y = x.multiply(x).multiply(x).add(
+                c.getA().multiply(x)).add(c.getB()).sqrt();
+        if (y == null) {
+            return null;
+        }
+        if (negate) {
+            return c.createPoint(x.toBigInteger(), y.toBigInteger().negate(), false);
+        } else {
+            return c.createPoint(x.toBigInteger(), y.toBigInteger(), false);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * JournalAudit.java
+ *
+ * Re-verifies the proofs recorded in a passage journal
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import card.CardInterface;
+import verifier.LaneScheduler;
+
+/**
+ * Runs the nonce and pairing checks again on every record of a journal,
+ * with the issuer keys, and compares the outcome with the decision the
+ * gate recorded. The segments are mapped read only, so a journal can be
+ * audited while the gate is still appending to it. Only records that are
+ * durable are audited: those still being written (or torn by a crash, and
+ * cleared when the gate reopens the journal) are left for a later run.
+ *
+ * Records are audited in chunks, split over a fork-join pool or run in
+ * the audit lane of a scheduler shared with the gates. The first record
+ * that is not audited yet is kept in a checkpoint file together with the
+ * totals, so an interrupted audit continues where it stopped and a later
+ * run only audits the records that were added since.
+ *
+ * Pairings are checked one record at a time: only the x coordinates of
+ * the points are recorded, so each check holds up to a sign, which rules
+ * out combining the pairings of several records into one check.
+ */
+public class JournalAudit {
+
+    // Records per chunk
+    private static final int CHUNK = 64;
+
+    // Least time between checkpoints (in ms)
+    private static final long CHECKPOINT_INTERVAL = 1000;
+
+    private static final String CHECKPOINT = "audit.checkpoint";
+
+    /** Totals of the records audited so far */
+    public static class Totals {
+        public long audited;
+        public long confirmed;
+        public long mismatched;
+        public long corrupt;
+
+        void add(Totals t) {
+            audited += t.audited;
+            confirmed += t.confirmed;
+            mismatched += t.mismatched;
+            corrupt += t.corrupt;
+        }
+    }
+
+    private final File dir;
+    private final GateVerifier verifier;
+    private final byte[] attributeIds;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private long first = 0;
+    private long start;
+    private long end;
+
+    // Guarded by this
+    private final Totals totals = new Totals();
+    private Totals[] chunks;
+    private int watermark = 0;
+    private long lastCheckpoint = 0;
+
+    /**
+     * Map the journal in the given directory and read its checkpoint
+     *
+     * @param attributeIds Attribute ids, indexed like the keys of the verifier
+     */
+    public JournalAudit(File dir, GateVerifier verifier, byte[] attributeIds) throws IOException {
+        this.dir = dir;
+        this.verifier = verifier;
+        this.attributeIds = attributeIds;
+
+        File[] files = PassageJournal.listSegments(dir);
+        for (int i = 0; i < files.length; i++) {
+            RandomAccessFile f = new RandomAccessFile(files[i], "r");
+            try {
+                segments.add(f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length()));
+            } finally {
+                f.close();
+            }
+            if (i == 0) {
+                first = PassageJournal.segmentFirst(files[i]);
+            }
+        }
+        // Segments are full except the last
+        end = segments.isEmpty() ? 0 : first + (long) (segments.size() - 1)
+                * PassageJournal.SEGMENT_RECORDS + PassageJournal.countRecords(segments.get(segments.size() - 1));
+
+        Properties p = new Properties();
+        File checkpoint = new File(dir, CHECKPOINT);
+        if (checkpoint.exists()) {
+            InputStream in = new FileInputStream(checkpoint);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        start = Math.max(first, Long.parseLong(p.getProperty("next", "0")));
+        totals.audited = Long.parseLong(p.getProperty("audited", "0"));
+        totals.confirmed = Long.parseLong(p.getProperty("confirmed", "0"));
+        totals.mismatched = Long.parseLong(p.getProperty("mismatched", "0"));
+        totals.corrupt = Long.parseLong(p.getProperty("corrupt", "0"));
+
+        // Only records that are on disk, but never back behind the checkpoint
+        long durable = PassageJournal.readDurable(dir);
+        if (durable >= 0) {
+            end = Math.max(start, Math.min(end, durable));
+        }
+        // A torn record at the end is not corrupt yet, it may still be written
+        while (end > start && !PassageJournal.valid(map(end - 1), offset(end - 1))) {
+            end--;
+        }
+        chunks = new Totals[(int) ((Math.max(0, end - start) + CHUNK - 1) / CHUNK)];
+    }
+
+    /**
+     * Records that are left to audit
+     */
+    public long getRemaining() {
+        return Math.max(0, end - start);
+    }
+
+    public synchronized Totals getTotals() {
+        Totals t = new Totals();
+        t.add(totals);
+        return t;
+    }
+
+    private class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+
+        Range(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo == 1) {
+                auditChunk(lo);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Range(lo, mid), new Range(mid, hi));
+            }
+        }
+    }
+
+    /**
+     * Audit the remaining records on a fork-join pool
+     */
+    public Totals run(ForkJoinPool pool) throws IOException {
+        if (chunks.length > 0) {
+            pool.invoke(new Range(0, chunks.length));
+        }
+        checkpoint();
+        return getTotals();
+    }
+
+    /**
+     * Audit the remaining records in the audit lane of a shared scheduler,
+     * one task per chunk
+     */
+    public Totals run(LaneScheduler lanes) throws IOException, InterruptedException {
+        List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+        for (int i = 0; i < chunks.length; i++) {
+            final int chunk = i;
+            tasks.add(lanes.submit(LaneScheduler.Lane.AUDIT, new Callable<Object>() {
+                public Object call() {
+                    auditChunk(chunk);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> t : tasks) {
+            try {
+                t.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        checkpoint();
+        return getTotals();
+    }
+
+    private void auditChunk(int chunk) {
+        Totals t = new Totals();
+        long from = start + (long) chunk * CHUNK;
+        long to = Math.min(end, from + CHUNK);
+        for (long seq = from; seq < to; seq++) {
+            MappedByteBuffer map = map(seq);
+            int offset = offset(seq);
+            t.audited++;
+            if (!PassageJournal.valid(map, offset)) {
+                t.corrupt++;
+                continue;
+            }
+            PassageJournal.Record r = PassageJournal.decode(map, offset);
+            Passage p = toPassage(r);
+            boolean granted;
+            try {
+                granted = p != null && verifier.verify(p);
+            } catch (RuntimeException e) {
+                // Not a point on the curve
+                granted = false;
+            }
+            if (granted == r.isGranted()) {
+                t.confirmed++;
+            } else {
+                t.mismatched++;
+                System.out.println("Mismatch: " + r + ", audit " + (granted ? "granted" : "denied"));
+            }
+        }
+        done(chunk, t);
+    }
+
+    private MappedByteBuffer map(long seq) {
+        return segments.get((int) ((seq - first) / PassageJournal.SEGMENT_RECORDS));
+    }
+
+    private int offset(long seq) {
+        return (int) ((seq - first) % PassageJournal.SEGMENT_RECORDS) * PassageJournal.RECORD;
+    }
+
+    private Passage toPassage(PassageJournal.Record r) {
+        int index = -1;
+        for (int i = 0; i < attributeIds.length; i++) {
+            if (attributeIds[i] == r.attributeId) {
+                index = i;
+            }
+        }
+        if (index < 0 || r.nonce == null || r.signedNonce == null || r.blindedKey == null
+                || r.blindedSignature == null) {
+            return null;
+        }
+        Passage p = new Passage(index);
+        p.attributeId = r.attributeId;
+        p.nonce = r.nonce;
+        p.attr = new BigInteger[4];
+        p.attr[CardInterface.SIGNED_NONCE] = r.signedNonce;
+        p.attr[CardInterface.BLINDED_KEY] = r.blindedKey;
+        p.attr[CardInterface.BLINDED_SIGNATURE] = r.blindedSignature;
+        p.attr[CardInterface.ATTRIBUTE] = r.attribute;
+        return p;
+    }
+
+    /**
+     * Count a finished chunk once all chunks before it are finished too,
+     * so the checkpoint never skips a record
+     */
+    private synchronized void done(int chunk, Totals t) {
+        chunks[chunk] = t;
+        while (watermark < chunks.length && chunks[watermark] != null) {
+            totals.add(chunks[watermark]);
+            chunks[watermark++] = null;
+        }
+        if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println("Checkpoint not written: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the checkpoint to a new file and rename it, so a crash leaves
+     * either the old or the new one
+     */
+    private synchronized void checkpoint() throws IOException {
+        Properties p = new Properties();
+        p.setProperty("next", Long.toString(Math.min(end, start + (long) watermark * CHUNK)));
+        p.setProperty("audited", Long.toString(totals.audited));
+        p.setProperty("confirmed", Long.toString(totals.confirmed));
+        p.setProperty("mismatched", Long.toString(totals.mismatched));
+        p.setProperty("corrupt", Long.toString(totals.corrupt));
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            p.store(out, "Journal audit");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(dir, CHECKPOINT))) {
+            throw new IOException("Cannot replace " + CHECKPOINT);
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    /**
+     * Audit a journal with the issuer keys
+     *
+     * Usage: JournalAudit directory [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        GateClient issuer = new GateClient((proxy.CardProxy) null);
+        issuer.getVerifier().setLogger(null);
+        byte[] ids = new byte[issuer.getVerifier().getAttributeCount()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = issuer.getAttributeId(i);
+        }
+
+        JournalAudit audit = new JournalAudit(new File(args[0]), issuer.getVerifier(), ids);
+        long remaining = audit.getRemaining();
+        long start = System.nanoTime();
+        Totals t = audit.run(new ForkJoinPool(threads));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.format("Audited %d records in %.2f s (%.1f/s) on %d threads%n",
+                remaining, seconds, remaining / Math.max(seconds, 1e-9), threads);
+        System.out.format("Total: %d audited, %d confirmed, %d mismatched, %d corrupt%n",
+                t.audited, t.confirmed, t.mismatched, t.corrupt);
+    }
+}
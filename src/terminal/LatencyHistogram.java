@@ -0,0 +1,134 @@
+/**
+ * LatencyHistogram.java
+ *
+ * Records latencies with a bounded relative error
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram in the manner of HdrHistogram: values below 128
+ * have a bucket each, above that every power of two is split into 64
+ * buckets, so a recorded value is off by less than 1/64 (1.6%) of
+ * itself. Any non-negative long fits in 3712 counters, and recording is
+ * a few atomic adds, so many threads can record into one histogram.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 128;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int SUB_BITS = 7;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + 56 * HALF);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (v >>> shift) - HALF;
+    }
+
+    /**
+     * The largest value that falls in the given bucket
+     */
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Record a value, negative ones count as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // Another thread raised the maximum
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * The value below which the given percentage of values falls, 0 if
+     * nothing was recorded
+     *
+     * @param p Percentile between 0 and 100
+     */
+    public long getValueAtPercentile(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Add the values of another histogram to this one
+     */
+    public void add(LatencyHistogram h) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = h.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(h.count.get());
+        sum.addAndGet(h.sum.get());
+        long m;
+        long v = h.max.get();
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+            // Another thread raised the maximum
+        }
+    }
+}
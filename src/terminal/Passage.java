@@ -0,0 +1,97 @@
+/**
+ * Passage.java
+ *
+ * State and outcome of a single card tap at the gate
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.math.BigInteger;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import card.APDUCodec;
+import card.CardInterface;
+
+/**
+ * Carries a tap through the verification phases: card I/O, decompression
+ * and nonce check, and the pairing check. Each phase records its time.
+ */
+public class Passage {
+
+    /** Index of the attribute that was requested */
+    public final int attrIndex;
+
+    /** Id of the attribute that was requested, if known */
+    public byte attributeId;
+
+    /** Name of the reader the card was read on */
+    public String reader;
+
+    /** The nonce N, the card signed G.N */
+    public BigInteger nonce;
+
+    /** Response of the card, indexed as in CardInterface */
+    public BigInteger[] attr;
+
+    // Points decompressed from the response
+    ECPoint sn;
+    ECPoint bk;
+
+    // Outcome of the nonce check, the pairing check is skipped if false
+    boolean nonceVerified = false;
+
+    /** Time spent in each phase (in ns) */
+    public long ioTime;
+    public long nonceTime;
+    public long pairingTime;
+
+    /** Whether entry was granted, only meaningful once decided */
+    public boolean granted = false;
+
+    public Passage(int attrIndex) {
+        this.attrIndex = attrIndex;
+    }
+
+    /**
+     * Build a passage from the data of a raw GET_ATTRIBUTE response
+     *
+     * @param attrIndex Index of the requested attribute
+     * @param nonce The nonce N the card was challenged with
+     * @param data Response data: signed nonce, blinded key, blinded
+     *             signature and attribute
+     * @throws IllegalArgumentException if the response is incomplete
+     */
+    public static Passage parse(int attrIndex, BigInteger nonce, byte[] data) {
+        APDUCodec.Fields f = APDUCodec.parse(data, 4);
+        Passage p = new Passage(attrIndex);
+        p.nonce = nonce;
+        p.attr = new BigInteger[4];
+        p.attr[CardInterface.SIGNED_NONCE] = f.getBigInteger(0);
+        p.attr[CardInterface.BLINDED_KEY] = f.getBigInteger(1);
+        p.attr[CardInterface.BLINDED_SIGNATURE] = f.getBigInteger(2);
+        p.attr[CardInterface.ATTRIBUTE] = f.getBigInteger(3);
+        return p;
+    }
+
+    public String toString() {
+        return String.format("%s: attribute %d %s (io %.2f ms, nonce %.2f ms, pairing %.2f ms)",
+                reader, attrIndex, granted ? "granted" : "denied", ioTime / 1000000.0,
+                nonceTime / 1000000.0, pairingTime / 1000000.0);
+    }
+}
@@ -0,0 +1,625 @@
+/**
+ * PassageJournal.java
+ *
+ * Durable, append-only record of all passages of a gate
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import card.CardInterface;
+
+/**
+ * Appends a fixed size record for every passage to memory mapped segment
+ * files. A record is
+ *
+ *   magic (4) sequence (8) time in ms (8) gate (4) attribute id (1)
+ *   decision (1) reserved (2) io, nonce and pairing time in ns (3 x 8)
+ *   nonce, signed nonce, blinded key, blinded signature, attribute
+ *   (5 x 40: length (1) value) CRC32 (4)
+ *
+ * Appending only copies the record into the mapping, the caller never
+ * waits for the disk. A background thread forces the mapped segments to
+ * disk once enough records are pending or the oldest pending record is
+ * old enough, so one force covers many passages. Records that were not
+ * forced yet can be lost in a crash; awaitDurable() waits until a
+ * record is safe.
+ *
+ * Segments are preallocated and zero filled, and are named after the
+ * sequence number of their first record. After a clean close, the end of
+ * each segment is found by a binary search for the first empty slot.
+ * After a crash that search cannot be trusted, as records may have
+ * reached the disk out of order: the journal is scanned forward from the
+ * last point that is known to be durable (kept in a small file next to
+ * the segments) up to the first record that is missing or fails its
+ * checksum, and everything after it is cleared.
+ */
+public class PassageJournal implements PassageListener {
+
+    public static final int RECORD = 256;
+
+    // Records per segment file (64 MiB)
+    public static final int SEGMENT_RECORDS = 262144;
+
+    // Longest field value (in bytes)
+    private static final int FIELD = 39;
+
+    // Records that trigger a force, and the longest a record waits (in ms)
+    private static final int GROUP = 256;
+    private static final long INTERVAL = 20;
+
+    // Response fields in the order of the record
+    private static final int[] FIELDS = { CardInterface.SIGNED_NONCE, CardInterface.BLINDED_KEY,
+            CardInterface.BLINDED_SIGNATURE, CardInterface.ATTRIBUTE };
+
+    private static final int MAGIC = 0x50415353;
+    private static final String SUFFIX = ".journal";
+
+    // Left behind by close(), the segments need no clean up when present
+    private static final String CLEAN = "clean";
+
+    // Number of records known to be on disk, written after every force
+    private static final String DURABLE = "durable";
+
+    /**
+     * A decoded record
+     */
+    public static class Record {
+        public long sequence;
+        public long time;
+        public int gate;
+        public byte attributeId;
+
+        /** VerificationProtocol status code, GRANTED (0) or DENIED (1) */
+        public byte decision;
+
+        public long ioTime;
+        public long nonceTime;
+        public long pairingTime;
+
+        public BigInteger nonce;
+        public BigInteger signedNonce;
+        public BigInteger blindedKey;
+        public BigInteger blindedSignature;
+        public BigInteger attribute;
+
+        public boolean isGranted() {
+            return decision == 0;
+        }
+
+        public String toString() {
+            return String.format("#%d gate %d attribute %d %s (io %.2f ms, nonce %.2f ms, pairing %.2f ms)",
+                    sequence, gate, attributeId, isGranted() ? "granted" : "denied",
+                    ioTime / 1000000.0, nonceTime / 1000000.0, pairingTime / 1000000.0);
+        }
+    }
+
+    private static class Segment {
+        final long first;
+        final RandomAccessFile file;
+        final MappedByteBuffer map;
+        int count = 0;
+
+        Segment(File dir, long first) throws IOException {
+            this.first = first;
+            file = new RandomAccessFile(new File(dir, segmentName(first)), "rw");
+            file.setLength((long) SEGMENT_RECORDS * RECORD);
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) SEGMENT_RECORDS * RECORD);
+        }
+    }
+
+    private final File dir;
+    private final int gate;
+    private final Thread flusher;
+
+    // Guarded by this
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final List<Segment> dirty = new ArrayList<Segment>();
+    private final ByteBuffer scratch = ByteBuffer.allocate(RECORD);
+    private ReceiptBatcher receipts = null;
+    private Segment current;
+    private Segment next = null;
+    private long size;
+    private int pending = 0;
+    private long oldestPending = 0;
+
+    // Guarded by durableLock
+    private final Object durableLock = new Object();
+    private long durable;
+
+    // Only written by the flusher, or by close() once it stopped
+    private RandomAccessFile durableMark;
+
+    private volatile boolean running = true;
+
+    /**
+     * Open the journal in the given directory, creating it if needed
+     *
+     * @param dir Directory of the segment files
+     * @param gate Id of the gate, stored in every record
+     */
+    public PassageJournal(File dir, int gate) throws IOException {
+        this.dir = dir;
+        this.gate = gate;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+        open();
+        durable = size;
+        writeDurable(size);
+
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, "PassageJournal-" + gate);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Rebuild the index of the segments from the files in the directory
+     */
+    private void open() throws IOException {
+        File clean = new File(dir, CLEAN);
+        boolean crashed = !clean.delete();
+        durableMark = new RandomAccessFile(new File(dir, DURABLE), "rw");
+        // Without a mark (older journals) everything is scanned
+        long mark = durableMark.length() >= 8 ? durableMark.readLong() : 0;
+        boolean ended = false;
+        for (File f : listSegments(dir)) {
+            Segment s = new Segment(dir, segmentFirst(f));
+            if (!crashed) {
+                s.count = countRecords(s.map);
+            } else {
+                // Nothing after the end of an earlier segment is kept
+                s.count = recover(s, ended ? s.first : mark);
+                ended = s.count < SEGMENT_RECORDS;
+            }
+            segments.add(s);
+        }
+        // Drop segments that were prepared ahead but never used
+        int last = segments.size() - 1;
+        while (last > 0 && segments.get(last).count == 0
+                && segments.get(last - 1).count < SEGMENT_RECORDS) {
+            Segment s = segments.remove(last--);
+            s.file.close();
+            new File(dir, segmentName(s.first)).delete();
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(dir, 0));
+        }
+        current = segments.get(segments.size() - 1);
+        size = current.first + current.count;
+    }
+
+    /**
+     * The segment files in a directory, in order
+     */
+    static File[] listSegments(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    static String segmentName(long first) {
+        return String.format("%016x%s", first, SUFFIX);
+    }
+
+    /**
+     * Sequence number of the first record of a segment file
+     */
+    static long segmentFirst(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+    }
+
+    /**
+     * Number of records in a segment after a crash. The records before the
+     * durable mark are trusted, from there on the segment is scanned up to
+     * the first slot that is empty, torn or out of sequence, and whatever
+     * reached the disk after it is cleared.
+     *
+     * @param mark Number of records of the journal known to be durable
+     */
+    private static int recover(Segment s, long mark) {
+        int end = (int) Math.max(0, Math.min(SEGMENT_RECORDS, mark - s.first));
+        while (end < SEGMENT_RECORDS && s.map.getInt(end * RECORD) == MAGIC
+                && s.map.getLong(end * RECORD + 4) == s.first + end && valid(s.map, end * RECORD)) {
+            end++;
+        }
+        for (int i = end; i < SEGMENT_RECORDS; i++) {
+            if (s.map.getInt(i * RECORD) != 0) {
+                s.map.putInt(i * RECORD, 0);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Binary search for the first empty slot of a segment
+     */
+    static int countRecords(ByteBuffer map) {
+        int lo = 0;
+        int hi = SEGMENT_RECORDS;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (map.getInt(mid * RECORD) == MAGIC) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Whether the record at the given offset matches its checksum
+     */
+    static boolean valid(ByteBuffer map, int offset) {
+        byte[] b = new byte[RECORD];
+        ByteBuffer d = map.duplicate();
+        d.position(offset);
+        d.get(b);
+        CRC32 c = new CRC32();
+        c.update(b, 0, RECORD - 4);
+        return ByteBuffer.wrap(b).getInt(RECORD - 4) == (int) c.getValue();
+    }
+
+    /**
+     * Also hand every record to the given batcher, so it is covered by a
+     * signed receipt
+     */
+    public synchronized void setReceipts(ReceiptBatcher receipts) {
+        this.receipts = receipts;
+    }
+
+    /**
+     * Journal a decided passage
+     */
+    public void passageDecided(Passage p) {
+        try {
+            append(p);
+        } catch (IOException e) {
+            throw new RuntimeException("Passage not journalled: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Append a record for a decided passage
+     *
+     * @return The sequence number of the record
+     * @throws IllegalArgumentException if a field does not fit its slot
+     */
+    public synchronized long append(Passage p) throws IOException {
+        ByteBuffer b = scratch;
+        b.clear();
+        encode(b, size, System.currentTimeMillis(), gate, p);
+
+        if (current.count == SEGMENT_RECORDS) {
+            roll();
+        }
+        ByteBuffer w = current.map.duplicate();
+        w.position(current.count * RECORD);
+        b.flip();
+        w.put(b);
+        current.count++;
+        if (!dirty.contains(current)) {
+            dirty.add(current);
+        }
+        if (pending++ == 0) {
+            oldestPending = System.nanoTime();
+        }
+        if (pending >= GROUP) {
+            notifyAll();
+        }
+        if (receipts != null) {
+            receipts.add(size, b.array().clone());
+        }
+        return size++;
+    }
+
+    /**
+     * Encode a passage as a record, including its checksum
+     */
+    static void encode(ByteBuffer b, long sequence, long time, int gate, Passage p) {
+        int start = b.position();
+        b.putInt(MAGIC);
+        b.putLong(sequence);
+        b.putLong(time);
+        b.putInt(gate);
+        b.put(p.attributeId);
+        b.put((byte) (p.granted ? 0 : 1));
+        b.putShort((short) 0);
+        b.putLong(p.ioTime);
+        b.putLong(p.nonceTime);
+        b.putLong(p.pairingTime);
+        putField(b, p.nonce);
+        for (int i : FIELDS) {
+            putField(b, p.attr == null ? null : p.attr[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), b.arrayOffset() + start, RECORD - 4);
+        b.putInt((int) crc.getValue());
+    }
+
+    private static void putField(ByteBuffer b, BigInteger v) {
+        int start = b.position();
+        if (v != null) {
+            byte[] bytes = v.toByteArray();
+            if (bytes.length > FIELD) {
+                throw new IllegalArgumentException("Field of " + bytes.length + " bytes");
+            }
+            b.put((byte) bytes.length);
+            b.put(bytes);
+        }
+        b.position(start + 1 + FIELD);
+    }
+
+    private static BigInteger getField(ByteBuffer b, int offset) {
+        int length = b.get(offset) & 0xff;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer d = b.duplicate();
+        d.position(offset + 1);
+        d.get(bytes);
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * Continue in the next segment, normally prepared by the flusher
+     */
+    private void roll() throws IOException {
+        Segment s = next != null ? next : new Segment(dir, current.first + SEGMENT_RECORDS);
+        next = null;
+        segments.add(s);
+        current = s;
+    }
+
+    /**
+     * Number of records in the journal, which is also the sequence
+     * number of the next record
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Number of records that are safely on disk
+     */
+    public long getDurable() {
+        synchronized (durableLock) {
+            return durable;
+        }
+    }
+
+    /**
+     * Wait until the record with the given sequence number is on disk
+     *
+     * @return false if it is not after the timeout (in ms)
+     */
+    public boolean awaitDurable(long sequence, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (durableLock) {
+            while (durable <= sequence) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                durableLock.wait(wait);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Read the record with the given sequence number
+     *
+     * @throws IndexOutOfBoundsException if there is no such record
+     */
+    public synchronized Record read(long sequence) {
+        if (sequence < 0 || sequence >= size) {
+            throw new IndexOutOfBoundsException("No record " + sequence);
+        }
+        // Segments are full except the last, so the index is arithmetic
+        Segment s = segments.get((int) ((sequence - segments.get(0).first) / SEGMENT_RECORDS));
+        return decode(s.map, (int) (sequence - s.first) * RECORD);
+    }
+
+    /**
+     * Decode the record at the given offset of a mapped segment
+     */
+    public static Record decode(ByteBuffer map, int offset) {
+        Record r = new Record();
+        r.sequence = map.getLong(offset + 4);
+        r.time = map.getLong(offset + 12);
+        r.gate = map.getInt(offset + 20);
+        r.attributeId = map.get(offset + 24);
+        r.decision = map.get(offset + 25);
+        r.ioTime = map.getLong(offset + 28);
+        r.nonceTime = map.getLong(offset + 36);
+        r.pairingTime = map.getLong(offset + 44);
+        int field = offset + 52;
+        r.nonce = getField(map, field);
+        r.signedNonce = getField(map, field += 1 + FIELD);
+        r.blindedKey = getField(map, field += 1 + FIELD);
+        r.blindedSignature = getField(map, field += 1 + FIELD);
+        r.attribute = getField(map, field += 1 + FIELD);
+        return r;
+    }
+
+    /**
+     * Force everything to disk and stop, the journal cannot be used
+     * afterwards
+     */
+    public void close() throws IOException {
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+        synchronized (this) {
+            for (Segment s : segments) {
+                s.file.close();
+            }
+            if (next != null) {
+                next.file.close();
+            }
+        }
+        durableMark.close();
+        new File(dir, CLEAN).createNewFile();
+    }
+
+    /**
+     * Group commit: force the pending records when there are enough of
+     * them or the oldest has waited long enough
+     */
+    private void flush() {
+        while (running) {
+            try {
+                synchronized (this) {
+                    while (pending == 0
+                            || (pending < GROUP && System.nanoTime() - oldestPending < INTERVAL * 1000000)) {
+                        wait(pending == 0 ? INTERVAL : INTERVAL - (System.nanoTime() - oldestPending) / 1000000 + 1);
+                    }
+                }
+                commit();
+                prepare();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void commit() {
+        Segment[] force;
+        long target;
+        synchronized (this) {
+            force = dirty.toArray(new Segment[dirty.size()]);
+            dirty.clear();
+            target = size;
+            pending = 0;
+        }
+        for (Segment s : force) {
+            s.map.force();
+        }
+        writeDurable(target);
+        synchronized (durableLock) {
+            durable = target;
+            durableLock.notifyAll();
+        }
+    }
+
+    /**
+     * What getDurable() returned when the journal in the given directory
+     * last forced its records, for readers in another process
+     *
+     * @return The number of durable records, -1 if not known
+     */
+    static long readDurable(File dir) throws IOException {
+        File f = new File(dir, DURABLE);
+        if (f.length() < 8) {
+            return -1;
+        }
+        RandomAccessFile mark = new RandomAccessFile(f, "r");
+        try {
+            return mark.readLong();
+        } finally {
+            mark.close();
+        }
+    }
+
+    /**
+     * Remember how many records are on disk. The mark itself is not
+     * forced: if it is lost it is only older, and recovery scans more.
+     */
+    private void writeDurable(long records) {
+        try {
+            durableMark.seek(0);
+            durableMark.writeLong(records);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Create the next segment ahead of time once the current one is half
+     * full, so appending does not wait for the file system
+     */
+    private void prepare() throws IOException {
+        long first;
+        synchronized (this) {
+            if (next != null || current.count < SEGMENT_RECORDS / 2) {
+                return;
+            }
+            first = current.first + SEGMENT_RECORDS;
+        }
+        Segment s = new Segment(dir, first);
+        synchronized (this) {
+            if (current.first == first) {
+                // Rolled over in the meantime
+                s.file.close();
+            } else {
+                next = s;
+            }
+        }
+    }
+
+    /**
+     * Print the last records of a journal
+     *
+     * Usage: PassageJournal directory [count]
+     */
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long start = System.nanoTime();
+        PassageJournal journal = new PassageJournal(new File(args[0]), 0);
+        System.out.format("%d records in %d segments, index rebuilt in %.2f ms%n",
+                journal.getSize(), journal.segments.size(), (System.nanoTime() - start) / 1000000.0);
+        for (long i = Math.max(0, journal.getSize() - count); i < journal.getSize(); i++) {
+            System.out.println(journal.read(i));
+        }
+        journal.close();
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * PassageListener.java
+ *
+ * Receives the decisions made by the gate
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+public interface PassageListener {
+
+    /**
+     * Called once a passage has been verified
+     *
+     * @param passage The passage, with granted set to the decision
+     */
+    public void passageDecided(Passage passage);
+}
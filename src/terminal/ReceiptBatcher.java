@@ -0,0 +1,406 @@
+/**
+ * ReceiptBatcher.java
+ *
+ * Signs passage records in batches under a Merkle tree
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects records until a batch is full or its oldest record has waited
+ * long enough, builds a Merkle tree over the batch and signs only its
+ * root. Every record then gets a receipt: the signed root's metadata, the
+ * position of the record and the hashes on the path to the root. One
+ * signature covers a whole batch, and checking a single record costs a
+ * few hashes and one signature verification.
+ *
+ * Leaves are SHA-256(0x00 || record), inner nodes SHA-256(0x01 || left
+ * || right). The last node of an odd level moves up unchanged. The
+ * signature covers gate (4) time (8) record count (4) root (32).
+ */
+public class ReceiptBatcher implements PassageListener {
+
+    private static final int HASH = 32;
+
+    /**
+     * Proof that a record belongs to a signed batch. Encoded as
+     *
+     *   gate (4) time (8) count (4) index (4)
+     *   path length (1) path (32 each) signature length (1) signature
+     */
+    public static class Receipt {
+        public final int gate;
+        public final long time;
+        public final int count;
+        public final int index;
+        public final byte[][] path;
+        public final byte[] signature;
+
+        Receipt(int gate, long time, int count, int index, byte[][] path, byte[] signature) {
+            this.gate = gate;
+            this.time = time;
+            this.count = count;
+            this.index = index;
+            this.path = path;
+            this.signature = signature;
+        }
+
+        public byte[] encode() {
+            ByteBuffer b = ByteBuffer.allocate(4 + 8 + 4 + 4 + 1 + path.length * HASH + 1 + signature.length);
+            b.putInt(gate).putLong(time).putInt(count).putInt(index);
+            b.put((byte) path.length);
+            for (byte[] h : path) {
+                b.put(h);
+            }
+            b.put((byte) signature.length).put(signature);
+            return b.array();
+        }
+
+        /**
+         * @throws IllegalArgumentException if the receipt is malformed
+         */
+        public static Receipt decode(byte[] data) {
+            try {
+                ByteBuffer b = ByteBuffer.wrap(data);
+                int gate = b.getInt();
+                long time = b.getLong();
+                int count = b.getInt();
+                int index = b.getInt();
+                byte[][] path = new byte[b.get() & 0xff][HASH];
+                for (byte[] h : path) {
+                    b.get(h);
+                }
+                byte[] signature = new byte[b.get() & 0xff];
+                b.get(signature);
+                return new Receipt(gate, time, count, index, path, signature);
+            } catch (java.nio.BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated receipt");
+            }
+        }
+
+        /**
+         * Check that the record is covered by this receipt and that the
+         * root was signed with the given key
+         *
+         * @param algorithm Signature algorithm of the gate, e.g. SHA1WITHECDSA
+         */
+        public boolean verify(byte[] record, PublicKey key, String algorithm)
+                throws GeneralSecurityException {
+            if (index < 0 || index >= count) {
+                return false;
+            }
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] h = leaf(md, record);
+            int i = index;
+            int n = count;
+            int p = 0;
+            while (n > 1) {
+                if ((i & 1) == 1) {
+                    h = node(md, path[p++], h);
+                } else if (i + 1 < n) {
+                    h = node(md, h, path[p++]);
+                }
+                i >>= 1;
+                n = (n + 1) >> 1;
+            }
+            if (p != path.length) {
+                return false;
+            }
+            Signature s = Signature.getInstance(algorithm, "BC");
+            s.initVerify(key);
+            s.update(signedData(gate, time, count, h));
+            return s.verify(signature);
+        }
+    }
+
+    private final int gate;
+    private final Signature signer;
+    private final PrivateKey key;
+    private final int maxRecords;
+    private final long maxDelay;
+    private final ReceiptListener listener;
+    private final Thread thread;
+
+    // Guarded by this
+    private List<byte[]> records = new ArrayList<byte[]>();
+    private List<Long> ids = new ArrayList<Long>();
+    private long oldest = 0;
+    private long nextId = 0;
+    private long batches = 0;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param gate Id of the gate, included in the signature
+     * @param signer Signature of the gate, only used by this batcher
+     * @param key Private key of the gate
+     * @param maxRecords Largest batch
+     * @param maxDelay Longest a record waits for its receipt (in ms)
+     * @param listener Receives the receipts, on the signing thread
+     */
+    public ReceiptBatcher(int gate, Signature signer, PrivateKey key, int maxRecords,
+            long maxDelay, ReceiptListener listener) {
+        this.gate = gate;
+        this.signer = signer;
+        this.key = key;
+        this.maxRecords = maxRecords;
+        this.maxDelay = maxDelay;
+        this.listener = listener;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                sign();
+            }
+        }, "ReceiptBatcher-" + gate);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sign a passage without a journal, records are numbered by the batcher
+     */
+    public void passageDecided(Passage p) {
+        ByteBuffer b = ByteBuffer.allocate(PassageJournal.RECORD);
+        synchronized (this) {
+            PassageJournal.encode(b, nextId, System.currentTimeMillis(), gate, p);
+            add(nextId, b.array());
+        }
+    }
+
+    /**
+     * Add a record to the current batch
+     *
+     * @param id Id of the record, e.g. its sequence number in the journal
+     */
+    public synchronized void add(long id, byte[] record) {
+        if (records.isEmpty()) {
+            oldest = System.currentTimeMillis();
+        }
+        records.add(record);
+        ids.add(id);
+        nextId = id + 1;
+        if (records.size() >= maxRecords) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Number of batches signed so far
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Sign what is left and stop
+     */
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Object[] batch;
+        while (((List<?>) (batch = take())[0]).size() > 0) {
+            signBatch(batch);
+        }
+    }
+
+    /**
+     * Take the next batch, at most maxRecords long
+     */
+    private synchronized Object[] take() {
+        int n = Math.min(records.size(), maxRecords);
+        List<byte[]> r = new ArrayList<byte[]>(records.subList(0, n));
+        List<Long> i = new ArrayList<Long>(ids.subList(0, n));
+        records.subList(0, n).clear();
+        ids.subList(0, n).clear();
+        return new Object[] { r, i };
+    }
+
+    private void sign() {
+        while (running) {
+            Object[] batch;
+            try {
+                synchronized (this) {
+                    long left = 0;
+                    while (records.isEmpty() || (records.size() < maxRecords
+                            && (left = oldest + maxDelay - System.currentTimeMillis()) > 0)) {
+                        wait(records.isEmpty() ? maxDelay : left);
+                    }
+                    batch = take();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            signBatch(batch);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void signBatch(Object[] batch) {
+        List<byte[]> records = (List<byte[]>) batch[0];
+        List<Long> ids = (List<Long>) batch[1];
+        int n = records.size();
+        if (n == 0) {
+            return;
+        }
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        // levels[0] are the leaves, the last level is the root
+        List<byte[][]> levels = new ArrayList<byte[][]>();
+        byte[][] level = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            level[i] = leaf(md, records.get(i));
+        }
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] up = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < up.length; i++) {
+                up[i] = 2 * i + 1 < level.length
+                        ? node(md, level[2 * i], level[2 * i + 1]) : level[2 * i];
+            }
+            levels.add(up);
+            level = up;
+        }
+
+        long time = System.currentTimeMillis();
+        byte[] signature;
+        try {
+            signer.initSign(key);
+            signer.update(signedData(gate, time, n, level[0]));
+            signature = signer.sign();
+        } catch (GeneralSecurityException e) {
+            System.err.println("Receipts not signed: " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            batches++;
+        }
+
+        for (int i = 0; i < n; i++) {
+            List<byte[]> path = new ArrayList<byte[]>();
+            int j = i;
+            for (int l = 0; l < levels.size() - 1; l++) {
+                byte[][] nodes = levels.get(l);
+                int sibling = j ^ 1;
+                if (sibling < nodes.length) {
+                    path.add(nodes[sibling]);
+                }
+                j >>= 1;
+            }
+            Receipt r = new Receipt(gate, time, n, i, path.toArray(new byte[path.size()][]), signature);
+            try {
+                listener.receiptIssued(ids.get(i), records.get(i), r);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static byte[] leaf(MessageDigest md, byte[] record) {
+        md.update((byte) 0);
+        return md.digest(record);
+    }
+
+    private static byte[] node(MessageDigest md, byte[] left, byte[] right) {
+        md.update((byte) 1);
+        md.update(left);
+        return md.digest(right);
+    }
+
+    private static byte[] signedData(int gate, long time, int count, byte[] root) {
+        return ByteBuffer.allocate(4 + 8 + 4 + HASH).putInt(gate).putLong(time).putInt(count)
+                .put(root).array();
+    }
+
+    /**
+     * Sign a number of software passages and check all receipts
+     *
+     * Usage: ReceiptBatcher [passages] [batch size]
+     */
+    public static void main(String[] args) throws Exception {
+        int passages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+        GateClient gate = new GateClient((proxy.CardProxy) null);
+        final java.security.KeyPair keys;
+        if (System.getProperty(GateClient.KEYSTORE) != null) {
+            keys = gate.getSigningKey();
+        } else {
+            // Only a benchmark, a throwaway key will do
+            java.security.KeyPairGenerator g = java.security.KeyPairGenerator.getInstance("ECDSA", "BC");
+            g.initialize(256);
+            keys = g.generateKeyPair();
+            System.out.println("No " + GateClient.KEYSTORE + ", signing with a throwaway key");
+        }
+        final int[] checked = new int[2];
+        final long[] size = new long[1];
+        ReceiptBatcher receipts = new ReceiptBatcher(0, Signature.getInstance("SHA1WITHECDSA", "BC"),
+                keys.getPrivate(), batch, 1000, new ReceiptListener() {
+            public void receiptIssued(long id, byte[] record, Receipt receipt) {
+                byte[] encoded = receipt.encode();
+                try {
+                    boolean ok = Receipt.decode(encoded).verify(record, keys.getPublic(), "SHA1WITHECDSA");
+                    // A changed record must not verify
+                    record[30] ^= 1;
+                    boolean forged = receipt.verify(record, keys.getPublic(), "SHA1WITHECDSA");
+                    synchronized (checked) {
+                        checked[ok && !forged ? 0 : 1]++;
+                        size[0] += encoded.length;
+                    }
+                } catch (GeneralSecurityException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        java.util.Random random = new java.util.Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < passages; i++) {
+            Passage p = new Passage(0);
+            p.nonce = new java.math.BigInteger(127, random);
+            p.attr = new java.math.BigInteger[4];
+            Arrays.fill(p.attr, new java.math.BigInteger(128, random));
+            p.granted = true;
+            receipts.passageDecided(p);
+        }
+        receipts.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.format("%d passages in %.2f s, %d signatures, %d receipts ok, %d bad, %d bytes per receipt%n",
+                passages, seconds, receipts.getBatches(), checked[0], checked[1],
+                size[0] / Math.max(1, checked[0] + checked[1]));
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * ReceiptListener.java
+ *
+ * Receives the signed receipts of journalled passages
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+public interface ReceiptListener {
+
+    /**
+     * Called once the batch of a record has been signed
+     *
+     * @param id Id of the record, its sequence number in the journal
+     * @param record The record the receipt covers
+     * @param receipt The receipt, see ReceiptBatcher.Receipt
+     */
+    public void receiptIssued(long id, byte[] record, ReceiptBatcher.Receipt receipt);
+}
@@ -0,0 +1,194 @@
+/**
+ * SecurityLevelBenchmark.java
+ *
+ * Measures the cost of a passage at every supported key length
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+
+import card.APDUCodec;
+import card.CardFarm;
+import card.CardInterface;
+import card.PairingParameters;
+import service.BenchmarkSupport;
+
+/**
+ * Runs the same passages at each key length and reports, per level, the
+ * card round trip (a simulated card plus the air time of the GET_ATTRIBUTE
+ * exchange at the given bit rate), the nonce check and the pairing check,
+ * as mean and 99th percentile, and the pairing cost relative to the
+ * smallest level. Levels without hard-coded parameters derive them, the
+ * time this takes is reported as setup.
+ */
+public class SecurityLevelBenchmark {
+
+    static final int[] KEY_LENGTHS = { 128, 160, 192, 224 };
+
+    // Header bytes of a GET_ATTRIBUTE command and its response (with SW)
+    private static final int APDU_OVERHEAD = 5 + 1 + 2;
+
+    /**
+     * Results of one level
+     */
+    static class Level {
+        int bits;
+        long setup;
+        int apduBytes;
+        long airTime;
+        final LatencyHistogram card = new LatencyHistogram();
+        final LatencyHistogram nonce = new LatencyHistogram();
+        final LatencyHistogram pairing = new LatencyHistogram();
+        int rejected;
+    }
+
+    /**
+     * Measure one key length
+     *
+     * @param warmup Passages before measuring
+     * @param passages Passages measured
+     * @param bitrate Speed of the air interface (in bit/s)
+     */
+    static Level measure(int bits, int warmup, int passages, int bitrate, long seed) {
+        Level l = new Level();
+        l.bits = bits;
+
+        long start = System.nanoTime();
+        GateClient gate = new GateClient((proxy.CardProxy) null, bits);
+        gate.setLogger(GateLogger.SILENT);
+        l.setup = System.nanoTime() - start;
+
+        int attributes = gate.getVerifier().getAttributeCount();
+        byte[] all = new byte[attributes];
+        for (int i = 0; i < attributes; i++) {
+            all[i] = gate.getAttributeId(i);
+        }
+        CardFarm farm = gate.createCardFarm(1000, seed);
+        farm.issueAll(all);
+        GateVerifier verifier = gate.getVerifier();
+
+        for (int n = 0; n < warmup + passages; n++) {
+            int attrIndex = n % attributes;
+            Passage p = gate.readAttribute(attrIndex, farm.card(n % farm.getCardCount()));
+            boolean ok = verifier.checkNonce(p) && verifier.checkPairing(p);
+            if (n < warmup) {
+                continue;
+            }
+            if (l.apduBytes == 0) {
+                l.apduBytes = exchangeBytes(gate, p);
+                l.airTime = l.apduBytes * 8L * 1000000000L / bitrate;
+            }
+            l.card.record(p.ioTime + l.airTime);
+            l.nonce.record(p.nonceTime);
+            l.pairing.record(p.pairingTime);
+            if (!ok) {
+                l.rejected++;
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Bytes on the air for one GET_ATTRIBUTE: the command with the id and
+     * the nonce point, the response with the three x coordinates and the
+     * attribute
+     */
+    private static int exchangeBytes(GateClient gate, Passage p) {
+        APDUCodec codec = new APDUCodec();
+        codec.put(p.attributeId).putField(gate.getVerifier().getCurve().getG().multiply(p.nonce));
+        int command = codec.length();
+        codec.reset();
+        for (BigInteger f : new BigInteger[] { p.attr[CardInterface.SIGNED_NONCE],
+                p.attr[CardInterface.BLINDED_KEY], p.attr[CardInterface.BLINDED_SIGNATURE],
+                p.attr[CardInterface.ATTRIBUTE] }) {
+            codec.putField(f);
+        }
+        return command + codec.length() + APDU_OVERHEAD;
+    }
+
+    /**
+     * Run the matrix
+     *
+     * Usage: SecurityLevelBenchmark [--passages n] [--warmup n]
+     *          [--bitrate bps] [--length bits] [--seed n] [--csv]
+     */
+    public static void main(String[] args) {
+        PairingParameters.useBenchmarkSeed();
+        int passages = 200;
+        int warmup = 20;
+        int bitrate = 106000;
+        int[] lengths = KEY_LENGTHS;
+        long seed = 1;
+        boolean csv = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--passages")) {
+                passages = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--warmup")) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--bitrate")) {
+                bitrate = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--length")) {
+                lengths = new int[] { Integer.parseInt(args[++i]) };
+            } else if (args[i].equals("--seed")) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--csv")) {
+                csv = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        PrintStream out = BenchmarkSupport.discardStdout();
+
+        PrintStream report = csv ? out : System.err;
+        if (csv) {
+            report.println("bits,setup_ms,apdu_bytes,card_mean_ms,card_p99_ms,nonce_mean_ms,"
+                    + "nonce_p99_ms,pairing_mean_ms,pairing_p99_ms,pairing_relative,rejected");
+        } else {
+            report.format("%d passages per level after %d warm-up, air at %d bit/s%n",
+                    passages, warmup, bitrate);
+            report.format("%4s %9s %6s %17s %17s %17s %8s%n", "Bits", "setup ms", "bytes",
+                    "card mean/p99", "nonce mean/p99", "pairing mean/p99", "pairing");
+        }
+        double base = 0;
+        for (int bits : lengths) {
+            Level l = measure(bits, warmup, passages, bitrate, seed);
+            if (base == 0) {
+                base = l.pairing.getMean();
+            }
+            double relative = l.pairing.getMean() / base;
+            if (csv) {
+                report.format("%d,%.1f,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.2f,%d%n", l.bits,
+                        l.setup / 1e6, l.apduBytes, l.card.getMean() / 1e6,
+                        l.card.getValueAtPercentile(99) / 1e6, l.nonce.getMean() / 1e6,
+                        l.nonce.getValueAtPercentile(99) / 1e6, l.pairing.getMean() / 1e6,
+                        l.pairing.getValueAtPercentile(99) / 1e6, relative, l.rejected);
+            } else {
+                report.format("%4d %9.1f %6d %8.2f/%8.2f %8.2f/%8.2f %8.2f/%8.2f %7.2fx%s%n",
+                        l.bits, l.setup / 1e6, l.apduBytes, l.card.getMean() / 1e6,
+                        l.card.getValueAtPercentile(99) / 1e6, l.nonce.getMean() / 1e6,
+                        l.nonce.getValueAtPercentile(99) / 1e6, l.pairing.getMean() / 1e6,
+                        l.pairing.getValueAtPercentile(99) / 1e6, relative,
+                        l.rejected == 0 ? "" : ", " + l.rejected + " rejected");
+            }
+        }
+        System.setOut(out);
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * SpscQueue.java
+ *
+ * Bounded queue between exactly one producer and one consumer thread
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer connecting two pipeline stages. Only one thread may call
+ * offer()/put() and only one thread may call poll()/take(), so no locks
+ * are needed. A full queue blocks the producer, which keeps a slow stage
+ * from piling up work.
+ */
+public class SpscQueue<E> {
+
+    // Upper bound on a single park, in case a wakeup is missed
+    private static final long PARK_NANOS = 1000000L;
+
+    private final Object[] buffer;
+    private final int mask;
+
+    // Next slot to read and next slot to write
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile Thread waitingConsumer = null;
+    private volatile Thread waitingProducer = null;
+
+    /**
+     * @param capacity Minimum number of elements, rounded up to a power of two
+     */
+    public SpscQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new Object[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Add an element if there is room, never blocks
+     */
+    public boolean offer(E e) {
+        long t = tail.get();
+        if (t - head.get() == buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = e;
+        tail.set(t + 1);
+        Thread w = waitingConsumer;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the oldest element, null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int i = (int) h & mask;
+        E e = (E) buffer[i];
+        buffer[i] = null;
+        head.set(h + 1);
+        Thread w = waitingProducer;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return e;
+    }
+
+    /**
+     * Add an element, waiting for room if the queue is full
+     */
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            waitingProducer = Thread.currentThread();
+            if (size() == buffer.length) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingProducer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest element, waiting for one if the queue is empty
+     */
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = poll()) == null) {
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return e;
+    }
+}
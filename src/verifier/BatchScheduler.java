@@ -0,0 +1,235 @@
+/**
+ * BatchScheduler.java
+ *
+ * Collects queued proofs into batches within their latency budget
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes requests from a queue and hands them to a BatchVerifier in
+ * batches. A batch closes when it reaches the target size, or when
+ * waiting any longer would make the oldest request miss its latency
+ * budget, whichever comes first.
+ *
+ * The target size follows the load: it is the number of requests that is
+ * expected to arrive while one request is verified, rounded up to fill
+ * all verifier threads. Under light load this is 1 and every request is
+ * dispatched at once; under heavy load batches grow up to the maximum.
+ *
+ * Batches are pipelined: up to IN_FLIGHT batches are handed to the
+ * verifier at once, so the next batch is already queued on the pool when
+ * the last proofs of the current one finish. A batch that fails or is
+ * interrupted completes its requests as BUSY, so they never stay pending.
+ */
+public class BatchScheduler implements Runnable {
+
+    public interface Completion {
+
+        /**
+         * Called for every request once it has been verified
+         */
+        public void complete(VerificationRequest r, byte status);
+    }
+
+    // Weight of a new observation in the moving averages
+    private static final double ALPHA = 0.2;
+
+    // Batches handed to the verifier at the same time
+    private static final int IN_FLIGHT = 2;
+
+    private final FairQueue<VerificationRequest> queue;
+    private final BatchVerifier verifier;
+    private final Completion completion;
+    private final int threads;
+    private final int maxBatch;
+    private final long budget;
+
+    // Moving averages of the arrival rate (per ns) and the cost of one
+    // verification (ns)
+    private double rate = 0;
+    private volatile double cost;
+    private long lastClose = System.nanoTime();
+
+    // When the last dispatched batch was done (guarded by this)
+    private long lastDone = 0;
+
+    private final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+
+    private volatile int lastSize = 0;
+    private volatile int target = 1;
+
+    /**
+     * @param queue Queue the requests arrive on
+     * @param verifier Verifies the batches
+     * @param completion Receives the results
+     * @param threads Number of threads of the verifier pool
+     * @param maxBatch Largest batch
+     * @param budget Latency budget of a request (in ms)
+     */
+    public BatchScheduler(FairQueue<VerificationRequest> queue, BatchVerifier verifier,
+            Completion completion, int threads, int maxBatch, long budget) {
+        this.queue = queue;
+        this.verifier = verifier;
+        this.completion = completion;
+        this.threads = threads;
+        this.maxBatch = maxBatch;
+        this.budget = TimeUnit.MILLISECONDS.toNanos(budget);
+        // Initial guess, replaced by measurements after the first batch
+        this.cost = this.budget / 4.0;
+    }
+
+    public int getLastBatchSize() {
+        return lastSize;
+    }
+
+    public int getTargetSize() {
+        return target;
+    }
+
+    /**
+     * Expected time (in ns) to verify a batch of the given size
+     */
+    private long estimate(int size) {
+        return (long) (cost * ((size + threads - 1) / threads));
+    }
+
+    private int target() {
+        int n = (int) Math.ceil(rate * cost);
+        if (n <= 1) {
+            return 1;
+        }
+        n = (n + threads - 1) / threads * threads;
+        return Math.min(n, maxBatch);
+    }
+
+    public void run() {
+        ExecutorService dispatcher = Executors.newFixedThreadPool(IN_FLIGHT, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BatchScheduler-dispatch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final List<VerificationRequest> b = collect();
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    fail(b, 0);
+                    throw e;
+                }
+                dispatcher.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            dispatch(b);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            // Running batches are interrupted and complete as BUSY, no
+            // batch is left waiting as there are as many threads as
+            // batches in flight
+            dispatcher.shutdownNow();
+        }
+    }
+
+    private List<VerificationRequest> collect() throws InterruptedException {
+        List<VerificationRequest> b = new ArrayList<VerificationRequest>();
+        VerificationRequest first = queue.take();
+        b.add(first);
+        target = target();
+        while (b.size() < target) {
+            long wait = first.received + budget - estimate(b.size() + 1) - System.nanoTime();
+            if (wait <= 0) {
+                break;
+            }
+            VerificationRequest r = queue.poll(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            if (r == null) {
+                break;
+            }
+            b.add(r);
+        }
+
+        long now = System.nanoTime();
+        rate = (1 - ALPHA) * rate + ALPHA * b.size() / (double) Math.max(1, now - lastClose);
+        lastClose = now;
+        lastSize = b.size();
+        return b;
+    }
+
+    private void dispatch(List<VerificationRequest> b) {
+        long start = System.nanoTime();
+        byte[] status;
+        try {
+            status = verifier.verify(b);
+        } catch (InterruptedException e) {
+            fail(b, 0);
+            return;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail(b, 0);
+            return;
+        }
+        long done = System.nanoTime();
+        long rounds = (b.size() + threads - 1) / threads;
+        synchronized (this) {
+            // A pipelined batch only gets the pool once the previous one
+            // is done, the time it waited is not part of its cost
+            cost = (1 - ALPHA) * cost + ALPHA * (done - Math.max(start, lastDone)) / (double) rounds;
+            lastDone = done;
+        }
+        int i = 0;
+        try {
+            for (; i < status.length; i++) {
+                completion.complete(b.get(i), status[i]);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail(b, i + 1);
+        }
+    }
+
+    /**
+     * Complete the requests of a batch from the given index on as BUSY, so
+     * their clients try again and they are no longer pending
+     */
+    private void fail(List<VerificationRequest> b, int from) {
+        for (int i = from; i < b.size(); i++) {
+            try {
+                completion.complete(b.get(i), VerificationProtocol.BUSY);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * BatchVerifier.java
+ *
+ * Verification of a batch of proofs on a pool of threads
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import terminal.GateVerifier;
+import terminal.Passage;
+
+/**
+ * Verifies a batch of proofs with the checks of GateClient.proveAttribute.
+ *
+ * The points of a proof are recovered from their x coordinate only, so
+ * each pairing check holds up to an unknown sign per proof
+ * (e1 == e2 or e1 == 1/e2). A random linear combination of the checks
+ * would need that sign, so the proofs of a batch are not combined into a
+ * single pairing product. Instead the whole batch is spread over the pool
+ * at once: the cheap nonce check of every proof runs first and a proof
+ * that fails it never reaches the pairings.
+ */
+public class BatchVerifier {
+
+    private final GateVerifier verifier;
+    private final ExecutorService pool;
+
+    public BatchVerifier(GateVerifier verifier, ExecutorService pool) {
+        this.verifier = verifier;
+        this.pool = pool;
+    }
+
+    public GateVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * Verify all requests of a batch
+     *
+     * @return The status of every request, in the order of the batch
+     */
+    public byte[] verify(List<VerificationRequest> batch) throws InterruptedException {
+        List<Future<Byte>> results = new ArrayList<Future<Byte>>(batch.size());
+        for (final VerificationRequest r : batch) {
+            results.add(pool.submit(new Callable<Byte>() {
+                public Byte call() {
+                    return verify(verifier, r);
+                }
+            }));
+        }
+
+        byte[] status = new byte[batch.size()];
+        for (int i = 0; i < status.length; i++) {
+            try {
+                status[i] = results.get(i).get();
+            } catch (ExecutionException e) {
+                status[i] = VerificationProtocol.MALFORMED;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Verify a single request, never throws
+     */
+    public static byte verify(GateVerifier verifier, VerificationRequest r) {
+        if (r.attrIndex >= verifier.getAttributeCount()) {
+            return VerificationProtocol.MALFORMED;
+        }
+        try {
+            Passage p = Passage.parse(r.attrIndex, r.nonce, r.data);
+            if (!verifier.checkNonce(p)) {
+                return VerificationProtocol.DENIED;
+            }
+            return verifier.checkPairing(p) ? VerificationProtocol.GRANTED : VerificationProtocol.DENIED;
+        } catch (RuntimeException e) {
+            // Not a point on the curve or an incomplete response
+            return VerificationProtocol.MALFORMED;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * ClusterKey.java
+ *
+ * Secret shared by the nodes of a verifier cluster
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key of the messages between cluster nodes. Work stealing and the replay
+ * sync decide about passages, so a node only accepts messages that carry
+ * a MAC under this key. The key is derived from the passphrase in the
+ * system property cluster.key; there is no default, a well known key
+ * would let anyone on the network forge decisions.
+ */
+public class ClusterKey {
+
+    public static final String PROPERTY = "cluster.key";
+
+    // Bytes of the HMAC-SHA256 tag that are sent
+    public static final int TAG_LENGTH = 16;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+
+    public ClusterKey(String passphrase) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            key = new SecretKeySpec(sha.digest(passphrase.getBytes("UTF-8")), ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if cluster.key is not set
+     */
+    public static ClusterKey fromProperty() {
+        String passphrase = System.getProperty(PROPERTY);
+        if (passphrase == null || passphrase.length() == 0) {
+            throw new IllegalStateException("No cluster key, set " + PROPERTY);
+        }
+        return new ClusterKey(passphrase);
+    }
+
+    /**
+     * A new MAC under this key; a Mac is not thread safe, so every
+     * thread that signs or checks messages needs its own
+     */
+    Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The truncated tag of what was fed into the given MAC, which is reset
+     */
+    static byte[] tag(Mac mac) {
+        return Arrays.copyOf(mac.doFinal(), TAG_LENGTH);
+    }
+
+    /**
+     * Compare tags in constant time
+     */
+    static boolean matches(byte[] tag, byte[] expected) {
+        return MessageDigest.isEqual(tag, expected);
+    }
+}
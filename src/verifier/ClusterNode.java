@@ -0,0 +1,433 @@
+/**
+ * ClusterNode.java
+ *
+ * Verification server that shares work with its peers
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import terminal.GateClient;
+import terminal.GateVerifier;
+
+/**
+ * A node of a verifier cluster. Gates are spread over the nodes by the
+ * ClusterRouter; in addition a node that has a free worker steals queued
+ * requests from its peers. The owner keeps the client connection and
+ * answers the gate once the thief returns the result.
+ *
+ * Peers talk over a separate port (the client port plus PEER_OFFSET), in
+ * frames that carry a MAC under the cluster key (see PeerChannel):
+ *
+ *   thief -> owner:  STEAL max (4)  |  RESULT token (4) status (1)
+ *   owner -> thief:  WORK count (4), per request: token (4) attribute (1)
+ *                    nonce length (2) nonce, data length (2) data
+ *
+ * A stolen request that has no result within LOAN_TIMEOUT is verified by
+ * the owner itself, a late result for it is ignored.
+ */
+public class ClusterNode {
+
+    public static final int PEER_OFFSET = 1;
+
+    // UDP port of the replay cache sync, relative to the client port
+    public static final int SYNC_OFFSET = 2;
+
+    // Proofs remembered per window, and the window length (in ms)
+    private static final int REPLAY_CAPACITY = 2 * 131072;
+    private static final long REPLAY_WINDOW = 10000;
+
+    private static final byte STEAL = 1;
+    private static final byte RESULT = 2;
+    private static final byte WORK = 3;
+
+    // How often an idle node looks for work (in ms)
+    private static final long STEAL_INTERVAL = 20;
+
+    // Read timeout of peer connections (in ms)
+    private static final int PEER_TIMEOUT = 1000;
+
+    // Time a thief has for a stolen request (in ms)
+    private static final long LOAN_TIMEOUT = 2000;
+
+    private static final String REPLAY_SEED = "replay.seed";
+
+    /**
+     * A request lent to a thief
+     */
+    private static class Loan {
+        final VerificationRequest request;
+        final long due;
+
+        Loan(VerificationRequest request, long due) {
+            this.request = request;
+            this.due = due;
+        }
+    }
+
+    private final VerificationServer server;
+    private final List<InetSocketAddress> peers;
+    private final ClusterKey key;
+    private final AtomicLong stolen = new AtomicLong();
+    private final AtomicLong given = new AtomicLong();
+
+    private ServerSocket peerSocket;
+    private volatile boolean running = false;
+
+    /**
+     * @param server The local verification server
+     * @param peers Client addresses of the other nodes
+     * @param key Key shared by all nodes
+     */
+    public ClusterNode(VerificationServer server, List<InetSocketAddress> peers, ClusterKey key) {
+        this.server = server;
+        this.peers = peers;
+        this.key = key;
+    }
+
+    public void start(InetSocketAddress address) throws IOException {
+        server.start(address);
+        peerSocket = new ServerSocket(server.getPort() + PEER_OFFSET, 16, address.getAddress());
+        running = true;
+        daemon(new Runnable() {
+            public void run() {
+                acceptPeers();
+            }
+        }, "ClusterNode-peers");
+        daemon(new Runnable() {
+            public void run() {
+                stealWork();
+            }
+        }, "ClusterNode-stealer");
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            peerSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        server.stop();
+    }
+
+    public VerificationServer getServer() {
+        return server;
+    }
+
+    /** Requests verified here on behalf of peers */
+    public long getStolen() {
+        return stolen.get();
+    }
+
+    /** Requests verified by peers on behalf of this node */
+    public long getGiven() {
+        return given.get();
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // *** OWNER SIDE ***
+
+    private void acceptPeers() {
+        while (running) {
+            try {
+                final Socket s = peerSocket.accept();
+                daemon(new Runnable() {
+                    public void run() {
+                        servePeer(s);
+                    }
+                }, "ClusterNode-peer-" + s.getRemoteSocketAddress());
+            } catch (IOException e) {
+                // Socket closed by stop()
+            }
+        }
+    }
+
+    private void servePeer(Socket s) {
+        // In the order lent, so the overdue ones come first
+        Map<Integer, Loan> lent = new LinkedHashMap<Integer, Loan>();
+        int nextToken = 0;
+        try {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(PEER_TIMEOUT);
+            PeerChannel channel = new PeerChannel(s, key, true);
+            while (true) {
+                requeueOverdue(lent);
+                DataInputStream in;
+                try {
+                    in = channel.receive();
+                } catch (SocketTimeoutException e) {
+                    // The thief is busy, look at the loans again
+                    continue;
+                }
+                byte type = in.readByte();
+                if (type == STEAL) {
+                    List<VerificationRequest> work = server.steal(in.readInt());
+                    long due = System.currentTimeMillis() + LOAN_TIMEOUT;
+                    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(frame);
+                    out.writeByte(WORK);
+                    out.writeInt(work.size());
+                    for (VerificationRequest r : work) {
+                        int token = nextToken++;
+                        lent.put(token, new Loan(r, due));
+                        byte[] n = r.nonce.toByteArray();
+                        out.writeInt(token);
+                        out.writeByte(r.attrIndex);
+                        out.writeShort(n.length);
+                        out.write(n);
+                        out.writeShort(r.data.length);
+                        out.write(r.data);
+                    }
+                    channel.send(frame.toByteArray());
+                } else if (type == RESULT) {
+                    Loan loan = lent.remove(in.readInt());
+                    byte status = in.readByte();
+                    if (loan == null) {
+                        // Unknown, or overdue and verified here already
+                        continue;
+                    }
+                    if (status == VerificationProtocol.BUSY) {
+                        // The peer filled up in the meantime
+                        server.requeue(loan.request);
+                    } else {
+                        given.incrementAndGet();
+                        server.complete(loan.request, status);
+                    }
+                } else {
+                    throw new IOException("Unknown peer message " + type);
+                }
+            }
+        } catch (IOException e) {
+            // Peer gone, verify what it did not finish here
+            for (Loan loan : lent.values()) {
+                server.requeue(loan.request);
+            }
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Take back the loans whose time is up and verify them here
+     */
+    private void requeueOverdue(Map<Integer, Loan> lent) {
+        long now = System.currentTimeMillis();
+        Iterator<Loan> i = lent.values().iterator();
+        while (i.hasNext()) {
+            Loan loan = i.next();
+            if (loan.due > now) {
+                break;
+            }
+            i.remove();
+            server.requeue(loan.request);
+        }
+    }
+
+    // *** THIEF SIDE ***
+
+    /**
+     * Connection to a peer that work is stolen from
+     */
+    private class PeerLink {
+        final Socket socket;
+        final PeerChannel channel;
+
+        PeerLink(InetSocketAddress peer) throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(PEER_TIMEOUT);
+            socket.connect(new InetSocketAddress(peer.getAddress(), peer.getPort() + PEER_OFFSET), 1000);
+            try {
+                channel = new PeerChannel(socket, key, false);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Ask for work and submit it locally, results are sent back as
+         * soon as they are known
+         *
+         * @return The number of requests received
+         */
+        int steal(int max) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(frame);
+            out.writeByte(STEAL);
+            out.writeInt(max);
+            channel.send(frame.toByteArray());
+            DataInputStream in = channel.receive();
+            if (in.readByte() != WORK) {
+                throw new IOException("Unexpected peer message");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final int token = in.readInt();
+                int attrIndex = in.readByte() & 0xff;
+                byte[] n = new byte[in.readShort() & 0xffff];
+                in.readFully(n);
+                byte[] data = new byte[in.readShort() & 0xffff];
+                in.readFully(data);
+                VerificationRequest r = new VerificationRequest(token, -1, attrIndex, new BigInteger(n), data);
+                BatchScheduler.Completion reply = new BatchScheduler.Completion() {
+                    public void complete(VerificationRequest r, byte status) {
+                        try {
+                            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                            DataOutputStream out = new DataOutputStream(frame);
+                            out.writeByte(RESULT);
+                            out.writeInt(token);
+                            out.writeByte(status);
+                            channel.send(frame.toByteArray());
+                        } catch (IOException e) {
+                            // The owner verifies it again itself
+                        }
+                    }
+                };
+                if (!server.submit(r, reply)) {
+                    reply.complete(r, VerificationProtocol.BUSY);
+                }
+            }
+            stolen.addAndGet(count);
+            return count;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void stealWork() {
+        List<PeerLink> links = new ArrayList<PeerLink>();
+        for (int i = 0; i < peers.size(); i++) {
+            links.add(null);
+        }
+        int next = 0;
+        while (running) {
+            try {
+                Thread.sleep(STEAL_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (peers.isEmpty() || !server.isIdle() || server.getQueued() > 0) {
+                continue;
+            }
+            // Try each peer once, starting where the last attempt stopped
+            for (int i = 0; i < peers.size(); i++) {
+                int p = next;
+                next = (next + 1) % peers.size();
+                try {
+                    if (links.get(p) == null) {
+                        links.set(p, new PeerLink(peers.get(p)));
+                    }
+                    int free = server.getWorkerCount() - server.getPending();
+                    if (links.get(p).steal(Math.max(1, free)) > 0) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    if (links.get(p) != null) {
+                        links.get(p).close();
+                        links.set(p, null);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a cluster node
+     *
+     * Usage: ClusterNode port [workers [peer port ...]]
+     *
+     * All nodes need the same cluster.key and replay.seed properties
+     */
+    public static void main(String[] args) throws IOException {
+        // Both are secrets of the deployment, so there are no defaults
+        ClusterKey key = ClusterKey.fromProperty();
+        Long seed = Long.getLong(REPLAY_SEED);
+        if (seed == null) {
+            throw new IllegalStateException("No replay fingerprint seed, set " + REPLAY_SEED);
+        }
+        int port = Integer.parseInt(args[0]);
+        int workers = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        for (int i = 2; i < args.length; i++) {
+            peers.add(new InetSocketAddress("127.0.0.1", Integer.parseInt(args[i])));
+        }
+
+        // Every node builds the same saQ/Q tables
+        GateVerifier verifier = new GateClient(null).getVerifier();
+        verifier.setLogger(null);
+        VerificationServer server = new VerificationServer(verifier, workers, 64 * workers, 16);
+
+        // Replays are caught on every node, whichever node a gate uses
+        ReplayCache replay = new ReplayCache(REPLAY_CAPACITY, REPLAY_WINDOW, seed);
+        List<InetSocketAddress> syncPeers = new ArrayList<InetSocketAddress>();
+        for (InetSocketAddress peer : peers) {
+            syncPeers.add(new InetSocketAddress(peer.getAddress(), peer.getPort() + SYNC_OFFSET));
+        }
+        new ReplaySync(replay, new InetSocketAddress("127.0.0.1", port + SYNC_OFFSET), syncPeers, key);
+        server.setReplayCache(replay);
+
+        final ClusterNode node = new ClusterNode(server, peers, key);
+        node.start(new InetSocketAddress("127.0.0.1", port));
+        System.out.println("Cluster node on port " + port + " with " + workers
+                + " workers and " + peers.size() + " peers");
+        while (true) {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                node.stop();
+                return;
+            }
+            System.out.println("port " + port + ": " + server.getCompleted() + " completed, "
+                    + node.getStolen() + " stolen from peers, " + node.getGiven() + " given to peers");
+        }
+    }
+}
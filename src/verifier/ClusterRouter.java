@@ -0,0 +1,247 @@
+/**
+ * ClusterRouter.java
+ *
+ * Routes the proofs of a gate to a node of the verifier cluster
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import terminal.GateClient;
+
+/**
+ * Sends the proofs of one gate to the node that owns the gate id on a
+ * consistent hash ring. A node that cannot be reached is taken off the
+ * ring, so its gates move to the next node; it is put back as soon as it
+ * accepts connections again. A node that answers BUSY is skipped for that
+ * request only.
+ */
+public class ClusterRouter {
+
+    // Points per node on the ring
+    private static final int REPLICAS = 64;
+
+    // How often nodes that are down are probed (in ms)
+    private static final long PROBE_INTERVAL = 2000;
+
+    private final int gate;
+    private final HashRing<InetSocketAddress> ring = new HashRing<InetSocketAddress>(REPLICAS);
+    private final List<InetSocketAddress> down = new CopyOnWriteArrayList<InetSocketAddress>();
+    private final Map<InetSocketAddress, VerificationClient> clients =
+            new HashMap<InetSocketAddress, VerificationClient>();
+    private final Thread prober;
+
+    /**
+     * @param gate Id of the gate
+     * @param nodes Client addresses of all nodes of the cluster
+     */
+    public ClusterRouter(int gate, List<InetSocketAddress> nodes) {
+        this.gate = gate;
+        for (InetSocketAddress node : nodes) {
+            ring.add(node);
+        }
+        prober = new Thread(new Runnable() {
+            public void run() {
+                probe();
+            }
+        }, "ClusterRouter-" + gate);
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    /**
+     * A node joined the cluster, part of the gates move to it
+     */
+    public void addNode(InetSocketAddress node) {
+        down.remove(node);
+        ring.add(node);
+    }
+
+    /**
+     * A node left the cluster, its gates move to the next node
+     */
+    public synchronized void removeNode(InetSocketAddress node) {
+        down.remove(node);
+        ring.remove(node);
+        disconnect(node);
+    }
+
+    /**
+     * The node this gate's proofs go to, null if no node is up
+     */
+    public InetSocketAddress route() {
+        return ring.get("gate-" + gate);
+    }
+
+    /**
+     * Verify a proof on the owning node, falling over to the next nodes
+     */
+    public synchronized VerificationClient.Result verify(int attrIndex, BigInteger nonce, byte[] data)
+            throws IOException {
+        VerificationClient.Result result = null;
+        for (InetSocketAddress node : ring.getAll("gate-" + gate)) {
+            try {
+                result = client(node).verify(attrIndex, nonce, data);
+                if (result.status != VerificationProtocol.BUSY) {
+                    return result;
+                }
+            } catch (IOException e) {
+                markDown(node);
+            }
+        }
+        if (result == null) {
+            throw new IOException("No verifier node reachable for gate " + gate);
+        }
+        return result;
+    }
+
+    public void close() {
+        prober.interrupt();
+        synchronized (this) {
+            for (VerificationClient c : clients.values()) {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            clients.clear();
+        }
+    }
+
+    private VerificationClient client(InetSocketAddress node) throws IOException {
+        VerificationClient c = clients.get(node);
+        if (c == null) {
+            c = new VerificationClient(node, gate);
+            clients.put(node, c);
+        }
+        return c;
+    }
+
+    private void markDown(InetSocketAddress node) {
+        ring.remove(node);
+        disconnect(node);
+        if (!down.contains(node)) {
+            down.add(node);
+        }
+    }
+
+    private void disconnect(InetSocketAddress node) {
+        VerificationClient c = clients.remove(node);
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Gone already
+            }
+        }
+    }
+
+    private void probe() {
+        while (true) {
+            try {
+                Thread.sleep(PROBE_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (InetSocketAddress node : down) {
+                Socket s = new Socket();
+                try {
+                    s.connect(node, 500);
+                    addNode(node);
+                } catch (IOException e) {
+                    // Still down
+                } finally {
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                        // Closing anyway
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Let a number of gates send software proofs to a cluster on loopback
+     * and report where they went.
+     *
+     * Usage: ClusterRouter gates proofs node port ...
+     */
+    public static void main(String[] args) throws Exception {
+        int gates = Integer.parseInt(args[0]);
+        final int proofs = Integer.parseInt(args[1]);
+        final List<InetSocketAddress> nodes = new ArrayList<InetSocketAddress>();
+        for (int i = 2; i < args.length; i++) {
+            nodes.add(new InetSocketAddress("127.0.0.1", Integer.parseInt(args[i])));
+        }
+
+        final GateClient issuer = new GateClient(null);
+        issuer.getVerifier().setLogger(null);
+        final Map<InetSocketAddress, Integer> routed = new HashMap<InetSocketAddress, Integer>();
+        final int[] outcome = new int[5];
+
+        Thread[] threads = new Thread[gates];
+        long start = System.nanoTime();
+        for (int g = 0; g < gates; g++) {
+            final int gate = g;
+            threads[g] = new Thread(new Runnable() {
+                public void run() {
+                    ProofSource cards = new ProofSource(issuer, 2, new Random(gate));
+                    ClusterRouter router = new ClusterRouter(gate, nodes);
+                    for (int i = 0; i < proofs; i++) {
+                        BigInteger n = cards.nonce();
+                        try {
+                            VerificationClient.Result r = router.verify(0, n, cards.respond(i % 2, 0, n));
+                            synchronized (outcome) {
+                                outcome[r.status]++;
+                                InetSocketAddress node = router.route();
+                                Integer count = routed.get(node);
+                                routed.put(node, count == null ? 1 : count + 1);
+                            }
+                        } catch (IOException e) {
+                            System.err.println("gate " + gate + ": " + e.getMessage());
+                        }
+                    }
+                    router.close();
+                }
+            }, "gate-" + g);
+            threads[g].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.format("%d proofs in %.2f s (%.1f/s): %d granted, %d denied, %d busy, %d malformed, %d replayed%n",
+                gates * proofs, seconds, gates * proofs / seconds,
+                outcome[0], outcome[1], outcome[2], outcome[3], outcome[4]);
+        for (Map.Entry<InetSocketAddress, Integer> e : routed.entrySet()) {
+            System.out.println("  " + e.getKey() + ": " + e.getValue());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * FairQueue.java
+ *
+ * Work queue that serves its clients in turn
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps a queue per client and hands out elements round robin over the
+ * clients that have work, so a client that submits a lot of work cannot
+ * starve the others.
+ */
+public class FairQueue<E> {
+
+    private final Map<Object, ArrayDeque<E>> queues = new HashMap<Object, ArrayDeque<E>>();
+    private final ArrayDeque<Object> turn = new ArrayDeque<Object>();
+    private int size = 0;
+
+    public synchronized void add(Object client, E e) {
+        ArrayDeque<E> q = queues.get(client);
+        if (q == null) {
+            q = new ArrayDeque<E>();
+            queues.put(client, q);
+            turn.add(client);
+        }
+        q.add(e);
+        size++;
+        notify();
+    }
+
+    /**
+     * Remove the next element, waiting at most timeout ms for one
+     *
+     * @return The element, null on timeout
+     */
+    public synchronized E poll(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (size == 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        return next();
+    }
+
+    /**
+     * Remove the next element, waiting until there is one
+     */
+    public synchronized E take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        return next();
+    }
+
+    private E next() {
+        Object client = turn.poll();
+        ArrayDeque<E> q = queues.get(client);
+        E e = q.poll();
+        if (q.isEmpty()) {
+            queues.remove(client);
+        } else {
+            turn.add(client);
+        }
+        size--;
+        return e;
+    }
+
+    /**
+     * The number of elements waiting for the given client
+     */
+    public synchronized int size(Object client) {
+        ArrayDeque<E> q = queues.get(client);
+        return q == null ? 0 : q.size();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * HashRing.java
+ *
+ * Consistent hashing of keys onto nodes
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Every node is placed on the ring at a number of pseudo-random points; a
+ * key belongs to the first node at or after its own hash. When a node
+ * joins or leaves, only the keys next to its points move.
+ */
+public class HashRing<N> {
+
+    private final TreeMap<Long, N> ring = new TreeMap<Long, N>();
+    private final int replicas;
+
+    /**
+     * @param replicas Points per node, more points spread keys more evenly
+     */
+    public HashRing(int replicas) {
+        this.replicas = replicas;
+    }
+
+    public synchronized void add(N node) {
+        for (int i = 0; i < replicas; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public synchronized void remove(N node) {
+        for (int i = 0; i < replicas; i++) {
+            ring.remove(hash(node + "#" + i));
+        }
+    }
+
+    public synchronized boolean contains(N node) {
+        return ring.containsValue(node);
+    }
+
+    public synchronized boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    /**
+     * The node that owns the given key, null if the ring is empty
+     */
+    public synchronized N get(Object key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        SortedMap<Long, N> tail = ring.tailMap(hash(key.toString()));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * All nodes in the order in which they take over the given key: the
+     * owner first, then the nodes that follow it on the ring
+     */
+    public synchronized List<N> getAll(Object key) {
+        List<N> nodes = new ArrayList<N>();
+        long h = hash(key.toString());
+        for (Map.Entry<Long, N> e : ring.tailMap(h).entrySet()) {
+            if (!nodes.contains(e.getValue())) {
+                nodes.add(e.getValue());
+            }
+        }
+        for (Map.Entry<Long, N> e : ring.headMap(h).entrySet()) {
+            if (!nodes.contains(e.getValue())) {
+                nodes.add(e.getValue());
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * 64 bit FNV-1a followed by a final mix, so nearby strings end up far
+     * apart on the ring
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * LaneScheduler.java
+ *
+ * Shares the CPUs of a station server between gates and background work
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks from three lanes on one pool of threads:
+ *
+ *  - GATE: proof verification for the turnstiles, always taken first
+ *  - ISSUANCE: certificate construction and personalisation
+ *  - AUDIT: re-verification of logged passages
+ *
+ * A free thread always takes queued gate work before any background
+ * work. Tasks are not interrupted once they run, so background tasks
+ * should be small (e.g. a single card). To keep a thread available for
+ * gate work, background tasks never occupy the last reserved threads.
+ *
+ * Each background lane also has a CPU quota: its share of the pool's CPU
+ * time per window. When the 95th percentile latency of gate tasks exceeds
+ * its target, the quotas are cut back until it recovers. A window in
+ * which no gate task completed also counts as recovered, so background
+ * work is not held back while the gates are idle.
+ */
+public class LaneScheduler {
+
+    public enum Lane { GATE, ISSUANCE, AUDIT }
+
+    // Length of a quota window (in ns)
+    private static final long WINDOW = 100000000L;
+
+    // Gate tasks that are used for the latency percentile
+    private static final int SAMPLES = 128;
+
+    // Lowest fraction of their quota the background lanes are cut back to
+    private static final double MIN_THROTTLE = 0.05;
+
+    private static final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+    private class Task<T> extends FutureTask<T> {
+        final Lane lane;
+        final long submitted = System.nanoTime();
+
+        Task(Lane lane, Callable<T> c) {
+            super(c);
+            this.lane = lane;
+        }
+
+        Task(Lane lane, Runnable r) {
+            super(r, null);
+            this.lane = lane;
+        }
+    }
+
+    private final int threads;
+    private final int reserved;
+    private final Thread[] workers;
+
+    // All state below is guarded by this
+    private final ArrayDeque<Task<?>>[] queues;
+    private final double[] quota = { 1.0, 0.5, 0.2 };
+    private final long[] used = new long[3];
+    private final long[] completed = new long[3];
+    private int background = 0;
+    private long windowStart = System.nanoTime();
+    private long gateWindow = 0;
+
+    private final long[] latency = new long[SAMPLES];
+    private int latencyCount = 0;
+    private long gateTarget = TimeUnit.MILLISECONDS.toNanos(500);
+    private double throttle = 1.0;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param threads Number of threads
+     * @param reserved Threads that only run gate tasks
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public LaneScheduler(int threads, int reserved) {
+        this.threads = threads;
+        this.reserved = Math.min(reserved, threads - 1);
+        queues = new ArrayDeque[Lane.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<Task<?>>();
+        }
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "LaneScheduler-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Set the share (0..1) of the CPU time a background lane may use
+     */
+    public synchronized void setQuota(Lane lane, double share) {
+        if (lane != Lane.GATE) {
+            quota[lane.ordinal()] = share;
+        }
+    }
+
+    /**
+     * Set the gate latency (p95, in ms) above which background work is
+     * throttled
+     */
+    public synchronized void setGateTarget(long millis) {
+        gateTarget = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public void execute(Lane lane, Runnable r) {
+        add(new Task<Object>(lane, r));
+    }
+
+    public <T> Future<T> submit(Lane lane, Callable<T> c) {
+        Task<T> t = new Task<T>(lane, c);
+        add(t);
+        return t;
+    }
+
+    /**
+     * An executor that submits to the given lane
+     */
+    public Executor executor(final Lane lane) {
+        return new Executor() {
+            public void execute(Runnable r) {
+                LaneScheduler.this.execute(lane, r);
+            }
+        };
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+    }
+
+    public synchronized int getQueued(Lane lane) {
+        return queues[lane.ordinal()].size();
+    }
+
+    public synchronized long getCompleted(Lane lane) {
+        return completed[lane.ordinal()];
+    }
+
+    /**
+     * The current fraction of their quota the background lanes may use
+     */
+    public synchronized double getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Percentile (0..100) of the latency of recent gate tasks, in ns
+     */
+    public synchronized long getGateLatency(int p) {
+        int n = Math.min(latencyCount, SAMPLES);
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latency, n);
+        Arrays.sort(sorted);
+        return sorted[Math.min(n - 1, n * p / 100)];
+    }
+
+    private synchronized void add(Task<?> t) {
+        queues[t.lane.ordinal()].add(t);
+        // Background work may be waiting for quota, wake everybody
+        notifyAll();
+    }
+
+    /**
+     * Pick the next task: gate work first, then background work that is
+     * within its quota and leaves the reserved threads free
+     */
+    private synchronized Task<?> next() throws InterruptedException {
+        while (true) {
+            if (!queues[Lane.GATE.ordinal()].isEmpty()) {
+                return queues[Lane.GATE.ordinal()].poll();
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= WINDOW) {
+                nextWindow(now);
+            }
+            if (background < threads - reserved) {
+                for (Lane lane : new Lane[] { Lane.ISSUANCE, Lane.AUDIT }) {
+                    int i = lane.ordinal();
+                    if (!queues[i].isEmpty() && used[i] < quota[i] * throttle * threads * WINDOW) {
+                        background++;
+                        return queues[i].poll();
+                    }
+                }
+            }
+            // Wait for new work, or for the next window if over quota
+            long wait = windowStart + WINDOW - now;
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, wait));
+        }
+    }
+
+    private void nextWindow(long now) {
+        Arrays.fill(used, 0);
+        windowStart = now;
+        if (gateWindow == completed[Lane.GATE.ordinal()]) {
+            // No gate work at all, which is what the throttle waits for
+            throttle = Math.min(1.0, throttle * 1.25);
+        }
+        gateWindow = completed[Lane.GATE.ordinal()];
+    }
+
+    private synchronized void done(Task<?> t, long cpuTime) {
+        int i = t.lane.ordinal();
+        completed[i]++;
+        used[i] += cpuTime;
+        if (t.lane != Lane.GATE) {
+            background--;
+            notifyAll();
+            return;
+        }
+
+        latency[latencyCount++ % SAMPLES] = System.nanoTime() - t.submitted;
+        if (latencyCount % 16 == 0) {
+            // Adjust the background quotas to the gate latency
+            if (getGateLatency(95) > gateTarget) {
+                throttle = Math.max(MIN_THROTTLE, throttle / 2);
+            } else {
+                throttle = Math.min(1.0, throttle * 1.25);
+            }
+        }
+    }
+
+    private void work() {
+        boolean measure = cpu.isCurrentThreadCpuTimeSupported();
+        while (running) {
+            Task<?> t;
+            try {
+                t = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = measure ? cpu.getCurrentThreadCpuTime() : System.nanoTime();
+            t.run();
+            long end = measure ? cpu.getCurrentThreadCpuTime() : System.nanoTime();
+            done(t, end - start);
+        }
+    }
+}
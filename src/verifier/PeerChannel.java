@@ -0,0 +1,151 @@
+/**
+ * PeerChannel.java
+ *
+ * Authenticated frames between two cluster nodes
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+
+/**
+ * Framed connection between the owner and the thief of stolen work.
+ * Both sides first send a random nonce; after that every frame is
+ *
+ *   length (4) payload tag (16)
+ *
+ * where the tag is a MAC under the cluster key over the direction, both
+ * nonces, the number of the frame in that direction and the payload. So
+ * a frame cannot be forged, reflected, replayed or reordered, also not
+ * from an earlier connection. A frame that fails the check ends the
+ * connection.
+ */
+class PeerChannel {
+
+    private static final int NONCE_LENGTH = 16;
+
+    // Largest payload accepted, well above a full WORK frame
+    private static final int MAX_FRAME = 1 << 20;
+
+    private static final byte FROM_OWNER = 'O';
+    private static final byte FROM_THIEF = 'T';
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Mac sendMac;
+    private final Mac receiveMac;
+    private final byte sendDirection;
+    private final byte receiveDirection;
+    private final byte[] session = new byte[2 * NONCE_LENGTH];
+    private long sent = 0;
+    private long received = 0;
+
+    /**
+     * Exchange the nonces, under the read timeout of the socket
+     *
+     * @param owner Whether this side lends the work
+     */
+    PeerChannel(Socket s, ClusterKey key, boolean owner) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        sendMac = key.newMac();
+        receiveMac = key.newMac();
+        sendDirection = owner ? FROM_OWNER : FROM_THIEF;
+        receiveDirection = owner ? FROM_THIEF : FROM_OWNER;
+
+        byte[] mine = new byte[NONCE_LENGTH];
+        random.nextBytes(mine);
+        out.write(mine);
+        out.flush();
+        byte[] theirs = new byte[NONCE_LENGTH];
+        in.readFully(theirs);
+        // Owner nonce first on both sides
+        System.arraycopy(owner ? mine : theirs, 0, session, 0, NONCE_LENGTH);
+        System.arraycopy(owner ? theirs : mine, 0, session, NONCE_LENGTH, NONCE_LENGTH);
+    }
+
+    /**
+     * Send a frame, may be called from several threads
+     */
+    void send(byte[] payload) throws IOException {
+        synchronized (out) {
+            byte[] tag = tag(sendMac, sendDirection, sent++, payload);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.write(tag);
+            out.flush();
+        }
+    }
+
+    /**
+     * Receive the next frame, from a single thread
+     *
+     * @return The payload
+     * @throws SocketTimeoutException if no frame started within the read
+     *         timeout; nothing was read then and the channel can be used
+     *         again
+     * @throws IOException if the frame is not authentic or the connection
+     *         is broken
+     */
+    DataInputStream receive() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            throw new EOFException();
+        }
+        try {
+            int length = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            if (length < 0 || length > MAX_FRAME) {
+                throw new IOException("Peer frame of " + length + " bytes");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            byte[] tag = new byte[ClusterKey.TAG_LENGTH];
+            in.readFully(tag);
+            if (!ClusterKey.matches(tag, tag(receiveMac, receiveDirection, received++, payload))) {
+                throw new IOException("Peer frame not authentic");
+            }
+            return new DataInputStream(new ByteArrayInputStream(payload));
+        } catch (SocketTimeoutException e) {
+            // Part of the frame is gone, the stream cannot be resumed
+            throw new IOException("Peer stalled within a frame");
+        }
+    }
+
+    private byte[] tag(Mac mac, byte direction, long number, byte[] payload) {
+        mac.update(direction);
+        mac.update(session);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (number >>> shift));
+        }
+        mac.update(payload);
+        return ClusterKey.tag(mac);
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * ProofSource.java
+ *
+ * Software cards producing GET_ATTRIBUTE responses for load tests
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import terminal.GateClient;
+
+import card.APDUCodec;
+import card.CardFarm;
+import card.CardInterface;
+
+/**
+ * Proofs of a number of cards issued with the gate keys, encoded as the
+ * data of a GET_ATTRIBUTE response. The cards are those of a CardFarm
+ * holding every attribute, so responses are real proofs that exercise
+ * the full verification path without any card hardware.
+ */
+public class ProofSource {
+
+    private final GateClient issuer;
+    private final Random random;
+    private final CardFarm farm;
+    private final ECPoint G;
+
+    /**
+     * @param issuer Client holding the curve and attribute keys
+     * @param cards Number of different cards to issue
+     * @param random Source of the farm's seed and of nonces
+     */
+    public ProofSource(GateClient issuer, int cards, Random random) {
+        this.issuer = issuer;
+        this.random = random;
+        G = issuer.getVerifier().getCurve().getG();
+        farm = issuer.createCardFarm(cards, random.nextLong());
+        byte[] ids = new byte[issuer.getVerifier().getAttributeCount()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = issuer.getAttributeId(i);
+        }
+        farm.issueAll(ids);
+    }
+
+    public int getCardCount() {
+        return farm.getCardCount();
+    }
+
+    /**
+     * A fresh nonce N
+     */
+    public BigInteger nonce() {
+        return new BigInteger(127, random).setBit(126);
+    }
+
+    /**
+     * The data of the GET_ATTRIBUTE response of a card
+     *
+     * @param card Index of the card
+     * @param attrIndex Index of the requested attribute
+     * @param nonce The nonce N the gate sent as G.N
+     */
+    public byte[] respond(int card, int attrIndex, BigInteger nonce) {
+        BigInteger[] r = farm.respond(card, issuer.getAttributeId(attrIndex), G.multiply(nonce));
+        APDUCodec codec = new APDUCodec();
+        codec.putField(r[CardInterface.SIGNED_NONCE]);
+        codec.putField(r[CardInterface.BLINDED_KEY]);
+        codec.putField(r[CardInterface.BLINDED_SIGNATURE]);
+        codec.putField(r[CardInterface.ATTRIBUTE]);
+        byte[] data = new byte[codec.length()];
+        System.arraycopy(codec.array(), 0, data, 0, data.length);
+        return data;
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * ReplayCache.java
+ *
+ * Detects proofs that are submitted more than once
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers 64 bit fingerprints of the nonces and signed nonces of all
+ * proofs seen in the current and the previous time window. A proof whose
+ * nonce or signed nonce was seen before is a replay.
+ *
+ * Windows are aligned to the clock, so all nodes of a deployment agree on
+ * them, and a value is remembered for at least one full window. There are
+ * three tables: the current window, the previous one, and the one that is
+ * cleared for the next window. Each table is split into stripes of open
+ * addressing slots that are filled with compare-and-set, so lookups and
+ * inserts take no locks. Memory is fixed: a table holds at most the given
+ * number of fingerprints per window, after which check() reports FULL.
+ *
+ * A proof is remembered completely or not at all: when only one of its
+ * fingerprints could be inserted, that one is replaced by a tombstone, so
+ * the proof can be sent again later without being taken for a replay.
+ */
+public class ReplayCache {
+
+    public static final int FRESH = 0;
+    public static final int REPLAYED = 1;
+    public static final int FULL = 2;
+
+    private static final int STRIPES = 16;
+    private static final int MAX_PROBE = 32;
+
+    // Marks a table that is being cleared
+    private static final long CLEARING = -1;
+
+    // Marks a slot whose fingerprint was taken back, never a fingerprint
+    private static final long TOMBSTONE = -1;
+
+    // Domain separation between nonces and signed nonces
+    private static final long NONCE = 0x6e6f6e6365000000L;
+    private static final long SIGNED_NONCE = 0x7369676e65640000L;
+
+    private static class Stripe {
+        final AtomicLongArray slots;
+        final AtomicInteger count = new AtomicInteger();
+
+        Stripe(int size) {
+            slots = new AtomicLongArray(size);
+        }
+    }
+
+    private static class Table {
+        final AtomicLong epoch = new AtomicLong(Long.MIN_VALUE);
+        final Stripe[] stripes = new Stripe[STRIPES];
+    }
+
+    private final Table[] tables = new Table[3];
+    private final int stripeCapacity;
+    private final int stripeMask;
+    private final long window;
+    private final long seed;
+
+    private ReplaySync sync = null;
+
+    /**
+     * @param capacity Fingerprints per window, two per proof
+     * @param window Length of a window (in ms)
+     * @param seed Secret shared by all nodes, keeps fingerprints unpredictable
+     */
+    public ReplayCache(int capacity, long window, long seed) {
+        this.window = window;
+        this.seed = seed;
+        stripeCapacity = Math.max(1, capacity / STRIPES);
+        int size = 1;
+        while (size < 2 * stripeCapacity) {
+            size <<= 1;
+        }
+        stripeMask = size - 1;
+        for (int t = 0; t < tables.length; t++) {
+            tables[t] = new Table();
+            for (int s = 0; s < STRIPES; s++) {
+                tables[t].stripes[s] = new Stripe(size);
+            }
+        }
+    }
+
+    /**
+     * Share fingerprints with the other nodes through the given sync
+     */
+    public void setSync(ReplaySync sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Check a proof and remember it. Both values must be canonical: the
+     * nonce reduced modulo the group order, the signed nonce as the x
+     * coordinate, otherwise a replay could hide behind another encoding.
+     *
+     * @param nonce The nonce N the card was challenged with
+     * @param signedNonce The signed nonce in the response
+     * @return FRESH, REPLAYED or FULL
+     */
+    public int check(BigInteger nonce, BigInteger signedNonce) {
+        byte[] n = nonce.toByteArray();
+        byte[] sn = signedNonce.toByteArray();
+        long a = fingerprint(n, 0, n.length, seed ^ NONCE);
+        long b = fingerprint(sn, 0, sn.length, seed ^ SIGNED_NONCE);
+        long epoch = System.currentTimeMillis() / window;
+
+        Table current = table(epoch);
+        Table previous = tables[(int) ((epoch + 2) % 3)];
+        if (previous.epoch.get() == epoch - 1 && (contains(previous, a) || contains(previous, b))) {
+            return REPLAYED;
+        }
+        int ra = insert(current, a);
+        int rb = insert(current, b);
+        if (ra != FRESH || rb != FRESH) {
+            // Both or neither, take back the one that was inserted
+            if (ra == FRESH) {
+                remove(current, a);
+            }
+            if (rb == FRESH) {
+                remove(current, b);
+            }
+            return ra == REPLAYED || rb == REPLAYED ? REPLAYED : FULL;
+        }
+        if (sync != null) {
+            sync.publish(a);
+            sync.publish(b);
+        }
+        return FRESH;
+    }
+
+    /**
+     * Remember a fingerprint seen by another node
+     */
+    public void add(long fingerprint) {
+        insert(table(System.currentTimeMillis() / window), fingerprint);
+    }
+
+    /**
+     * The table of the given window, cleared first if it still holds an
+     * older window
+     */
+    private Table table(long epoch) {
+        Table t = tables[(int) (epoch % 3)];
+        while (true) {
+            long e = t.epoch.get();
+            if (e == epoch) {
+                return t;
+            }
+            if (e == CLEARING) {
+                Thread.yield();
+                continue;
+            }
+            if (t.epoch.compareAndSet(e, CLEARING)) {
+                for (Stripe s : t.stripes) {
+                    for (int i = 0; i < s.slots.length(); i++) {
+                        s.slots.set(i, 0);
+                    }
+                    s.count.set(0);
+                }
+                t.epoch.set(epoch);
+                return t;
+            }
+        }
+    }
+
+    private boolean contains(Table t, long f) {
+        Stripe s = t.stripes[(int) (f >>> 60)];
+        int i = (int) f & stripeMask;
+        for (int p = 0; p < MAX_PROBE; p++) {
+            long v = s.slots.get((i + p) & stripeMask);
+            if (v == f) {
+                return true;
+            }
+            if (v == 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace a fingerprint by a tombstone. The slot is not reused, as
+     * that would break the probe sequence of the fingerprints after it.
+     */
+    private void remove(Table t, long f) {
+        Stripe s = t.stripes[(int) (f >>> 60)];
+        int i = (int) f & stripeMask;
+        for (int p = 0; p < MAX_PROBE; p++) {
+            int slot = (i + p) & stripeMask;
+            long v = s.slots.get(slot);
+            if (v == 0) {
+                return;
+            }
+            if (v == f && s.slots.compareAndSet(slot, f, TOMBSTONE)) {
+                return;
+            }
+        }
+    }
+
+    private int insert(Table t, long f) {
+        Stripe s = t.stripes[(int) (f >>> 60)];
+        int i = (int) f & stripeMask;
+        for (int p = 0; p < MAX_PROBE; p++) {
+            int slot = (i + p) & stripeMask;
+            long v = s.slots.get(slot);
+            if (v == f) {
+                return REPLAYED;
+            }
+            if (v == 0) {
+                if (s.count.get() >= stripeCapacity) {
+                    return FULL;
+                }
+                if (s.slots.compareAndSet(slot, 0, f)) {
+                    s.count.incrementAndGet();
+                    return FRESH;
+                }
+                // Lost the race, look at the same slot again
+                p--;
+            }
+        }
+        return FULL;
+    }
+
+    /**
+     * 64 bit FNV-1a keyed with the seed, with a final mix. Never returns
+     * 0 or -1, which mark an empty slot and a tombstone.
+     */
+    static long fingerprint(byte[] b, int offset, int length, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= b[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 || h == TOMBSTONE ? 1 : h;
+    }
+}
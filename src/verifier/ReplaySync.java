@@ -0,0 +1,177 @@
+/**
+ * ReplaySync.java
+ *
+ * Shares replay cache fingerprints between verifier nodes
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+
+/**
+ * Sends the fingerprints a node accepts to its peers in UDP datagrams
+ * and adds the fingerprints of the peers to the local cache. The check
+ * itself stays local; fingerprints are batched and sent every few ms, so
+ * a replay at another node is caught once the datagram has arrived.
+ *
+ * The sync is best effort: a lost datagram is not resent, and a replay
+ * of its proofs at another node goes unnoticed there. Every datagram
+ * ends in a MAC under the cluster key, and only datagrams from the sync
+ * address of a configured peer with a valid MAC are used; anything else
+ * is dropped, so nobody else can fill the cache.
+ */
+public class ReplaySync {
+
+    // Fingerprints per datagram, with the tag fits in a single Ethernet frame
+    private static final int BATCH = 180;
+
+    // Separates sync datagrams from other messages under the same key
+    private static final byte SYNC = 'R';
+
+    // Delay between datagrams (in ms)
+    private static final long INTERVAL = 2;
+
+    // Fingerprints waiting to be sent before new ones are dropped
+    private static final int MAX_PENDING = 65536;
+
+    private final ReplayCache cache;
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private final Set<InetSocketAddress> senders;
+    private final ClusterKey key;
+    private final ConcurrentLinkedQueue<Long> outgoing = new ConcurrentLinkedQueue<Long>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * @param cache The local cache
+     * @param address Address to receive the fingerprints of the peers on
+     * @param peers Sync addresses of the other nodes
+     * @param key Key shared by all nodes
+     */
+    public ReplaySync(ReplayCache cache, InetSocketAddress address, List<InetSocketAddress> peers,
+            ClusterKey key) throws IOException {
+        this.cache = cache;
+        this.peers = peers;
+        this.senders = new HashSet<InetSocketAddress>(peers);
+        this.key = key;
+        socket = new DatagramSocket(address);
+        cache.setSync(this);
+
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, "ReplaySync-send");
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "ReplaySync-receive");
+        sender.setDaemon(true);
+        receiver.setDaemon(true);
+        sender.start();
+        receiver.start();
+    }
+
+    void publish(long fingerprint) {
+        if (peers.isEmpty() || pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            return;
+        }
+        outgoing.add(fingerprint);
+    }
+
+    public void close() {
+        running = false;
+        socket.close();
+    }
+
+    private void send() {
+        Mac mac = key.newMac();
+        ByteBuffer b = ByteBuffer.allocate(8 * BATCH + ClusterKey.TAG_LENGTH);
+        while (running) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Long f;
+            while ((f = outgoing.peek()) != null) {
+                b.clear();
+                while (b.position() < 8 * BATCH && (f = outgoing.poll()) != null) {
+                    pending.decrementAndGet();
+                    b.putLong(f);
+                }
+                b.put(tag(mac, b.array(), b.position()));
+                for (InetSocketAddress peer : peers) {
+                    try {
+                        socket.send(new DatagramPacket(b.array(), b.position(), peer));
+                    } catch (IOException e) {
+                        // Peer unreachable, it catches up in the next window
+                    }
+                }
+            }
+        }
+    }
+
+    private void receive() {
+        Mac mac = key.newMac();
+        byte[] buffer = new byte[8 * BATCH + ClusterKey.TAG_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                // Closed
+                continue;
+            }
+            int length = packet.getLength() - ClusterKey.TAG_LENGTH;
+            if (length < 0 || length % 8 != 0 || !senders.contains(packet.getSocketAddress())) {
+                continue;
+            }
+            byte[] tag = new byte[ClusterKey.TAG_LENGTH];
+            System.arraycopy(buffer, length, tag, 0, tag.length);
+            if (!ClusterKey.matches(tag, tag(mac, buffer, length))) {
+                continue;
+            }
+            ByteBuffer b = ByteBuffer.wrap(buffer, 0, length);
+            while (b.hasRemaining()) {
+                cache.add(b.getLong());
+            }
+        }
+    }
+
+    private static byte[] tag(Mac mac, byte[] fingerprints, int length) {
+        mac.update(SYNC);
+        mac.update(fingerprints, 0, length);
+        return ClusterKey.tag(mac);
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * VerificationClient.java
+ *
+ * Gate side of the verification protocol
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import terminal.GateClient;
+
+/**
+ * Sends proofs to a verification server. Requests can be pipelined: send()
+ * returns immediately and the results are collected with receive().
+ */
+public class VerificationClient {
+
+    public static class Result {
+        public final int id;
+        public final byte status;
+        public final int micros;
+
+        Result(int id, byte status, int micros) {
+            this.id = id;
+            this.status = status;
+            this.micros = micros;
+        }
+
+        public boolean isGranted() {
+            return status == VerificationProtocol.GRANTED;
+        }
+
+        public String toString() {
+            return "request " + id + " " + VerificationProtocol.toString(status)
+                    + " (" + micros + " us)";
+        }
+    }
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final int gate;
+    private final ByteBuffer frame = ByteBuffer.allocate(4 + VerificationProtocol.MAX_FRAME);
+    private int nextId = 0;
+
+    /**
+     * @param address Address of the verification server
+     * @param gate Id of the gate this client serves
+     */
+    public VerificationClient(InetSocketAddress address, int gate) throws IOException {
+        this.gate = gate;
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    public int getGate() {
+        return gate;
+    }
+
+    /**
+     * Send a proof without waiting for the result
+     *
+     * @param attrIndex Index of the requested attribute
+     * @param nonce The nonce N the card was challenged with
+     * @param data Data of the GET_ATTRIBUTE response
+     * @return The id of the request
+     */
+    public synchronized int send(int attrIndex, BigInteger nonce, byte[] data) throws IOException {
+        int id = nextId++;
+        frame.clear();
+        VerificationProtocol.writeRequest(frame, id, gate, attrIndex, nonce, data);
+        out.write(frame.array(), 0, frame.position());
+        out.flush();
+        return id;
+    }
+
+    /**
+     * Wait for the next result
+     */
+    public Result receive() throws IOException {
+        synchronized (in) {
+            int length = in.readInt();
+            if (length != VerificationProtocol.RESPONSE_LENGTH) {
+                throw new IOException("Unexpected response length " + length);
+            }
+            return new Result(in.readInt(), in.readByte(), in.readInt());
+        }
+    }
+
+    /**
+     * Send a proof and wait for its result, only if nothing else is pending
+     */
+    public Result verify(int attrIndex, BigInteger nonce, byte[] data) throws IOException {
+        int id = send(attrIndex, nonce, data);
+        Result r = receive();
+        if (r.id != id) {
+            throw new IOException("Response " + r.id + " does not match request " + id);
+        }
+        return r;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Load test over loopback: start a server in this process (unless an
+     * address is given) and let a number of gates send software proofs.
+     *
+     * Usage: VerificationClient [gates [proofs per gate [window [host:port]]]]
+     */
+    public static void main(String[] args) throws Exception {
+        int gates = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int proofs = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        final int window = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        final GateClient issuer = new GateClient(null);
+        issuer.getVerifier().setLogger(null);
+
+        InetSocketAddress address;
+        VerificationServer server = null;
+        if (args.length > 3) {
+            String[] hp = args[3].split(":");
+            address = new InetSocketAddress(hp[0], Integer.parseInt(hp[1]));
+        } else {
+            int workers = Runtime.getRuntime().availableProcessors();
+            server = new VerificationServer(issuer.getVerifier(), workers, 16 * workers, 8);
+            server.start(new InetSocketAddress("127.0.0.1", 0));
+            address = new InetSocketAddress("127.0.0.1", server.getPort());
+        }
+
+        final AtomicLong granted = new AtomicLong();
+        final AtomicLong denied = new AtomicLong();
+        final AtomicLong busy = new AtomicLong();
+        final InetSocketAddress target = address;
+        Thread[] threads = new Thread[gates];
+        long start = System.nanoTime();
+        for (int g = 0; g < gates; g++) {
+            final int gate = g;
+            threads[g] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        ProofSource cards = new ProofSource(issuer, 4, new Random(gate));
+                        VerificationClient client = new VerificationClient(target, gate);
+                        int sent = 0;
+                        int received = 0;
+                        while (received < proofs) {
+                            while (sent < proofs && sent - received < window) {
+                                BigInteger n = cards.nonce();
+                                client.send(0, n, cards.respond(sent % 4, 0, n));
+                                sent++;
+                            }
+                            Result r = client.receive();
+                            received++;
+                            if (r.status == VerificationProtocol.GRANTED) {
+                                granted.incrementAndGet();
+                            } else if (r.status == VerificationProtocol.BUSY) {
+                                busy.incrementAndGet();
+                            } else {
+                                denied.incrementAndGet();
+                            }
+                        }
+                        client.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "gate-" + g);
+            threads[g].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.format("%d proofs in %.2f s (%.1f/s): %d granted, %d denied, %d busy%n",
+                gates * proofs, seconds, gates * proofs / seconds,
+                granted.get(), denied.get(), busy.get());
+        if (server != null) {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * VerificationProtocol.java
+ *
+ * Wire format between gates and the verification server
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * All frames start with their length (4 bytes, excluding the length
+ * itself) and are big endian.
+ *
+ *   request:   id (4) gate (4) attribute index (1)
+ *              nonce length (2) nonce, data length (2) data
+ *   response:  id (4) status (1) verification time in us (4)
+ *
+ * The data of a request is the data of the GET_ATTRIBUTE response, as
+ * returned by the card. Responses may arrive in a different order than
+ * the requests were sent, the id links them.
+ */
+public class VerificationProtocol {
+
+    public static final int DEFAULT_PORT = 7373;
+
+    /** Largest frame that is accepted */
+    public static final int MAX_FRAME = 1024;
+
+    public static final int RESPONSE_LENGTH = 4 + 1 + 4;
+
+    /** Status codes of a response */
+    public static final byte GRANTED = 0;
+    public static final byte DENIED = 1;
+    public static final byte BUSY = 2;
+    public static final byte MALFORMED = 3;
+    public static final byte REPLAYED = 4;
+
+    private static final String[] STATUS = { "granted", "denied", "busy", "malformed", "replayed" };
+
+    public static String toString(byte status) {
+        return status >= 0 && status < STATUS.length ? STATUS[status] : "unknown (" + status + ")";
+    }
+
+    /**
+     * Write a request frame, including its length
+     */
+    public static void writeRequest(ByteBuffer b, int id, int gate, int attrIndex,
+            BigInteger nonce, byte[] data) {
+        byte[] n = nonce.toByteArray();
+        b.putInt(4 + 4 + 1 + 2 + n.length + 2 + data.length);
+        b.putInt(id);
+        b.putInt(gate);
+        b.put((byte) attrIndex);
+        b.putShort((short) n.length);
+        b.put(n);
+        b.putShort((short) data.length);
+        b.put(data);
+    }
+
+    /**
+     * Read a request frame, without its length
+     *
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static VerificationRequest readRequest(ByteBuffer frame) {
+        try {
+            int id = frame.getInt();
+            int gate = frame.getInt();
+            int attrIndex = frame.get() & 0xff;
+            byte[] n = new byte[frame.getShort() & 0xffff];
+            frame.get(n);
+            byte[] data = new byte[frame.getShort() & 0xffff];
+            frame.get(data);
+            if (n.length == 0 || frame.hasRemaining()) {
+                throw new IllegalArgumentException("Malformed request " + id);
+            }
+            return new VerificationRequest(id, gate, attrIndex, new BigInteger(n), data);
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated request");
+        }
+    }
+
+    /**
+     * Write a response frame, including its length
+     */
+    public static void writeResponse(ByteBuffer b, int id, byte status, int micros) {
+        b.putInt(RESPONSE_LENGTH);
+        b.putInt(id);
+        b.put(status);
+        b.putInt(micros);
+    }
+}
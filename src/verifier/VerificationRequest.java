@@ -0,0 +1,52 @@
+/**
+ * VerificationRequest.java
+ *
+ * A proof submitted by a gate for verification
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.math.BigInteger;
+
+public class VerificationRequest {
+
+    public final int id;
+    public final int gate;
+    public final int attrIndex;
+    public final BigInteger nonce;
+    public final byte[] data;
+
+    /** Value of System.nanoTime() when the request was received */
+    long received;
+
+    /** The connection to answer on, null for local requests */
+    Object client;
+
+    public VerificationRequest(int id, int gate, int attrIndex, BigInteger nonce, byte[] data) {
+        this.id = id;
+        this.gate = gate;
+        this.attrIndex = attrIndex;
+        this.nonce = nonce;
+        this.data = data;
+        this.received = System.nanoTime();
+    }
+
+    public long getReceived() {
+        return received;
+    }
+}
@@ -0,0 +1,544 @@
+/**
+ * VerificationServer.java
+ *
+ * Verifies attribute proofs on behalf of gate controllers
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import terminal.GateClient;
+import terminal.GateVerifier;
+
+import card.APDUCodec;
+
+/**
+ * A single selector thread handles all connections; a pool of worker
+ * threads runs the pairing checks.
+ *
+ *  - admission control: once maxPending requests are waiting or being
+ *    verified, new requests are answered with BUSY straight away
+ *  - backpressure: once a client has maxPerClient requests waiting, its
+ *    connection is no longer read until a request completes, so TCP flow
+ *    control slows the client down
+ *  - fairness: workers take requests round robin over the clients
+ */
+public class VerificationServer {
+
+    private final GateVerifier verifier;
+    private final int workerCount;
+    private final int maxPending;
+    private final int maxPerClient;
+
+    private final FairQueue<VerificationRequest> queue = new FairQueue<VerificationRequest>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // Connections with new responses or that may be read again
+    private final ConcurrentLinkedQueue<Connection> changed = new ConcurrentLinkedQueue<Connection>();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    // Freshness check of submitted proofs, null when off
+    private ReplayCache replay = null;
+
+    // Batching is off when maxBatch is 0
+    private int maxBatch = 0;
+    private long budget;
+    private ExecutorService pool = null;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread[] threads;
+    private volatile boolean running = false;
+
+    /**
+     * Connection state, only the out queue is touched by other threads
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(16 * VerificationProtocol.MAX_FRAME);
+        final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+        SelectionKey key;
+        boolean paused = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param verifier Verifier holding the keys of the gates served
+     * @param workers Number of verification threads
+     * @param maxPending Requests waiting or in progress before BUSY is sent
+     * @param maxPerClient Requests waiting per client before it is paused
+     */
+    public VerificationServer(GateVerifier verifier, int workers, int maxPending, int maxPerClient) {
+        this.verifier = verifier;
+        this.workerCount = workers;
+        this.maxPending = maxPending;
+        this.maxPerClient = maxPerClient;
+    }
+
+    /**
+     * Verify requests in batches instead of one at a time, must be called
+     * before start()
+     *
+     * @param maxBatch Largest batch, 0 to verify one at a time
+     * @param budget Latency budget of a request (in ms)
+     */
+    public void setBatching(int maxBatch, long budget) {
+        this.maxBatch = maxBatch;
+        this.budget = budget;
+    }
+
+    /**
+     * Reject proofs whose nonce or signed nonce was seen before
+     */
+    public void setReplayCache(ReplayCache cache) {
+        replay = cache;
+    }
+
+    /**
+     * Check the freshness of a request once it is admitted, so a request
+     * answered with BUSY is not remembered and can be sent again
+     *
+     * @return The status to answer with straight away, -1 if fresh
+     */
+    private byte checkFresh(VerificationRequest r) {
+        if (replay == null) {
+            return -1;
+        }
+        BigInteger sn;
+        try {
+            sn = APDUCodec.parse(r.data, 1).getBigInteger(0);
+        } catch (IllegalArgumentException e) {
+            return VerificationProtocol.MALFORMED;
+        }
+        switch (replay.check(r.nonce.mod(verifier.getCurve().getR()), sn)) {
+            case ReplayCache.REPLAYED:
+                return VerificationProtocol.REPLAYED;
+            case ReplayCache.FULL:
+                return VerificationProtocol.BUSY;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Start listening on the given port, 0 picks a free port
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        threads = new Thread[maxBatch > 0 ? 2 : workerCount + 1];
+        threads[0] = new Thread(new Runnable() {
+            public void run() {
+                select();
+            }
+        }, "VerificationServer-selector");
+        if (maxBatch > 0) {
+            pool = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "VerificationServer-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            threads[1] = new Thread(new BatchScheduler(queue, new BatchVerifier(verifier, pool),
+                    new BatchScheduler.Completion() {
+                        public void complete(VerificationRequest r, byte status) {
+                            VerificationServer.this.complete(r, status);
+                        }
+                    }, workerCount, maxBatch, budget), "VerificationServer-scheduler");
+        }
+        for (int i = 1; i < threads.length && maxBatch == 0; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "VerificationServer-worker-" + i);
+        }
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (threads != null) {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public GateVerifier getVerifier() {
+        return verifier;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Send the outcome of a request to its client
+     */
+    void complete(VerificationRequest r, byte status) {
+        complete(r, status, true);
+    }
+
+    /**
+     * @param counted Whether the request was admitted and is pending
+     */
+    private void complete(VerificationRequest r, byte status, boolean counted) {
+        if (r.client instanceof BatchScheduler.Completion) {
+            // Submitted locally
+            pending.decrementAndGet();
+            completed.incrementAndGet();
+            ((BatchScheduler.Completion) r.client).complete(r, status);
+            return;
+        }
+        int micros = (int) ((System.nanoTime() - r.received) / 1000);
+        Connection c = (Connection) r.client;
+        ByteBuffer b = ByteBuffer.allocate(4 + VerificationProtocol.RESPONSE_LENGTH);
+        VerificationProtocol.writeResponse(b, r.id, status, micros);
+        b.flip();
+        c.out.add(b);
+        if (counted) {
+            pending.decrementAndGet();
+            completed.incrementAndGet();
+        }
+        changed.add(c);
+        selector.wakeup();
+    }
+
+    /**
+     * Submit a request from within this process, subject to the same
+     * admission control as requests from the network
+     *
+     * @return Whether the request was accepted, false if the server is busy
+     */
+    public boolean submit(VerificationRequest r, BatchScheduler.Completion completion) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        accepted.incrementAndGet();
+        r.client = completion;
+        queue.add(completion, r);
+        return true;
+    }
+
+    /**
+     * Take queued requests away to be verified elsewhere, but only those
+     * beyond what the workers will pick up next. The requests stay pending
+     * until complete() is called for them.
+     *
+     * @param max Maximum number of requests to take
+     */
+    List<VerificationRequest> steal(int max) {
+        List<VerificationRequest> stolen = new ArrayList<VerificationRequest>();
+        while (stolen.size() < max && queue.size() > workerCount) {
+            try {
+                VerificationRequest r = queue.poll(0);
+                if (r == null) {
+                    break;
+                }
+                stolen.add(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return stolen;
+    }
+
+    /**
+     * Put back a stolen request that could not be verified elsewhere
+     */
+    void requeue(VerificationRequest r) {
+        queue.add(r.client, r);
+    }
+
+    /**
+     * Whether a worker would be free for another request
+     */
+    public boolean isIdle() {
+        return pending.get() < workerCount;
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                VerificationRequest r = queue.take();
+                complete(r, BatchVerifier.verify(verifier, r));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void select() {
+        try {
+            while (running) {
+                selector.select();
+                Connection c;
+                while ((c = changed.poll()) != null) {
+                    if (!c.key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        flush(c);
+                        if (c.paused && queue.size(c) < maxPerClient) {
+                            c.paused = false;
+                            parse(c);
+                        }
+                        updateInterest(c);
+                    } catch (IOException e) {
+                        close(c.key);
+                    }
+                }
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            c = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                read(c);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(c);
+                            }
+                            updateInterest(c);
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Connection c = new Connection(ch);
+        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    private void read(Connection c) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            close(c.key);
+            return;
+        }
+        parse(c);
+    }
+
+    /**
+     * Handle the complete frames in the input buffer, stops early when the
+     * client has to wait for its queued requests
+     */
+    private void parse(Connection c) throws IOException {
+        ByteBuffer in = c.in;
+        in.flip();
+        while (!c.paused && in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length <= 0 || length > VerificationProtocol.MAX_FRAME) {
+                close(c.key);
+                return;
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            ByteBuffer frame = in.duplicate();
+            frame.position(in.position() + 4);
+            frame.limit(in.position() + 4 + length);
+            in.position(in.position() + 4 + length);
+            submit(c, frame);
+        }
+        in.compact();
+    }
+
+    private void submit(Connection c, ByteBuffer frame) throws IOException {
+        VerificationRequest r;
+        try {
+            r = VerificationProtocol.readRequest(frame);
+        } catch (IllegalArgumentException e) {
+            close(c.key);
+            return;
+        }
+        r.client = c;
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            complete(r, VerificationProtocol.BUSY, false);
+            return;
+        }
+        byte status = checkFresh(r);
+        if (status >= 0) {
+            // Answered without verification, like BUSY it is not pending
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            complete(r, status, false);
+            return;
+        }
+        accepted.incrementAndGet();
+        queue.add(c, r);
+        if (queue.size(c) >= maxPerClient) {
+            c.paused = true;
+        }
+    }
+
+    private void flush(Connection c) throws IOException {
+        ByteBuffer b;
+        while ((b = c.out.peek()) != null) {
+            c.channel.write(b);
+            if (b.hasRemaining()) {
+                return;
+            }
+            c.out.poll();
+        }
+    }
+
+    private void updateInterest(Connection c) {
+        if (!c.key.isValid()) {
+            return;
+        }
+        int ops = c.paused ? 0 : SelectionKey.OP_READ;
+        if (!c.out.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        c.key.interestOps(ops);
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Gone already
+        }
+    }
+
+    /**
+     * Run a verification server with the gate keys
+     *
+     * Usage: VerificationServer [port [workers [max pending [max per client
+     *        [max batch [budget in ms]]]]]]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : VerificationProtocol.DEFAULT_PORT;
+        int workers = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        int maxPending = args.length > 2 ? Integer.parseInt(args[2]) : 64 * workers;
+        int maxPerClient = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        int maxBatch = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        long budget = args.length > 5 ? Long.parseLong(args[5]) : 1000;
+
+        GateVerifier verifier = new GateClient(null).getVerifier();
+        verifier.setLogger(null);
+        VerificationServer server = new VerificationServer(verifier, workers, maxPending, maxPerClient);
+        server.setBatching(maxBatch, budget);
+        server.start(new InetSocketAddress(port));
+        System.out.println("Verifying on port " + server.getPort() + " with " + workers + " workers");
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * APDUCodecTest.java
+ *
+ * Round trips of the APDU field encoding
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package card;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+public class APDUCodecTest {
+
+    private static byte[] encoded(APDUCodec codec) {
+        return Arrays.copyOf(codec.array(), codec.length());
+    }
+
+    @Test
+    public void numbersRoundTrip() {
+        BigInteger[] values = { BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(0x7f),
+                BigInteger.valueOf(0x80), BigInteger.valueOf(0xffff),
+                BigInteger.ONE.shiftLeft(160).subtract(BigInteger.ONE),
+                new BigInteger("186811774159849458934010617336619260142261775654") };
+        APDUCodec codec = new APDUCodec();
+        for (BigInteger v : values) {
+            codec.putField(v);
+        }
+        APDUCodec.Fields f = APDUCodec.parse(encoded(codec), values.length);
+        assertEquals(values.length, f.count());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], f.getBigInteger(i));
+        }
+    }
+
+    @Test
+    public void numbersAreUnsignedAndMinimal() {
+        APDUCodec codec = new APDUCodec().putField(BigInteger.valueOf(0x80))
+                .putField(BigInteger.ZERO);
+        // No sign byte for 0x80, zero takes one byte
+        assertArrayEquals(new byte[] { 0, 1, (byte) 0x80, 0, 1, 0 }, encoded(codec));
+    }
+
+    @Test
+    public void rawBytesAndShorts() {
+        APDUCodec codec = new APDUCodec().putShort(0x1234).put((byte) 0xA5)
+                .putRaw(new byte[] { 1, 2 }).putField(new byte[] { 3 });
+        assertArrayEquals(new byte[] { 0x12, 0x34, (byte) 0xA5, 1, 2, 0, 1, 3 }, encoded(codec));
+    }
+
+    @Test
+    public void pointsRoundTrip() {
+        X9ECParameters p = SECNamedCurves.getByName("secp192r1");
+        ECPoint point = p.getG().multiply(BigInteger.valueOf(123456789));
+        APDUCodec codec = new APDUCodec().put((byte) 1).putField(point);
+        byte[] data = Arrays.copyOfRange(codec.array(), 1, codec.length());
+        assertEquals(point, APDUCodec.parse(data, 1).getPoint(0, p.getCurve()));
+    }
+
+    @Test
+    public void bufferGrows() {
+        APDUCodec codec = new APDUCodec(4);
+        byte[] value = new byte[300];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        codec.put((byte) 7).putField(value);
+        assertEquals(303, codec.length());
+        APDUCodec.Fields f = APDUCodec.parse(Arrays.copyOfRange(codec.array(), 1, 303), 1);
+        assertArrayEquals(value, f.getBytes(0));
+    }
+
+    @Test
+    public void resetDiscardsData() {
+        APDUCodec codec = new APDUCodec().putField(BigInteger.TEN);
+        codec.reset().put((byte) 1);
+        assertArrayEquals(new byte[] { 1 }, encoded(codec));
+    }
+
+    @Test
+    public void parseIsAView() {
+        byte[] data = { 0, 2, 5, 6, 0, 0 };
+        APDUCodec.Fields f = APDUCodec.parse(data, 2);
+        assertSame(data, f.data());
+        assertEquals(2, f.offset(0));
+        assertEquals(2, f.length(0));
+        assertEquals(0, f.length(1));
+        assertEquals(BigInteger.valueOf(0x0506), f.getBigInteger(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingFieldIsRejected() {
+        APDUCodec.parse(new byte[] { 0, 1, 5 }, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedFieldIsRejected() {
+        APDUCodec.parse(new byte[] { 0, 3, 5, 6 }, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedResponseIsRejected() {
+        // A GET_ATTRIBUTE answer cut off in its third field
+        APDUCodec codec = new APDUCodec().putField(BigInteger.ONE).putField(BigInteger.TEN)
+                .putField(BigInteger.valueOf(0x123456)).putField(BigInteger.ONE);
+        APDUCodec.parse(Arrays.copyOf(codec.array(), 8), 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyResponseIsRejected() {
+        APDUCodec.parse(new byte[0], 4);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * PointTableTest.java
+ *
+ * Comb table multiplication against ECPoint.multiply()
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package card;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+public class PointTableTest {
+
+    private static final X9ECParameters CURVE = SECNamedCurves.getByName("secp192r1");
+
+    private static void check(ECPoint p, int bits, int width, BigInteger k) {
+        assertEquals(p.multiply(k), new PointTable(p, bits, width).multiply(k));
+    }
+
+    @Test
+    public void matchesMultiplyForRandomScalars() {
+        ECPoint p = CURVE.getG().multiply(BigInteger.valueOf(987654321));
+        PointTable table = new PointTable(p, 192);
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            BigInteger k = new BigInteger(192, random);
+            assertEquals(p.multiply(k), table.multiply(k));
+        }
+    }
+
+    @Test
+    public void smallScalars() {
+        ECPoint g = CURVE.getG();
+        for (int k = 1; k < 40; k++) {
+            check(g, 192, 4, BigInteger.valueOf(k));
+        }
+    }
+
+    @Test
+    public void zeroIsInfinity() {
+        ECPoint g = CURVE.getG();
+        assertTrue(new PointTable(g, 192).multiply(BigInteger.ZERO).isInfinity());
+    }
+
+    @Test
+    public void widthsAndUnevenBitLengths() {
+        ECPoint g = CURVE.getG();
+        BigInteger k = CURVE.getN().subtract(BigInteger.valueOf(12345));
+        for (int width = 1; width <= 6; width++) {
+            // 192 bits do not divide into 5 rows
+            check(g, 192, width, k);
+        }
+        check(g, 100, 4, new BigInteger(100, new Random(2)));
+    }
+
+    @Test
+    public void longerScalarsFallBackToMultiply() {
+        ECPoint g = CURVE.getG();
+        check(g, 64, 4, CURVE.getN().subtract(BigInteger.ONE));
+    }
+}
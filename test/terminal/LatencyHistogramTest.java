@@ -0,0 +1,118 @@
+/**
+ * LatencyHistogramTest.java
+ *
+ * Precision and percentiles of the latency histogram
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(99));
+        assertEquals(0.0, h.getMean(), 0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int v = 1; v <= 100; v++) {
+            h.record(v);
+        }
+        assertEquals(50, h.getValueAtPercentile(50));
+        assertEquals(99, h.getValueAtPercentile(99));
+        assertEquals(100, h.getValueAtPercentile(100));
+        assertEquals(50.5, h.getMean(), 1e-9);
+    }
+
+    @Test
+    public void largeValuesWithinPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        Random random = new Random(1);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // Spread over most of the range of a long
+            values[i] = (long) Math.exp(random.nextDouble() * 43);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : new double[] { 1, 50, 90, 99, 99.9 }) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long v = h.getValueAtPercentile(p);
+            assertTrue(v >= exact && v <= exact + exact / 64 + 1);
+        }
+        assertEquals(values[values.length - 1], h.getMax());
+        assertEquals(values[values.length - 1], h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void extremeValues() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        h.record(Long.MAX_VALUE);
+        assertEquals(2, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void addMergesCounts() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int v = 1; v <= 50; v++) {
+            a.record(v);
+            b.record(v + 50);
+        }
+        a.add(b);
+        assertEquals(100, a.getCount());
+        assertEquals(100, a.getMax());
+        assertEquals(50, a.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        final LatencyHistogram h = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        h.record(i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(40000, h.getCount());
+        assertEquals(9999, h.getMax());
+    }
+}
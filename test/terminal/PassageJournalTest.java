@@ -0,0 +1,173 @@
+/**
+ * PassageJournalTest.java
+ *
+ * Reopening and crash recovery of the passage journal
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package terminal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import card.CardInterface;
+
+public class PassageJournalTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteDir() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private void write(int records) throws IOException {
+        PassageJournal journal = new PassageJournal(dir, 1);
+        for (int i = 0; i < records; i++) {
+            Passage p = new Passage(0);
+            p.nonce = BigInteger.valueOf(i);
+            p.granted = i % 2 == 0;
+            journal.append(p);
+        }
+        journal.close();
+    }
+
+    private File segment() {
+        return new File(dir, PassageJournal.segmentName(0));
+    }
+
+    /**
+     * Make the next open look like a crash after only the given number
+     * of records were known to be durable
+     */
+    private void crash(long durable) throws IOException {
+        new File(dir, "clean").delete();
+        RandomAccessFile mark = new RandomAccessFile(new File(dir, "durable"), "rw");
+        mark.writeLong(durable);
+        mark.close();
+    }
+
+    private void poke(int record, int offset, int value) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(segment(), "rw");
+        f.seek((long) record * PassageJournal.RECORD + offset);
+        f.writeInt(value);
+        f.close();
+    }
+
+    private long reopen() throws IOException {
+        PassageJournal journal = new PassageJournal(dir, 1);
+        long size = journal.getSize();
+        journal.close();
+        return size;
+    }
+
+    @Test
+    public void cleanReopenKeepsAllRecords() throws IOException {
+        write(1000);
+        PassageJournal journal = new PassageJournal(dir, 1);
+        assertEquals(1000, journal.getSize());
+        PassageJournal.Record r = journal.read(999);
+        assertEquals(999, r.sequence);
+        assertEquals(BigInteger.valueOf(999), r.nonce);
+        assertEquals(1, r.gate);
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws IOException {
+        write(100);
+        crash(90);
+        poke(99, 60, 0x12345678);
+        assertEquals(99, reopen());
+    }
+
+    @Test
+    public void holeEndsTheJournal() throws IOException {
+        write(100);
+        crash(10);
+        // A record that never reached the disk, with later ones that did
+        poke(50, 0, 0);
+        assertEquals(50, reopen());
+        // The records after the hole were cleared
+        assertEquals(50, reopen());
+        write(0);
+        crash(0);
+        assertEquals(50, reopen());
+    }
+
+    @Test
+    public void recordsBeforeTheMarkAreTrusted() throws IOException {
+        write(100);
+        crash(100);
+        assertEquals(100, reopen());
+        crash(0);
+        assertEquals(100, reopen());
+    }
+
+    @Test
+    public void appendingContinuesAfterRecovery() throws IOException {
+        write(20);
+        crash(0);
+        poke(5, 0, 0);
+        write(3);
+        PassageJournal journal = new PassageJournal(dir, 1);
+        assertEquals(8, journal.getSize());
+        assertEquals(7, journal.read(7).sequence);
+        journal.close();
+    }
+
+    @Test
+    public void fieldsAreInRecordOrder() {
+        Passage p = new Passage(0);
+        p.nonce = BigInteger.valueOf(10);
+        p.attr = new BigInteger[4];
+        p.attr[CardInterface.BLINDED_KEY] = BigInteger.valueOf(11);
+        p.attr[CardInterface.SIGNED_NONCE] = BigInteger.valueOf(12);
+        p.attr[CardInterface.BLINDED_SIGNATURE] = BigInteger.valueOf(13);
+        p.attr[CardInterface.ATTRIBUTE] = BigInteger.valueOf(14);
+        ByteBuffer b = ByteBuffer.allocate(PassageJournal.RECORD);
+        PassageJournal.encode(b, 5, 0, 1, p);
+        assertEquals(PassageJournal.RECORD, b.position());
+
+        PassageJournal.Record r = PassageJournal.decode(b, 0);
+        assertEquals(5, r.sequence);
+        assertEquals(p.nonce, r.nonce);
+        assertEquals(p.attr[CardInterface.SIGNED_NONCE], r.signedNonce);
+        assertEquals(p.attr[CardInterface.BLINDED_KEY], r.blindedKey);
+        assertEquals(p.attr[CardInterface.BLINDED_SIGNATURE], r.blindedSignature);
+        assertEquals(p.attr[CardInterface.ATTRIBUTE], r.attribute);
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * HashRingTest.java
+ *
+ * Ownership and fail-over order of the consistent hash ring
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+    private static final int KEYS = 10000;
+
+    private static HashRing<String> ring(int nodes) {
+        HashRing<String> ring = new HashRing<String>(100);
+        for (int i = 0; i < nodes; i++) {
+            ring.add("node" + i);
+        }
+        return ring;
+    }
+
+    @Test
+    public void emptyRingOwnsNothing() {
+        HashRing<String> ring = new HashRing<String>(10);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.get("gate1"));
+        assertTrue(ring.getAll("gate1").isEmpty());
+    }
+
+    @Test
+    public void keysAreSpreadOverAllNodes() {
+        HashRing<String> ring = ring(4);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int k = 0; k < KEYS; k++) {
+            String node = ring.get("gate" + k);
+            Integer c = counts.get(node);
+            counts.put(node, c == null ? 1 : c + 1);
+        }
+        assertEquals(4, counts.size());
+        for (int c : counts.values()) {
+            // Within 50% of a fair share with 100 points per node
+            assertTrue(c > KEYS / 8 && c < KEYS * 3 / 8);
+        }
+    }
+
+    @Test
+    public void onlyKeysOfARemovedNodeMove() {
+        HashRing<String> ring = ring(4);
+        String[] before = new String[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            before[k] = ring.get("gate" + k);
+        }
+        ring.remove("node2");
+        assertFalse(ring.contains("node2"));
+        for (int k = 0; k < KEYS; k++) {
+            String after = ring.get("gate" + k);
+            if (before[k].equals("node2")) {
+                assertFalse(after.equals("node2"));
+            } else {
+                assertEquals(before[k], after);
+            }
+        }
+    }
+
+    @Test
+    public void removedKeysMoveToTheNextNodeInLine() {
+        HashRing<String> ring = ring(4);
+        for (int k = 0; k < 1000; k++) {
+            List<String> all = ring.getAll("gate" + k);
+            assertEquals(4, all.size());
+            assertEquals(ring.get("gate" + k), all.get(0));
+            ring.remove(all.get(0));
+            assertEquals(all.get(1), ring.get("gate" + k));
+            ring.add(all.get(0));
+        }
+    }
+
+    @Test
+    public void addIsIdempotent() {
+        HashRing<String> ring = ring(3);
+        String owner = ring.get("gate7");
+        ring.add("node1");
+        assertEquals(owner, ring.get("gate7"));
+        assertEquals(3, ring.getAll("gate7").size());
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * ReplayCacheTest.java
+ *
+ * Replay detection and capacity of the replay cache
+ *
+ * Copyright (C) OV-chip 2.0 project, October 2026.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package verifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+public class ReplayCacheTest {
+
+    // A window that does not end during a test
+    private static final long FOREVER = 1L << 40;
+
+    private static BigInteger n(long v) {
+        return BigInteger.valueOf(v);
+    }
+
+    @Test
+    public void secondProofIsAReplay() {
+        ReplayCache cache = new ReplayCache(1024, FOREVER, 42);
+        assertEquals(ReplayCache.FRESH, cache.check(n(1), n(2)));
+        assertEquals(ReplayCache.REPLAYED, cache.check(n(1), n(2)));
+    }
+
+    @Test
+    public void eitherValueMakesAReplay() {
+        ReplayCache cache = new ReplayCache(1024, FOREVER, 42);
+        assertEquals(ReplayCache.FRESH, cache.check(n(1), n(2)));
+        assertEquals(ReplayCache.REPLAYED, cache.check(n(1), n(3)));
+        assertEquals(ReplayCache.REPLAYED, cache.check(n(4), n(2)));
+        // Nonces and signed nonces are kept apart
+        assertEquals(ReplayCache.FRESH, cache.check(n(2), n(1)));
+    }
+
+    @Test
+    public void rejectedProofIsNotRemembered() {
+        ReplayCache cache = new ReplayCache(1024, FOREVER, 42);
+        assertEquals(ReplayCache.FRESH, cache.check(n(1), n(2)));
+        assertEquals(ReplayCache.REPLAYED, cache.check(n(1), n(3)));
+        // The signed nonce of the replay was taken back
+        assertEquals(ReplayCache.FRESH, cache.check(n(5), n(3)));
+    }
+
+    @Test
+    public void fullCacheRemembersBothOrNeither() {
+        // One fingerprint per stripe
+        ReplayCache cache = new ReplayCache(16, FOREVER, 42);
+        int full = 0;
+        for (int i = 1; i <= 200; i++) {
+            int r = cache.check(n(i), n(-i));
+            if (r == ReplayCache.FULL) {
+                full++;
+                // Not taken for a replay when it is sent again
+                assertEquals(ReplayCache.FULL, cache.check(n(i), n(-i)));
+            }
+        }
+        assertTrue(full > 0);
+    }
+
+    @Test
+    public void proofsAreForgottenAfterTwoWindows() throws InterruptedException {
+        ReplayCache cache = new ReplayCache(1024, 100, 42);
+        assertEquals(ReplayCache.FRESH, cache.check(n(1), n(2)));
+        // Still known in the next window
+        assertEquals(ReplayCache.REPLAYED, cache.check(n(1), n(2)));
+        Thread.sleep(250);
+        assertEquals(ReplayCache.FRESH, cache.check(n(1), n(2)));
+    }
+
+    @Test
+    public void fingerprintsFromPeersAreReplays() {
+        ReplayCache cache = new ReplayCache(1024, FOREVER, 42);
+        byte[] nonce = n(7).toByteArray();
+        cache.add(ReplayCache.fingerprint(nonce, 0, nonce.length, 42 ^ 0x6e6f6e6365000000L));
+        assertEquals(ReplayCache.REPLAYED, cache.check(n(7), n(8)));
+    }
+}